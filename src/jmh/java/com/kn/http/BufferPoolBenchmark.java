@@ -0,0 +1,61 @@
+package com.kn.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Body copy per request with fresh buffer, as it was before {@link BufferPool}, against pooled
+ * one. Compare gc.alloc.rate.norm reported by the gc profiler.
+ *
+ * @author nk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class BufferPoolBenchmark {
+  private static final OutputStream DISCARD = new OutputStream() {
+    @Override public void write(int b) {
+    }
+
+    @Override public void write(byte[] buffer, int offset, int count) {
+    }
+  };
+
+  private byte[] body;
+
+  @Setup
+  public void setUp() {
+    body = new byte[1024 * 4];
+  }
+
+  @Benchmark
+  public void freshBuffer() throws IOException {
+    InputStream input = new ByteArrayInputStream(body);
+    byte[] buffer = new byte[1024 * 10];
+    int read;
+    while ((read = input.read(buffer)) != -1) DISCARD.write(buffer, 0, read);
+  }
+
+  @Benchmark
+  public void pooledBuffer() {
+    HttpClient.copy(new ByteArrayInputStream(body), DISCARD);
+  }
+}
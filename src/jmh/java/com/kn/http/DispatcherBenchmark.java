@@ -0,0 +1,115 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end {@link NetworkDispatcher#execute} throughput against embedded local server.
+ *
+ * @author nk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatcherBenchmark {
+  private static final int BATCH = 256;
+  private static final byte[] BODY = new byte[1024];
+
+  @Param({"socket", "urlconnection"})
+  public String transport;
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private SocketTransport socketTransport;
+  private NetworkDispatcher dispatcher;
+  private Request request;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    // otherwise server writes headers and body in separate segments and delayed ACK stalls us
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+    server.createContext("/", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, BODY.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(BODY);
+        output.close();
+      }
+    });
+    serverExecutor = Executors.newFixedThreadPool(8);
+    server.setExecutor(serverExecutor);
+    server.start();
+
+    HttpClient client = new HttpClient();
+    if (transport.equals("socket")) {
+      socketTransport = new SocketTransport();
+      client.transport(socketTransport);
+    }
+    dispatcher = new NetworkDispatcher(client, 8, 8);
+    request = new Request.Builder()
+        .method(HttpMethod.GET)
+        .url("http://127.0.0.1:" + server.getAddress().getPort() + "/")
+        .build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (socketTransport != null) socketTransport.connectionPool().evictAll();
+    server.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public int execute() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(BATCH);
+    final AtomicInteger failures = new AtomicInteger();
+    NetworkDispatcher.Callback<Response> callback = new NetworkDispatcher.Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        response.bytes();
+        done.countDown();
+      }
+
+      @Override public void onFailure(IOException e) {
+        failures.incrementAndGet();
+        done.countDown();
+      }
+    };
+    for (int i = 0; i < BATCH; i++) {
+      dispatcher.execute(request, callback);
+    }
+    done.await();
+    if (failures.get() > 0) throw new IllegalStateException(failures + " requests failed");
+    return BATCH;
+  }
+}
@@ -0,0 +1,88 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building, printing and parsing requests.
+ *
+ * @author nk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+  private Map<String, String> params;
+  private Request request;
+  private String printed;
+  private RequestTemplate template;
+
+  @Setup
+  public void setUp() {
+    params = new LinkedHashMap<>();
+    params.put("page", "2");
+    params.put("sort", "created");
+    request = build();
+    printed = request.toString();
+    template = new RequestTemplate.Builder()
+        .method(HttpMethod.POST)
+        .url("https://api.example.com/v1/users/{user}/items")
+        .header("Accept", "application/json")
+        .header("User-Agent", "kn-http")
+        .header("Content-Type", "application/json; charset=utf-8")
+        .build();
+  }
+
+  @Benchmark
+  public Request builderBuild() {
+    return build();
+  }
+
+  @Benchmark
+  public Request templateBuild() {
+    return template.newRequest()
+        .path("user", "42")
+        .query("page", "2")
+        .query("sort", "created")
+        .body("{\"name\":\"benchmark\",\"count\":42}")
+        .build();
+  }
+
+  @Benchmark
+  public String requestToString() {
+    return request.toString();
+  }
+
+  @Benchmark
+  public Request requestFromString() {
+    return Request.fromString(printed);
+  }
+
+  private Request build() {
+    return new Request.Builder()
+        .method(HttpMethod.POST)
+        .url("https://api.example.com/v1/items")
+        .params(params)
+        .header("Accept", "application/json")
+        .header("User-Agent", "kn-http")
+        .contentType("application/json; charset=utf-8")
+        .body("{\"name\":\"benchmark\",\"count\":42}")
+        .build();
+  }
+}
@@ -0,0 +1,64 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.Response;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading response bodies of different sizes from memory, so only client overhead is measured.
+ *
+ * @author nk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+  @Param({"128", "16384", "1048576"})
+  public int size;
+
+  private byte[] body;
+  private Headers headers;
+
+  @Setup
+  public void setUp() {
+    body = new byte[size];
+    Arrays.fill(body, (byte) 'a');
+    headers = Headers.of(
+        "Content-Type", "text/plain;charset=utf-8",
+        "Content-Length", String.valueOf(size));
+  }
+
+  @Benchmark
+  public String charset() {
+    return response().charset();
+  }
+
+  @Benchmark
+  public String string() {
+    return response().string();
+  }
+
+  @Benchmark
+  public byte[] bytes() {
+    return response().bytes();
+  }
+
+  private Response response() {
+    return new Response(200, headers, new ByteArrayInputStream(body));
+  }
+}
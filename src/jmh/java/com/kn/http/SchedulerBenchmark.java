@@ -0,0 +1,158 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scheduling throughput of {@link NetworkDispatcher} against the deque based scheduler it
+ * replaced, 64 threads submitting requests to many hosts. Transport answers at once, so only
+ * admission and hand-off are measured.
+ *
+ * @author nk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class SchedulerBenchmark {
+  private static final int MAX_REQUESTS = 8;
+  private static final int HOSTS = 16;
+
+  @Param({"deque", "striped"})
+  public String scheduler;
+
+  private ExecutorService executorService;
+  private NetworkDispatcher dispatcher;
+  private DequeScheduler dequeScheduler;
+  private Request[] requests;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    HttpClient client = new HttpClient();
+    client.transport(new Transport() {
+      @Override public Exchange newExchange(Request request, int connectTimeout,
+          int readTimeout) {
+        return new Exchange() {
+          @Override public Response execute() {
+            return new Response(200, Headers.EMPTY, new ByteArrayInputStream(new byte[0]));
+          }
+
+          @Override public void cancel() {
+          }
+        };
+      }
+    });
+    executorService = NetworkDispatcher.platformThreadExecutor();
+    if (scheduler.equals("deque")) {
+      dequeScheduler = new DequeScheduler(client, executorService);
+    } else {
+      dispatcher = new NetworkDispatcher(client, MAX_REQUESTS, MAX_REQUESTS, executorService);
+    }
+    requests = new Request[HOSTS];
+    for (int i = 0; i < HOSTS; i++) {
+      requests[i] = new Request.Builder().url("http://host" + i + ".test/").build();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Benchmark
+  public void execute() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    NetworkDispatcher.Callback<Response> callback = new NetworkDispatcher.Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        response.close();
+        done.countDown();
+      }
+
+      @Override public void onFailure(IOException e) {
+        done.countDown();
+      }
+    };
+    Request request = requests[(int) (Thread.currentThread().getId() % HOSTS)];
+    if (dequeScheduler != null) {
+      dequeScheduler.execute(request, callback);
+    } else {
+      dispatcher.execute(request, callback);
+    }
+    done.await();
+  }
+
+  /**
+   * Scheduler {@link NetworkDispatcher} used before, running and waiting deques behind one
+   * global limit. The original touched deques outside its lock and lost tasks under contention,
+   * so here every access holds the lock, otherwise benchmark threads would hang.
+   */
+  static final class DequeScheduler {
+    private final Object lock = new Object();
+    private final Deque<Runnable> waiting = new ArrayDeque<>();
+    private final HttpClient httpClient;
+    private final ExecutorService executorService;
+    private int running;
+
+    DequeScheduler(HttpClient httpClient, ExecutorService executorService) {
+      this.httpClient = httpClient;
+      this.executorService = executorService;
+    }
+
+    void execute(final Request request, final NetworkDispatcher.Callback<Response> callback) {
+      Runnable task = new Runnable() {
+        @Override public void run() {
+          try {
+            callback.onSuccess(httpClient.call(request).execute());
+          } catch (IOException e) {
+            callback.onFailure(e);
+          }
+          finished();
+        }
+      };
+      synchronized (lock) {
+        if (running >= MAX_REQUESTS) {
+          waiting.add(task);
+          return;
+        }
+        running++;
+      }
+      executorService.execute(task);
+    }
+
+    private void finished() {
+      Runnable next;
+      synchronized (lock) {
+        next = waiting.poll();
+        if (next == null) {
+          running--;
+          return;
+        }
+      }
+      executorService.execute(next);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 10k concurrent requests which each block for 100 ms, dispatched on platform threads against
+ * virtual threads. Transport only sleeps, so the difference is thread cost alone. Virtual
+ * variant needs JDK 21 and fails fast on older runtimes.
+ *
+ * @author nk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VirtualThreadBenchmark {
+  private static final int REQUESTS = 10000;
+  private static final long LATENCY_MILLIS = 100;
+
+  @Param({"platform", "virtual"})
+  public String threads;
+
+  private ExecutorService executor;
+  private NetworkDispatcher dispatcher;
+  private Request request;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    HttpClient client = new HttpClient();
+    client.transport(new SlowTransport());
+    executor = threads.equals("virtual")
+        ? NetworkDispatcher.virtualThreadExecutor() : NetworkDispatcher.platformThreadExecutor();
+    dispatcher = new NetworkDispatcher(client, REQUESTS, REQUESTS, executor);
+    request = new Request.Builder().method(HttpMethod.GET).url("http://slow.test/").build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public void slowRequests() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(REQUESTS);
+    NetworkDispatcher.Callback<Response> callback = new NetworkDispatcher.Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        done.countDown();
+      }
+
+      @Override public void onFailure(IOException e) {
+        done.countDown();
+      }
+    };
+    for (int i = 0; i < REQUESTS; i++) {
+      dispatcher.execute(request, callback);
+    }
+    done.await();
+  }
+
+  private static final class SlowTransport implements Transport {
+    @Override public Exchange newExchange(Request request, int connectTimeout,
+        int readTimeout) {
+      return new Exchange() {
+        @Override public Response execute() throws IOException {
+          try {
+            Thread.sleep(LATENCY_MILLIS);
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+          return new Response(200, Headers.EMPTY, new ByteArrayInputStream(new byte[0]));
+        }
+
+        @Override public void cancel() {
+        }
+      };
+    }
+  }
+}
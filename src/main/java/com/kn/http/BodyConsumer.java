@@ -0,0 +1,40 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.Response;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives response body chunk by chunk. Nothing is read from the connection until consumer
+ * asks for chunks with {@link Demand#request(long)}, so a slow consumer leaves bytes in the
+ * socket and TCP flow control slows the server down, instead of body piling up on the heap.
+ * Only one chunk of up to {@link BufferPool#ARRAY_SIZE} bytes is held at a time.
+ *
+ * <p>Calls are never concurrent. {@link #onResponse} runs on the thread which received the
+ * response, the rest on threads of the executor given to
+ * {@link Response#subscribe(BodyConsumer, java.util.concurrent.Executor)}.
+ *
+ * @author nk
+ */
+public interface BodyConsumer {
+
+  /** Headers arrived, request chunks with demand now or later from any thread */
+  void onResponse(Response response, Demand demand);
+
+  /** Next part of body, buffer is reused once this returns so copy what should be kept */
+  void onChunk(ByteBuffer chunk);
+
+  /** Body was read to the end, connection went back to the pool */
+  void onComplete();
+
+  /** Call or body read failed, not called after {@link Demand#cancel()} */
+  void onFailure(IOException e);
+
+  interface Demand {
+    /** Asks for n more chunks on top of those requested before, may be called from onChunk */
+    void request(long n);
+
+    /** Stops reading and closes body, no more calls follow except one already running */
+    void cancel();
+  }
+}
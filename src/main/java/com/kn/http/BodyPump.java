@@ -0,0 +1,132 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads body into one pooled buffer as long as {@link BodyConsumer} has demand. Reads run on
+ * executor, at most one at a time. Demand which arrives while a read loop runs is picked up by
+ * that loop, so request from inside onChunk does not recurse.
+ *
+ * @author nk
+ */
+final class BodyPump implements BodyConsumer.Demand, Runnable {
+  private final InputStream body;
+  private final BodyConsumer consumer;
+  private final Executor executor;
+  private final AtomicLong demand = new AtomicLong();
+  /** Number of wake ups since read loop last looked, loop runs while it is not 0 */
+  private final AtomicInteger pending = new AtomicInteger();
+  private volatile boolean canceled;
+  private boolean finished;
+  private byte[] array;
+  private ByteBuffer chunk;
+
+  private BodyPump(InputStream body, BodyConsumer consumer, Executor executor) {
+    this.body = body;
+    this.consumer = consumer;
+    this.executor = executor;
+  }
+
+  /** Pump of response body, response without body reads as empty */
+  static BodyPump of(Response response, BodyConsumer consumer, Executor executor) {
+    InputStream body = response.stream();
+    return new BodyPump(body != null ? body : new ByteArrayInputStream(new byte[0]), consumer,
+        executor);
+  }
+
+  @Override public void request(long n) {
+    if (n <= 0) throw new IllegalArgumentException("n <= 0");
+    long current;
+    long updated;
+    do {
+      current = demand.get();
+      updated = current + n;
+      if (updated < 0) updated = Long.MAX_VALUE;
+    } while (!demand.compareAndSet(current, updated));
+    wakeUp();
+  }
+
+  @Override public void cancel() {
+    canceled = true;
+    // aborts read in progress, loop then releases buffer
+    HttpClient.closeQuietly(body);
+    wakeUp();
+  }
+
+  private void wakeUp() {
+    if (pending.getAndIncrement() != 0) return;
+    try {
+      executor.execute(this);
+    } catch (RejectedExecutionException e) {
+      canceled = true;
+      HttpClient.closeQuietly(body);
+      consumer.onFailure(new IOException("Executor rejected body read", e));
+    }
+  }
+
+  @Override public void run() {
+    int missed = 1;
+    do {
+      drain();
+      missed = pending.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void drain() {
+    while (!finished) {
+      if (canceled) {
+        finish();
+        return;
+      }
+      if (demand.get() == 0) return;
+      if (array == null) {
+        array = BufferPool.shared().takeArray();
+        chunk = ByteBuffer.wrap(array);
+      }
+
+      int read;
+      try {
+        read = body.read(array, 0, array.length);
+      } catch (IOException e) {
+        finish();
+        if (!canceled) consumer.onFailure(e);
+        return;
+      }
+      if (read == -1) {
+        finish();
+        if (!canceled) consumer.onComplete();
+        return;
+      }
+      if (read == 0) continue;
+
+      demand.decrementAndGet();
+      chunk.clear();
+      chunk.limit(read);
+      try {
+        consumer.onChunk(chunk);
+      } catch (RuntimeException | Error e) {
+        canceled = true;
+        finish();
+        throw e;
+      }
+    }
+  }
+
+  private void finish() {
+    finished = true;
+    HttpClient.closeQuietly(body);
+    if (array != null) {
+      BufferPool.shared().releaseArray(array);
+      array = null;
+      chunk = null;
+    }
+  }
+}
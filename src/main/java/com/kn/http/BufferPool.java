@@ -0,0 +1,168 @@
+package com.kn.http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Inflater;
+
+/**
+ * Recycles fixed size I/O buffers used for request and response bodies, and inflaters which
+ * decode compressed responses, each of which holds native memory. Both are kept in
+ * stripes picked by thread id, so that concurrent threads rarely contend for the same lock.
+ * Buffer which is not returned is simply garbage collected.
+ *
+ * @author nk
+ */
+public final class BufferPool {
+  static final int ARRAY_SIZE = 1024 * 16;
+  private static final int ARRAYS_PER_STRIPE = 8;
+  private static final int INFLATERS_PER_STRIPE = 4;
+
+  private static final BufferPool SHARED =
+      new BufferPool(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+  private final Stripe[] stripes;
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+
+  BufferPool(int stripeCount) {
+    if (stripeCount <= 0) throw new IllegalArgumentException("stripeCount <= 0");
+    stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /** Pool shared by every client in this process */
+  public static BufferPool shared() {
+    return SHARED;
+  }
+
+  /** Takes heap buffer of {@link #ARRAY_SIZE} bytes */
+  byte[] takeArray() {
+    Stripe stripe = stripe();
+    byte[] array;
+    synchronized (stripe) {
+      array = stripe.arrayCount > 0 ? stripe.arrays[--stripe.arrayCount] : null;
+      if (array != null) stripe.arrays[stripe.arrayCount] = null;
+    }
+    if (array == null) {
+      missCount.increment();
+      return new byte[ARRAY_SIZE];
+    }
+    hitCount.increment();
+    return array;
+  }
+
+  /** Returns buffer to the pool, caller must not touch it afterwards */
+  void releaseArray(byte[] array) {
+    if (array == null || array.length != ARRAY_SIZE) return;
+    Stripe stripe = stripe();
+    synchronized (stripe) {
+      if (stripe.arrayCount < ARRAYS_PER_STRIPE) stripe.arrays[stripe.arrayCount++] = array;
+    }
+  }
+
+  /** Takes inflater of raw deflate data, caller parses gzip or zlib wrapper itself */
+  Inflater takeInflater() {
+    Stripe stripe = stripe();
+    Inflater inflater;
+    synchronized (stripe) {
+      inflater = stripe.inflaterCount > 0 ? stripe.inflaters[--stripe.inflaterCount] : null;
+      if (inflater != null) stripe.inflaters[stripe.inflaterCount] = null;
+    }
+    if (inflater == null) {
+      missCount.increment();
+      return new Inflater(true);
+    }
+    hitCount.increment();
+    return inflater;
+  }
+
+  /** Resets inflater and returns it to the pool, inflater which does not fit is ended */
+  void releaseInflater(Inflater inflater) {
+    if (inflater == null) return;
+    inflater.reset();
+    Stripe stripe = stripe();
+    synchronized (stripe) {
+      if (stripe.inflaterCount < INFLATERS_PER_STRIPE) {
+        stripe.inflaters[stripe.inflaterCount++] = inflater;
+        return;
+      }
+    }
+    inflater.end();
+  }
+
+  /** Number of times buffer or inflater came from the pool */
+  public long hitCount() {
+    return hitCount.sum();
+  }
+
+  /** Number of times buffer or inflater had to be allocated */
+  public long missCount() {
+    return missCount.sum();
+  }
+
+  public double hitRate() {
+    long hits = hitCount.sum();
+    long total = hits + missCount.sum();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /** Bytes of buffers currently held by the pool, native memory of inflaters is not counted */
+  public long pooledBytes() {
+    long bytes = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        bytes += (long) stripe.arrayCount * ARRAY_SIZE;
+      }
+    }
+    return bytes;
+  }
+
+  /** Buffered stream whose buffer comes from the pool and goes back on close */
+  BufferedInputStream buffered(InputStream in) {
+    return new PooledBufferedInputStream(in, this);
+  }
+
+  /** Gzip stream whose input buffer and inflater come from the pool and go back on close */
+  InputStream gzip(InputStream in) {
+    return new ContentEncoding.InflatingStream(in, this, ContentEncoding.InflatingStream.GZIP);
+  }
+
+  private Stripe stripe() {
+    return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+  }
+
+  private static final class Stripe {
+    final byte[][] arrays = new byte[ARRAYS_PER_STRIPE][];
+    int arrayCount;
+    final Inflater[] inflaters = new Inflater[INFLATERS_PER_STRIPE];
+    int inflaterCount;
+  }
+
+  private static final class PooledBufferedInputStream extends BufferedInputStream {
+    private final BufferPool pool;
+    private byte[] pooled;
+
+    PooledBufferedInputStream(InputStream in, BufferPool pool) {
+      // tiny buffer from super constructor is replaced right away
+      super(in, 1);
+      this.pool = pool;
+      this.pooled = pool.takeArray();
+      this.buf = pooled;
+    }
+
+    @Override public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        synchronized (this) {
+          pool.releaseArray(pooled);
+          pooled = null;
+        }
+      }
+    }
+  }
+}
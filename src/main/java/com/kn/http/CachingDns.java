@@ -0,0 +1,136 @@
+package com.kn.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps resolved addresses in memory for ttl. Concurrent lookups of the same host share one
+ * resolution. Entry which expired less than ttl ago is still returned at once while it is
+ * refreshed in background, so that only the very first request to a host waits for DNS.
+ * Failed lookups are not cached.
+ *
+ * <p>{@link InetAddress} does not expose TTL of DNS records, ttl here is the same for every
+ * host. Keep JVM cache short or disabled when this one is used, otherwise refreshes get stale
+ * answers from it.
+ *
+ * @author nk
+ */
+public final class CachingDns implements Dns {
+  private static final ExecutorService REFRESHER = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+      60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+    @Override public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "http-dns-refresh");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final Dns delegate;
+  private final long ttlNanos;
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, CompletableFuture<List<InetAddress>>> lookups =
+      new ConcurrentHashMap<>();
+
+  public CachingDns(long ttl, TimeUnit unit) {
+    this(Dns.SYSTEM, ttl, unit);
+  }
+
+  public CachingDns(Dns delegate, long ttl, TimeUnit unit) {
+    if (delegate == null) throw new NullPointerException("Dns is null");
+    if (unit == null) throw new NullPointerException("TimeUnit is null");
+    if (ttl <= 0) throw new IllegalArgumentException("ttl <= 0");
+    this.delegate = delegate;
+    this.ttlNanos = unit.toNanos(ttl);
+  }
+
+  @Override public List<InetAddress> lookup(String host) throws UnknownHostException {
+    if (host == null) throw new UnknownHostException("Host is null");
+    final String key = host.toLowerCase(Locale.US);
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      long age = System.nanoTime() - entry.resolvedAtNanos;
+      if (age < ttlNanos) return entry.addresses;
+      if (age < ttlNanos * 2) {
+        // refresh which is already running will do
+        if (!lookups.containsKey(key)) refreshLater(key);
+        return entry.addresses;
+      }
+    }
+    return resolve(key);
+  }
+
+  /** Forgets every cached address */
+  public void clear() {
+    entries.clear();
+  }
+
+  private void refreshLater(final String host) {
+    REFRESHER.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          resolve(host);
+        } catch (UnknownHostException ignored) {
+          // stale entry is served till it is too old, then callers resolve it themselves
+        }
+      }
+    });
+  }
+
+  /** Resolves host, or waits for resolution already running */
+  private List<InetAddress> resolve(String host) throws UnknownHostException {
+    CompletableFuture<List<InetAddress>> lookup = new CompletableFuture<>();
+    CompletableFuture<List<InetAddress>> running = lookups.putIfAbsent(host, lookup);
+    if (running != null) return await(host, running);
+
+    try {
+      List<InetAddress> addresses =
+          Collections.unmodifiableList(new ArrayList<>(delegate.lookup(host)));
+      if (addresses.isEmpty()) throw new UnknownHostException(host);
+      entries.put(host, new Entry(addresses, System.nanoTime()));
+      lookup.complete(addresses);
+      return addresses;
+    } catch (UnknownHostException | RuntimeException e) {
+      lookup.completeExceptionally(e);
+      throw e;
+    } finally {
+      lookups.remove(host, lookup);
+    }
+  }
+
+  private static List<InetAddress> await(String host,
+      CompletableFuture<List<InetAddress>> lookup) throws UnknownHostException {
+    try {
+      return lookup.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UnknownHostException("Interrupted while resolving " + host);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UnknownHostException) throw (UnknownHostException) cause;
+      throw (RuntimeException) cause;
+    }
+  }
+
+  private static final class Entry {
+    final List<InetAddress> addresses;
+    final long resolvedAtNanos;
+
+    Entry(List<InetAddress> addresses, long resolvedAtNanos) {
+      this.addresses = addresses;
+      this.resolvedAtNanos = resolvedAtNanos;
+    }
+  }
+}
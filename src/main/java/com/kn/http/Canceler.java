@@ -0,0 +1,42 @@
+package com.kn.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Cancel state of a single exchange. Socket which is being connected is attached to it, so that
+ * cancel interrupts connect and TLS handshake right away instead of after connect timeout.
+ *
+ * @author nk
+ */
+final class Canceler {
+  private volatile boolean canceled;
+  private volatile Closeable attached;
+
+  boolean isCanceled() {
+    return canceled;
+  }
+
+  void throwIfCanceled() throws IOException {
+    if (canceled) throw new IOException("Canceled");
+  }
+
+  /** Closes closeable on cancel, or right away when already canceled */
+  void attach(Closeable closeable) throws IOException {
+    attached = closeable;
+    // cancel sets flag before it reads attached, so one of us always closes
+    if (canceled) {
+      HttpClient.closeQuietly(closeable);
+      throw new IOException("Canceled");
+    }
+  }
+
+  void detach() {
+    attached = null;
+  }
+
+  void cancel() {
+    canceled = true;
+    HttpClient.closeQuietly(attached);
+  }
+}
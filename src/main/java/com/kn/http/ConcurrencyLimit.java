@@ -0,0 +1,150 @@
+package com.kn.http;
+
+/**
+ * Limit of concurrent requests to a single host, {@link NetworkDispatcher} creates one per host
+ * with {@link Factory}. Adaptive limits learn from samples of finished requests, they grow while
+ * host answers quickly and shrink when latency rises or requests fail.
+ *
+ * @author nk
+ */
+public abstract class ConcurrencyLimit {
+
+  public interface Factory {
+    ConcurrencyLimit create(String host);
+  }
+
+  /** Current limit, read on every admission so it must be cheap */
+  public abstract int limit();
+
+  /**
+   * Called after every request which was not canceled
+   *
+   * @param rttNanos time from request start till response headers or failure
+   * @param inFlight requests running on host when this one started, itself included
+   * @param dropped request failed or host reported overload with 429 or 503
+   */
+  public abstract void onSample(long rttNanos, int inFlight, boolean dropped);
+
+  /** Limit which never changes */
+  public static Factory fixed(final int limit) {
+    if (limit <= 0) throw new IllegalArgumentException("limit <= 0");
+    return new Factory() {
+      @Override public ConcurrencyLimit create(String host) {
+        return new ConcurrencyLimit() {
+          @Override public int limit() {
+            return limit;
+          }
+
+          @Override public void onSample(long rttNanos, int inFlight, boolean dropped) {
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Additive increase, multiplicative decrease. Limit grows by one after every successful
+   * request which found the host at least half busy, and is cut by 10% on every drop.
+   * Requests slower than timeoutMillis count as dropped.
+   */
+  public static Factory aimd(final int initialLimit, final int maxLimit,
+      final long timeoutMillis) {
+    checkLimits(initialLimit, maxLimit);
+    if (timeoutMillis <= 0) throw new IllegalArgumentException("timeoutMillis <= 0");
+    return new Factory() {
+      @Override public ConcurrencyLimit create(String host) {
+        return new AimdLimit(initialLimit, maxLimit, timeoutMillis * 1000000);
+      }
+    };
+  }
+
+  /**
+   * Gradient limit, similar to TCP Vegas. Compares each sample with long term average latency,
+   * limit follows their ratio, so it shrinks as soon as requests start queueing on the server
+   * and grows while latency stays flat. Drops cut limit by 10%.
+   */
+  public static Factory gradient(final int initialLimit, final int maxLimit) {
+    checkLimits(initialLimit, maxLimit);
+    return new Factory() {
+      @Override public ConcurrencyLimit create(String host) {
+        return new GradientLimit(initialLimit, maxLimit);
+      }
+    };
+  }
+
+  private static void checkLimits(int initialLimit, int maxLimit) {
+    if (initialLimit <= 0) throw new IllegalArgumentException("initialLimit <= 0");
+    if (maxLimit < initialLimit) throw new IllegalArgumentException("maxLimit < initialLimit");
+  }
+
+  static final class AimdLimit extends ConcurrencyLimit {
+    static final double BACKOFF_RATIO = 0.9;
+
+    private final int maxLimit;
+    private final long timeoutNanos;
+    private volatile int limit;
+
+    AimdLimit(int initialLimit, int maxLimit, long timeoutNanos) {
+      this.limit = initialLimit;
+      this.maxLimit = maxLimit;
+      this.timeoutNanos = timeoutNanos;
+    }
+
+    @Override public int limit() {
+      return limit;
+    }
+
+    @Override public synchronized void onSample(long rttNanos, int inFlight, boolean dropped) {
+      if (dropped || rttNanos > timeoutNanos) {
+        limit = Math.max(1, (int) (limit * BACKOFF_RATIO));
+      } else if (inFlight * 2 >= limit) {
+        // idle host proves nothing, otherwise limit would grow without bound
+        limit = Math.min(maxLimit, limit + 1);
+      }
+    }
+  }
+
+  static final class GradientLimit extends ConcurrencyLimit {
+    static final double BACKOFF_RATIO = 0.9;
+    /** Latency may rise by half before limit starts shrinking */
+    static final double TOLERANCE = 1.5;
+    static final double SMOOTHING = 0.2;
+    static final int LONG_WINDOW = 600;
+
+    private final int maxLimit;
+    private double estimatedLimit;
+    private double longRttNanos;
+    private long samples;
+    private volatile int limit;
+
+    GradientLimit(int initialLimit, int maxLimit) {
+      this.estimatedLimit = initialLimit;
+      this.limit = initialLimit;
+      this.maxLimit = maxLimit;
+    }
+
+    @Override public int limit() {
+      return limit;
+    }
+
+    @Override public synchronized void onSample(long rttNanos, int inFlight, boolean dropped) {
+      rttNanos = Math.max(1, rttNanos);
+      // average over warm up is exact, afterwards it is exponential
+      double factor = 1.0 / Math.min(++samples, LONG_WINDOW);
+      longRttNanos += (rttNanos - longRttNanos) * factor;
+      // long term average drifted above current latency, recover from it quickly
+      if (longRttNanos / rttNanos > 2) longRttNanos *= 0.95;
+
+      if (dropped) {
+        estimatedLimit = Math.max(1, estimatedLimit * BACKOFF_RATIO);
+      } else if (inFlight * 2 >= estimatedLimit) {
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / rttNanos));
+        // square root of limit worth of requests may queue on the server
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        estimatedLimit = Math.max(1, Math.min(maxLimit,
+            estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+      }
+      limit = (int) estimatedLimit;
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package com.kn.http;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Single HTTP/1.1 socket, either plain or TLS, which may serve many exchanges one after another.
+ *
+ * @author nk
+ */
+final class Connection {
+  /** Head start of each address over the next one, as recommended by RFC 8305 */
+  static final long ATTEMPT_DELAY_MILLIS = 250;
+
+  /** Runs connect attempts racing the one made on caller thread */
+  private static final ExecutorService CONNECTORS = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+      60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+    @Override public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "http-connect");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  final Address address;
+  final Socket socket;
+  final Http1Parser.Source in;
+  final OutputStream out;
+  /** Reused for head of every response read from this connection */
+  final Http1Parser parser = new Http1Parser(Http1Parser.Mode.RESPONSE);
+  long idleAtNanos;
+
+  private Connection(Address address, Socket socket) throws IOException {
+    this.address = address;
+    this.socket = socket;
+    this.in = new Http1Parser.Source(socket.getInputStream(), 1024 * 8);
+    this.out = new BufferedOutputStream(socket.getOutputStream(), 1024 * 8);
+  }
+
+  static Connection connect(Address address, SSLSocketFactory sslSocketFactory, Dns dns,
+      int connectTimeout, int readTimeout, EventListener listener, Canceler canceler)
+      throws IOException {
+    Socket socket = openSocket(address, sslSocketFactory, dns, connectTimeout, readTimeout, null,
+        listener, canceler);
+    try {
+      return new Connection(address, socket);
+    } catch (IOException exception) {
+      HttpClient.closeQuietly(socket);
+      throw exception;
+    }
+  }
+
+  /**
+   * Connects socket, doing TLS handshake for secure addresses. Canceling canceler closes socket
+   * being connected, which makes connect or handshake fail at once.
+   *
+   * <p>When host has several addresses they are tried in parallel, alternating between IPv6
+   * and IPv4, each one {@link #ATTEMPT_DELAY_MILLIS} after the previous one or right after it
+   * failed. First socket to connect wins, the others are closed. This way a broken address
+   * family costs a quarter of a second rather than whole connect timeout. Listener sees one
+   * connect, started with the first address and ended with the winning one.
+   *
+   * @param applicationProtocols protocols offered via ALPN, ignored on JDKs without ALPN
+   */
+  static Socket openSocket(Address address, SSLSocketFactory sslSocketFactory, Dns dns,
+      int connectTimeout, int readTimeout, String[] applicationProtocols, EventListener listener,
+      Canceler canceler) throws IOException {
+    listener.dnsStart(address.host);
+    List<InetAddress> inetAddresses = interleave(dns.lookup(address.host));
+    listener.dnsEnd(address.host, inetAddresses);
+
+    InetSocketAddress socketAddress = new InetSocketAddress(inetAddresses.get(0), address.port);
+    Socket socket = null;
+    try {
+      listener.connectStart(socketAddress);
+      if (inetAddresses.size() == 1) {
+        socket = new Socket();
+        canceler.attach(socket);
+        socket.setTcpNoDelay(true);
+        socket.connect(socketAddress, connectTimeout);
+      } else {
+        ConnectRace race = new ConnectRace(inetAddresses, address.port, connectTimeout);
+        canceler.attach(race);
+        socket = race.run();
+        socketAddress = (InetSocketAddress) socket.getRemoteSocketAddress();
+        canceler.attach(socket);
+      }
+      socket.setSoTimeout(readTimeout);
+
+      if (address.secure) {
+        listener.secureConnectStart();
+        SSLSocket sslSocket =
+            (SSLSocket) sslSocketFactory.createSocket(socket, address.host, address.port, true);
+        SSLParameters parameters = sslSocket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        if (applicationProtocols != null) {
+          invokeQuietly(SSLParameters.class, parameters, "setApplicationProtocols",
+              String[].class, applicationProtocols);
+        }
+        sslSocket.setSSLParameters(parameters);
+        long handshakeStartMillis = System.currentTimeMillis();
+        sslSocket.startHandshake();
+        socket = sslSocket;
+        listener.secureConnectEnd(applicationProtocol(socket),
+            TlsConfig.isResumed(sslSocket, handshakeStartMillis));
+      }
+      listener.connectEnd(socketAddress);
+      return socket;
+    } catch (IOException exception) {
+      HttpClient.closeQuietly(socket);
+      listener.connectFailed(socketAddress, exception);
+      throw exception;
+    } finally {
+      canceler.detach();
+    }
+  }
+
+  /** Alternates address families, keeping family of the first address first */
+  static List<InetAddress> interleave(List<InetAddress> addresses) {
+    if (addresses.isEmpty()) throw new IllegalArgumentException("Dns returned no addresses");
+    if (addresses.size() == 1) return addresses;
+    boolean firstIsV6 = addresses.get(0) instanceof Inet6Address;
+    List<InetAddress> preferred = new ArrayList<>();
+    List<InetAddress> other = new ArrayList<>();
+    for (InetAddress address : addresses) {
+      (address instanceof Inet6Address == firstIsV6 ? preferred : other).add(address);
+    }
+    List<InetAddress> result = new ArrayList<>(addresses.size());
+    for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+      if (i < preferred.size()) result.add(preferred.get(i));
+      if (i < other.size()) result.add(other.get(i));
+    }
+    return result;
+  }
+
+  /**
+   * Staggered parallel connect to several addresses of one host. Closing race closes every
+   * socket it opened, including the winner if it was not handed out yet.
+   */
+  private static final class ConnectRace implements Closeable {
+    private final List<InetAddress> addresses;
+    private final int port;
+    private final int connectTimeout;
+    /** Connected sockets and failures, in order of arrival */
+    private final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+    /** Guarded by this */
+    private final List<Socket> sockets = new ArrayList<>();
+    private boolean closed;
+
+    ConnectRace(List<InetAddress> addresses, int port, int connectTimeout) {
+      this.addresses = addresses;
+      this.port = port;
+      this.connectTimeout = connectTimeout;
+    }
+
+    Socket run() throws IOException {
+      int started = 0;
+      int finished = 0;
+      IOException failure = null;
+      start(addresses.get(started++));
+      try {
+        while (true) {
+          Object result = started < addresses.size()
+              ? results.poll(ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+              : results.take();
+          if (result instanceof Socket) {
+            Socket winner = (Socket) result;
+            closeAllBut(winner);
+            return winner;
+          }
+          if (result != null) {
+            finished++;
+            if (failure == null) failure = (IOException) result;
+          }
+          if (started < addresses.size()) {
+            start(addresses.get(started++));
+          } else if (finished == started) {
+            throw failure;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+        throw new InterruptedIOException("Interrupted while connecting");
+      }
+    }
+
+    private void start(InetAddress address) {
+      final InetSocketAddress socketAddress = new InetSocketAddress(address, port);
+      final Socket socket = new Socket();
+      synchronized (this) {
+        sockets.add(socket);
+        if (closed) HttpClient.closeQuietly(socket);
+      }
+      CONNECTORS.execute(new Runnable() {
+        @Override public void run() {
+          try {
+            socket.setTcpNoDelay(true);
+            socket.connect(socketAddress, connectTimeout);
+            results.add(socket);
+          } catch (IOException e) {
+            HttpClient.closeQuietly(socket);
+            results.add(e);
+          }
+        }
+      });
+    }
+
+    private void closeAllBut(Socket winner) {
+      List<Socket> losers;
+      synchronized (this) {
+        closed = true;
+        losers = new ArrayList<>(sockets);
+      }
+      for (Socket socket : losers) {
+        if (socket != winner) HttpClient.closeQuietly(socket);
+      }
+    }
+
+    @Override public void close() {
+      closeAllBut(null);
+    }
+  }
+
+  /** Protocol negotiated via ALPN or null when there was no negotiation */
+  static String applicationProtocol(Socket socket) {
+    if (!(socket instanceof SSLSocket)) return null;
+    Object protocol = invokeQuietly(SSLSocket.class, socket, "getApplicationProtocol", null, null);
+    return protocol instanceof String && ((String) protocol).length() > 0
+        ? (String) protocol : null;
+  }
+
+  /** ALPN api appeared in JDK 9 and 8u252, library is built for plain JDK 8 */
+  private static Object invokeQuietly(Class<?> type, Object target, String method,
+      Class<?> parameterType, Object argument) {
+    try {
+      if (parameterType == null) return type.getMethod(method).invoke(target);
+      return type.getMethod(method, parameterType).invoke(target, argument);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /** Checks that peer did not close idle socket and did not send anything unexpected */
+  boolean isHealthy() {
+    if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+    try {
+      int readTimeout = socket.getSoTimeout();
+      try {
+        socket.setSoTimeout(1);
+        in.mark(1);
+        if (in.read() == -1) return false;
+        in.reset();
+        // idle connection must not have pending bytes
+        return false;
+      } finally {
+        socket.setSoTimeout(readTimeout);
+      }
+    } catch (SocketTimeoutException expected) {
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  void readTimeout(int readTimeout) throws IOException {
+    socket.setSoTimeout(readTimeout);
+  }
+
+  void close() {
+    HttpClient.closeQuietly(socket);
+  }
+
+  /** Connections are interchangeable only when they lead to the same scheme, host and port */
+  static final class Address {
+    final boolean secure;
+    final String host;
+    final int port;
+
+    Address(boolean secure, String host, int port) {
+      this.secure = secure;
+      this.host = host;
+      this.port = port;
+    }
+
+    static Address of(URL url) {
+      boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+      int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+      return new Address(secure, url.getHost(), port);
+    }
+
+    @Override public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Address)) return false;
+      Address other = (Address) o;
+      return secure == other.secure && port == other.port && host.equalsIgnoreCase(other.host);
+    }
+
+    @Override public int hashCode() {
+      return 31 * (31 * (secure ? 1 : 0) + host.toLowerCase().hashCode()) + port;
+    }
+
+    @Override public String toString() {
+      return (secure ? "https://" : "http://") + host + ":" + port;
+    }
+  }
+}
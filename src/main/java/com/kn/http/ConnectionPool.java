@@ -0,0 +1,132 @@
+package com.kn.http;
+
+import com.kn.http.Connection.Address;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps idle keep-alive connections grouped per host so that repeated calls to the same host
+ * skip TCP and TLS handshakes. Connections idle for longer than keep-alive duration are evicted
+ * lazily, on every take and release, or explicitly with {@link #evictAll()}.
+ *
+ * @author nk
+ */
+public final class ConnectionPool {
+  static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+  static final long DEFAULT_KEEP_ALIVE_MINUTES = 5;
+
+  private final Object LOCK = new Object();
+  private final Map<Address, Deque<Connection>> idle = new HashMap<>();
+  private final int maxIdleConnections;
+  private final long keepAliveNanos;
+
+  public ConnectionPool() {
+    this(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * @param maxIdleConnections max idle connections kept per host, 0 disables pooling
+   * @param keepAliveDuration how long connection may stay idle before it is evicted
+   */
+  public ConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit) {
+    if (maxIdleConnections < 0) {
+      throw new IllegalArgumentException("maxIdleConnections < 0");
+    }
+    if (keepAliveDuration <= 0) {
+      throw new IllegalArgumentException("keepAliveDuration <= 0");
+    }
+    this.maxIdleConnections = maxIdleConnections;
+    this.keepAliveNanos = timeUnit.toNanos(keepAliveDuration);
+  }
+
+  /** Returns healthy idle connection to address or null if there is none */
+  Connection take(Address address) {
+    while (true) {
+      Connection connection;
+      List<Connection> evicted;
+      synchronized (LOCK) {
+        evicted = evict(System.nanoTime());
+        Deque<Connection> connections = idle.get(address);
+        // most recently used connection is the least likely to be closed by server
+        connection = connections != null ? connections.pollFirst() : null;
+        if (connections != null && connections.isEmpty()) idle.remove(address);
+      }
+      closeAll(evicted);
+
+      if (connection == null) return null;
+      if (connection.isHealthy()) return connection;
+      connection.close();
+    }
+  }
+
+  /** Takes back connection which finished its exchange and may serve another one */
+  void release(Connection connection) {
+    List<Connection> evicted;
+    synchronized (LOCK) {
+      long now = System.nanoTime();
+      evicted = evict(now);
+
+      Deque<Connection> connections = idle.get(connection.address);
+      if (connections == null) {
+        connections = new ArrayDeque<>();
+        idle.put(connection.address, connections);
+      }
+      connection.idleAtNanos = now;
+      connections.addFirst(connection);
+      while (connections.size() > maxIdleConnections) {
+        evicted.add(connections.pollLast());
+      }
+      if (connections.isEmpty()) idle.remove(connection.address);
+    }
+    closeAll(evicted);
+  }
+
+  public int idleConnectionCount() {
+    synchronized (LOCK) {
+      int count = 0;
+      for (Deque<Connection> connections : idle.values()) {
+        count += connections.size();
+      }
+      return count;
+    }
+  }
+
+  /** Closes every idle connection */
+  public void evictAll() {
+    List<Connection> evicted = new ArrayList<>();
+    synchronized (LOCK) {
+      for (Deque<Connection> connections : idle.values()) {
+        evicted.addAll(connections);
+      }
+      idle.clear();
+    }
+    closeAll(evicted);
+  }
+
+  /** Must be called under LOCK, returned connections should be closed outside of it */
+  private List<Connection> evict(long now) {
+    List<Connection> evicted = new ArrayList<>();
+    Iterator<Deque<Connection>> iterator = idle.values().iterator();
+    while (iterator.hasNext()) {
+      Deque<Connection> connections = iterator.next();
+      // deque is ordered from the most to the least recently used, expired ones sit at the tail
+      while (!connections.isEmpty() && now - connections.peekLast().idleAtNanos >= keepAliveNanos) {
+        evicted.add(connections.pollLast());
+      }
+      if (connections.isEmpty()) iterator.remove();
+    }
+    return evicted;
+  }
+
+  private static void closeAll(List<Connection> connections) {
+    for (Connection connection : connections) {
+      connection.close();
+    }
+  }
+}
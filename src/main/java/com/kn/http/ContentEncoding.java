@@ -0,0 +1,345 @@
+package com.kn.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Content codings of message bodies, RFC 7230 4.2. Responses in gzip and deflate are inflated
+ * straight into caller's buffer with pooled {@link Inflater} and input buffer, nothing is
+ * allocated per response. Other codings, such as br, have no decoder in JDK and are not
+ * requested, body of such response is handed out as is.
+ *
+ * @author nk
+ */
+final class ContentEncoding {
+  /** Codings we decode, sent in Accept-Encoding */
+  static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private ContentEncoding() {
+  }
+
+  /**
+   * Decodes body according to Content-Encoding header. Codings listed one after another were
+   * applied in that order and are decoded in reverse. Body is returned as is when any of them
+   * is unknown.
+   */
+  static InputStream decode(InputStream body, String contentEncoding, BufferPool pool) {
+    if (body == null || contentEncoding == null) return body;
+    String[] codings = contentEncoding.split(",");
+    for (String coding : codings) {
+      if (format(coding) == -1) return body;
+    }
+    for (int i = codings.length - 1; i >= 0; i--) {
+      int format = format(codings[i]);
+      if (format != InflatingStream.IDENTITY) body = new InflatingStream(body, pool, format);
+    }
+    return body;
+  }
+
+  private static int format(String coding) {
+    switch (coding.trim().toLowerCase(Locale.US)) {
+      case "gzip":
+      case "x-gzip":
+        return InflatingStream.GZIP;
+      case "deflate":
+        return InflatingStream.DEFLATE;
+      case "identity":
+      case "":
+        return InflatingStream.IDENTITY;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Inflates gzip or deflate body. Header is parsed on first read, so that empty body of HEAD
+   * or 204 response reads as empty instead of failing. Checksums are verified, gzip members
+   * which follow one another are read as one body, the same way gunzip does.
+   */
+  static final class InflatingStream extends InputStream {
+    static final int IDENTITY = 0;
+    static final int GZIP = 1;
+    /** zlib wrapped deflate per RFC, raw deflate which some servers send is accepted too */
+    static final int DEFLATE = 2;
+
+    private final InputStream in;
+    private final BufferPool pool;
+    private final int format;
+    private byte[] buffer;
+    private Inflater inflater;
+    /** Null for raw deflate, which has no trailer */
+    private Checksum checksum;
+    private final byte[] single = new byte[1];
+    /** Input bytes in buffer are [position, limit), those before position went to inflater */
+    private int position;
+    private int limit;
+    private boolean started;
+    private boolean finished;
+    private boolean closed;
+
+    InflatingStream(InputStream in, BufferPool pool, int format) {
+      this.in = in;
+      this.pool = pool;
+      this.format = format;
+    }
+
+    @Override public synchronized int read() throws IOException {
+      int read = read(single, 0, 1);
+      return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    /** Synchronized so that close from another thread never recycles buffer in use */
+    @Override public synchronized int read(byte[] target, int offset, int count)
+        throws IOException {
+      if (closed) throw new IOException("Stream closed");
+      if (offset < 0 || count < 0 || count > target.length - offset) {
+        throw new IndexOutOfBoundsException();
+      }
+      if (finished) return -1;
+      if (!started && !start()) return -1;
+      if (count == 0) return 0;
+
+      while (true) {
+        int inflated;
+        try {
+          inflated = inflater.inflate(target, offset, count);
+        } catch (DataFormatException e) {
+          throw new ZipException(e.getMessage());
+        }
+        if (inflated > 0) {
+          if (checksum != null) checksum.update(target, offset, inflated);
+          return inflated;
+        }
+        if (inflater.finished()) {
+          position = limit - inflater.getRemaining();
+          if (!nextMember()) {
+            finished = true;
+            return -1;
+          }
+        } else if (inflater.needsDictionary()) {
+          throw new ZipException("Preset dictionary is not supported");
+        } else if (inflater.needsInput()) {
+          if (!fill()) throw new EOFException("Compressed body ended too early");
+          inflater.setInput(buffer, position, limit - position);
+          position = limit;
+        }
+      }
+    }
+
+    /** Reads header of the first member, false when body is empty */
+    private boolean start() throws IOException {
+      started = true;
+      buffer = pool.takeArray();
+      if (!fill()) {
+        finished = true;
+        return false;
+      }
+      inflater = pool.takeInflater();
+      if (format == GZIP) {
+        checksum = new CRC32();
+        readGzipHeader();
+      } else {
+        readZlibHeader();
+      }
+      inflater.setInput(buffer, position, limit - position);
+      position = limit;
+      return true;
+    }
+
+    /** Verifies trailer of member which just ended, then starts next gzip member if any */
+    private boolean nextMember() throws IOException {
+      if (format == GZIP) {
+        long crc = readIntLe() & 0xffffffffL;
+        long size = readIntLe() & 0xffffffffL;
+        if (crc != checksum.getValue()) throw new ZipException("Corrupt gzip trailer, bad crc");
+        if (size != (inflater.getBytesWritten() & 0xffffffffL)) {
+          throw new ZipException("Corrupt gzip trailer, bad size");
+        }
+        // anything but another gzip member after trailer is ignored, as gunzip does
+        if (position == limit && !fill()) return false;
+        if (limit - position >= 2 && ((buffer[position] & 0xff)
+            | (buffer[position + 1] & 0xff) << 8) != GZIP_MAGIC) {
+          return false;
+        }
+        inflater.reset();
+        checksum.reset();
+        readGzipHeader();
+        inflater.setInput(buffer, position, limit - position);
+        position = limit;
+        return true;
+      }
+      if (checksum != null) {
+        long adler = (long) readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+        if (adler != checksum.getValue()) throw new ZipException("Corrupt deflate checksum");
+      }
+      return false;
+    }
+
+    private void readGzipHeader() throws IOException {
+      if (readShortLe() != GZIP_MAGIC) throw new ZipException("Not in gzip format");
+      if (readByte() != 8) throw new ZipException("Unsupported gzip compression method");
+      int flags = readByte();
+      skip(6); // modification time, extra flags and operating system
+      if ((flags & FEXTRA) != 0) skip(readShortLe());
+      if ((flags & FNAME) != 0) skipZeroTerminated();
+      if ((flags & FCOMMENT) != 0) skipZeroTerminated();
+      if ((flags & FHCRC) != 0) skip(2);
+    }
+
+    /** zlib header has compression method 8 and is divisible by 31, RFC 1950 */
+    private void readZlibHeader() throws IOException {
+      if (limit - position < 2) fillAtLeast(2);
+      int cmf = buffer[position] & 0xff;
+      int flg = buffer[position + 1] & 0xff;
+      if ((cmf & 0x0f) == 8 && (cmf << 8 | flg) % 31 == 0) {
+        if ((flg & 0x20) != 0) throw new ZipException("Preset dictionary is not supported");
+        position += 2;
+        checksum = new Adler32();
+      }
+      // otherwise it is raw deflate, which has no trailer to verify
+    }
+
+    private int readShortLe() throws IOException {
+      return readByte() | readByte() << 8;
+    }
+
+    private int readIntLe() throws IOException {
+      return readShortLe() | readShortLe() << 16;
+    }
+
+    private int readByte() throws IOException {
+      if (position == limit && !fill()) throw new EOFException("Compressed body ended too early");
+      return buffer[position++] & 0xff;
+    }
+
+    private void skip(int count) throws IOException {
+      for (int i = 0; i < count; i++) {
+        readByte();
+      }
+    }
+
+    private void skipZeroTerminated() throws IOException {
+      while (readByte() != 0) {
+      }
+    }
+
+    private void fillAtLeast(int count) throws IOException {
+      if (position > 0) {
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+      }
+      while (limit < count) {
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read == -1) throw new EOFException("Compressed body ended too early");
+        limit += read;
+      }
+    }
+
+    /** Refills empty buffer, false at the end of input */
+    private boolean fill() throws IOException {
+      int read;
+      do {
+        read = in.read(buffer, 0, buffer.length);
+      } while (read == 0);
+      if (read == -1) return false;
+      position = 0;
+      limit = read;
+      return true;
+    }
+
+    @Override public void close() throws IOException {
+      try {
+        in.close();
+      } finally {
+        synchronized (this) {
+          if (!closed) {
+            closed = true;
+            pool.releaseArray(buffer);
+            pool.releaseInflater(inflater);
+            buffer = null;
+            inflater = null;
+          }
+        }
+      }
+    }
+  }
+
+  /** Gzip encoding of another body, sent chunked since compressed length is not known */
+  static final class GzipBody extends RequestBody {
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final RequestBody body;
+
+    GzipBody(RequestBody body) {
+      this.body = body;
+    }
+
+    @Override public long contentLength() {
+      return -1;
+    }
+
+    @Override public boolean isRepeatable() {
+      return body.isRepeatable();
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      byte[] buffer = BufferPool.shared().takeArray();
+      try {
+        out.write(HEADER);
+        GzipSink sink = new GzipSink(out, deflater, buffer);
+        body.writeTo(sink);
+        sink.finish();
+        writeIntLe(out, (int) sink.crc.getValue());
+        writeIntLe(out, (int) deflater.getBytesRead());
+      } finally {
+        deflater.end();
+        BufferPool.shared().releaseArray(buffer);
+      }
+    }
+
+    private static void writeIntLe(OutputStream out, int value) throws IOException {
+      out.write(value);
+      out.write(value >>> 8);
+      out.write(value >>> 16);
+      out.write(value >>> 24);
+    }
+  }
+
+  /** Deflates into pooled buffer, never closes target */
+  private static final class GzipSink extends DeflaterOutputStream {
+    final CRC32 crc = new CRC32();
+
+    GzipSink(OutputStream out, Deflater deflater, byte[] buffer) {
+      super(out, deflater, 1);
+      this.buf = buffer;
+    }
+
+    @Override public void write(byte[] bytes, int offset, int count) throws IOException {
+      crc.update(bytes, offset, count);
+      super.write(bytes, offset, count);
+    }
+
+    @Override public void close() throws IOException {
+      finish();
+    }
+  }
+}
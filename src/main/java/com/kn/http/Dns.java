@@ -0,0 +1,29 @@
+package com.kn.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resolves host names for {@link SocketTransport} and {@link Http2Transport}. Custom resolvers
+ * can pin hosts to addresses, for instance to point tests at a local server, see
+ * {@link CachingDns} for an in-process cache.
+ *
+ * @author nk
+ */
+public interface Dns {
+  /** Blocking lookup of JVM, subject to its networkaddress.cache.ttl settings */
+  Dns SYSTEM = new Dns() {
+    @Override public List<InetAddress> lookup(String host) throws UnknownHostException {
+      if (host == null) throw new UnknownHostException("Host is null");
+      return Arrays.asList(InetAddress.getAllByName(host));
+    }
+  };
+
+  /**
+   * Returns addresses in order of preference, never empty. Connections try addresses of both
+   * families in parallel, see {@link Connection#openSocket}.
+   */
+  List<InetAddress> lookup(String host) throws UnknownHostException;
+}
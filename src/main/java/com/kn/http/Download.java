@@ -0,0 +1,602 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import com.kn.http.NetworkDispatcher.Callback;
+import com.kn.http.NetworkDispatcher.Cancelable;
+import com.kn.http.NetworkDispatcher.Priority;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Downloads one resource into a file over several connections at once. A single TCP stream is
+ * limited by its window on high latency links, a few of them side by side fill the bandwidth.
+ *
+ * <p>First request asks for one byte to learn length and whether server serves ranges. File is
+ * then preallocated and split into segments, which are fetched through {@link
+ * NetworkDispatcher}, at most {@link Builder#connections(int)} at a time, and written in place
+ * with positional writes. Broken segment is retried from the byte where it stopped. Every
+ * finished segment is recorded in progress file, so that download which failed or was canceled
+ * resumes where it left off when started again, unless resource changed in between. Server
+ * which ignores ranges gets a plain single stream download.
+ *
+ * <pre>{@code
+ * Download download = new Download.Builder()
+ *     .dispatcher(dispatcher)
+ *     .url("https://example.com/large.bin")
+ *     .file(Paths.get("large.bin"))
+ *     .build();
+ * long length = download.start().get();
+ * }</pre>
+ *
+ * @author nk
+ */
+public final class Download {
+  private static final int PROGRESS_MAGIC = 0x646c7031;
+  private static final int UNSTARTED = 0;
+  private static final int RUNNING = 1;
+  private static final int STOPPED = 2;
+
+  private final NetworkDispatcher dispatcher;
+  private final Request request;
+  private final Path file;
+  private final Path progressFile;
+  private final long segmentSize;
+  private final int connections;
+  private final Priority priority;
+  private final RetryPolicy retryPolicy;
+
+  private final AtomicInteger state = new AtomicInteger(UNSTARTED);
+  private final CompletableFuture<Long> result = new CompletableFuture<Long>() {
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean canceled = super.cancel(mayInterruptIfRunning);
+      if (canceled) stop();
+      return canceled;
+    }
+  };
+  private volatile Cancelable probe;
+  private volatile FileChannel channel;
+  private volatile long length = -1;
+  /** Strong ETag or Last-Modified sent as If-Range, empty when server gave neither */
+  private volatile String validator = "";
+  /** Bytes written from start of each segment */
+  private volatile AtomicLongArray done;
+  private volatile AtomicReferenceArray<Cancelable> tasks;
+  private final AtomicInteger nextSegment = new AtomicInteger();
+  private final AtomicInteger remaining = new AtomicInteger();
+
+  private Download(Builder builder) {
+    this.dispatcher = builder.dispatcher;
+    this.request = new Request(builder.request.url, HttpMethod.GET,
+        builder.request.headers.newBuilder()
+            // ranges are counted in bytes of encoded body, ask for plain one
+            .set("Accept-Encoding", "identity")
+            .build(), null);
+    this.file = builder.file;
+    this.progressFile = builder.progressFile != null ? builder.progressFile
+        : Paths.get(builder.file.toString() + ".progress");
+    this.segmentSize = builder.segmentSize;
+    this.connections = builder.connections;
+    this.priority = builder.priority;
+    this.retryPolicy = builder.retryPolicy;
+  }
+
+  /**
+   * Starts download, can be called once. Future completes with file length once whole file is
+   * written and progress file is deleted. Canceling it stops download, progress stays on disk.
+   */
+  public CompletableFuture<Long> start() {
+    if (!state.compareAndSet(UNSTARTED, RUNNING)) {
+      throw new IllegalStateException("Download is already started");
+    }
+    probe(1);
+    return result;
+  }
+
+  /** Resource length, -1 until server told it */
+  public long length() {
+    return length;
+  }
+
+  /** Bytes in file so far, including those downloaded before resume */
+  public long downloadedBytes() {
+    AtomicLongArray done = this.done;
+    if (done == null) return 0;
+    long total = 0;
+    for (int i = 0; i < done.length(); i++) total += done.get(i);
+    return total;
+  }
+
+  private void probe(final int attempt) {
+    if (state.get() == STOPPED) return;
+    retryPolicy.budget.deposit();
+    probe = dispatcher.execute(request.withHeader("Range", "bytes=0-0"), priority,
+        new Callback<Response>() {
+          @Override public void onSuccess(Response response) {
+            try {
+              onProbe(response);
+            } catch (IOException e) {
+              onFailure(e);
+            }
+          }
+
+          @Override public void onFailure(IOException e) {
+            retry(e, attempt, false, new Runnable() {
+              @Override public void run() {
+                probe(attempt + 1);
+              }
+            });
+          }
+        });
+    if (state.get() == STOPPED) probe.cancel();
+  }
+
+  private void onProbe(Response response) throws IOException {
+    int code = response.code();
+    if (code == 200) {
+      // server ignored range, it sends whole body right away
+      Files.deleteIfExists(progressFile);
+      long saved = response.saveTo(file);
+      length = saved;
+      complete(saved);
+      return;
+    }
+    String contentRange = response.header("Content-Range");
+    long[] range = parseContentRange(contentRange);
+    response.bytes();
+    if (code == 416 && range != null && range[2] == 0) {
+      // there is not even the first byte to give
+      Files.deleteIfExists(progressFile);
+      Files.write(file, new byte[0]);
+      length = 0;
+      complete(0);
+      return;
+    }
+    if (code != 206) {
+      if (RetryPolicy.isRetryable(code)) throw new IOException("Probe failed with " + code);
+      fail(new IOException("Unexpected response code " + code), false);
+      return;
+    }
+    if (range == null || range[0] != 0 || range[2] < 0) {
+      fail(new IOException("Unexpected Content-Range: " + contentRange), false);
+      return;
+    }
+
+    length = range[2];
+    String etag = response.header("ETag");
+    if (etag != null && !etag.startsWith("W/")) {
+      validator = etag;
+    } else if (response.header("Last-Modified") != null) {
+      validator = response.header("Last-Modified");
+    }
+    begin();
+  }
+
+  /** Restores progress, preallocates file and starts first segments */
+  private void begin() throws IOException {
+    if (state.get() == STOPPED) return;
+    int count = (int) ((length + segmentSize - 1) / segmentSize);
+    AtomicLongArray done = readProgress(count);
+    boolean resumed = done != null;
+    if (!resumed) done = new AtomicLongArray(count);
+    tasks = new AtomicReferenceArray<>(count);
+    this.done = done;
+
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    this.channel = channel;
+    if (!resumed || channel.size() > length) channel.truncate(resumed ? length : 0);
+    if (channel.size() < length) {
+      // reserves space up front, most file systems leave the gap sparse
+      channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+    }
+    if (!resumed) writeProgress();
+
+    int left = 0;
+    for (int i = 0; i < count; i++) {
+      if (done.get(i) < segmentLength(i)) left++;
+    }
+    remaining.set(left);
+    if (left == 0) {
+      finish();
+      return;
+    }
+    for (int i = 0; i < connections; i++) {
+      if (!next()) break;
+    }
+    if (state.get() == STOPPED) {
+      // canceled while file was being prepared, stop could not see channel yet
+      cancelTasks();
+      HttpClient.closeQuietly(channel);
+    }
+  }
+
+  /** Starts next unfinished segment, false when there is none */
+  private boolean next() {
+    AtomicLongArray done = this.done;
+    int segment;
+    while ((segment = nextSegment.getAndIncrement()) < done.length()) {
+      if (done.get(segment) < segmentLength(segment)) {
+        fetch(segment, 1);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void fetch(final int segment, final int attempt) {
+    if (state.get() == STOPPED) return;
+    final long start = (long) segment * segmentSize;
+    final long end = start + segmentLength(segment);
+    final long from = start + done.get(segment);
+    Headers.Builder builder = request.headers.newBuilder()
+        .set("Range", "bytes=" + from + "-" + (end - 1));
+    if (validator.length() > 0) builder.set("If-Range", validator);
+    Request range = new Request(request.url, HttpMethod.GET, builder.build(), null);
+
+    retryPolicy.budget.deposit();
+    Cancelable task = dispatcher.execute(range, priority, new Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        try {
+          write(response, segment, from, end);
+        } catch (IOException e) {
+          onFailure(e);
+          return;
+        } finally {
+          response.close();
+        }
+        writeProgressOrFail();
+        if (remaining.decrementAndGet() == 0) {
+          finish();
+        } else {
+          next();
+        }
+      }
+
+      @Override public void onFailure(IOException e) {
+        if (e instanceof RangeException) {
+          fail(e, ((RangeException) e).keepProgress);
+          return;
+        }
+        // segment which moved on earns its attempts back
+        final int failed = start + done.get(segment) > from ? 1 : attempt;
+        retry(e, failed, true, new Runnable() {
+          @Override public void run() {
+            fetch(segment, failed + 1);
+          }
+        });
+      }
+    });
+    tasks.set(segment, task);
+    if (state.get() == STOPPED) task.cancel();
+  }
+
+  /** Writes range body at its place in file, counting progress as it goes */
+  private void write(Response response, int segment, long from, long end) throws IOException {
+    int code = response.code();
+    if (code == 200 && validator.length() > 0) {
+      // If-Range did not match, server sent new version of resource as a whole
+      throw new RangeException("Resource changed during download", false);
+    }
+    if (code != 206) {
+      if (RetryPolicy.isRetryable(code)) throw new IOException("Range failed with " + code);
+      throw new RangeException("Unexpected response code " + code, true);
+    }
+    long[] range = parseContentRange(response.header("Content-Range"));
+    if (range == null || range[0] != from || range[2] != length) {
+      throw new RangeException("Unexpected Content-Range: " + response.header("Content-Range"),
+          true);
+    }
+
+    InputStream input = response.stream();
+    if (input == null) throw new IOException("Range ended at " + from + " of " + end);
+    FileChannel channel = this.channel;
+    AtomicLongArray done = this.done;
+    byte[] array = BufferPool.shared().takeArray();
+    try {
+      long position = from;
+      while (position < end) {
+        int count = input.read(array, 0, (int) Math.min(array.length, end - position));
+        if (count == -1) throw new IOException("Range ended at " + position + " of " + end);
+        ByteBuffer buffer = ByteBuffer.wrap(array, 0, count);
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+        done.addAndGet(segment, count);
+      }
+      // end of body lets connection go back to the pool
+      if (input.read() != -1) throw new IOException("Range is longer than requested");
+    } finally {
+      BufferPool.shared().releaseArray(array);
+    }
+  }
+
+  private void retry(IOException e, int attempt, boolean keepProgress, final Runnable again) {
+    if (state.get() == STOPPED) return;
+    if (!retryPolicy.canRetry(attempt)) {
+      fail(e, keepProgress);
+      return;
+    }
+    HttpClient.TIMERS.schedule(again, retryPolicy.backoffMillis(attempt), TimeUnit.MILLISECONDS);
+  }
+
+  private void finish() {
+    if (!state.compareAndSet(RUNNING, STOPPED)) return;
+    try {
+      FileChannel channel = this.channel;
+      if (channel != null) {
+        channel.force(false);
+        channel.close();
+      }
+      Files.deleteIfExists(progressFile);
+    } catch (IOException e) {
+      result.completeExceptionally(e);
+      return;
+    }
+    result.complete(length);
+  }
+
+  private void complete(long length) {
+    if (state.compareAndSet(RUNNING, STOPPED)) result.complete(length);
+  }
+
+  private void fail(IOException e, boolean keepProgress) {
+    if (!state.compareAndSet(RUNNING, STOPPED)) return;
+    cancelTasks();
+    if (keepProgress) {
+      try {
+        writeProgress();
+      } catch (IOException ignored) {
+        // progress which could not be saved is downloaded again
+      }
+    } else {
+      deleteProgress();
+    }
+    HttpClient.closeQuietly(channel);
+    result.completeExceptionally(e);
+  }
+
+  /** Cancel of future, whatever reached file so far is kept for resume */
+  private void stop() {
+    state.set(STOPPED);
+    cancelTasks();
+    if (done != null) {
+      try {
+        writeProgress();
+      } catch (IOException ignored) {
+        // progress which could not be saved is downloaded again
+      }
+    }
+    HttpClient.closeQuietly(channel);
+  }
+
+  private void cancelTasks() {
+    Cancelable probe = this.probe;
+    if (probe != null) probe.cancel();
+    AtomicReferenceArray<Cancelable> tasks = this.tasks;
+    if (tasks == null) return;
+    for (int i = 0; i < tasks.length(); i++) {
+      Cancelable task = tasks.get(i);
+      if (task != null) task.cancel();
+    }
+  }
+
+  private void writeProgressOrFail() {
+    try {
+      writeProgress();
+    } catch (IOException e) {
+      fail(e, false);
+    }
+  }
+
+  private void deleteProgress() {
+    try {
+      Files.deleteIfExists(progressFile);
+    } catch (IOException ignored) {
+      // stale progress is rejected on resume as long as validator changes
+    }
+  }
+
+  private long segmentLength(int segment) {
+    return Math.min(segmentSize, length - (long) segment * segmentSize);
+  }
+
+  /**
+   * Records bytes written so far. Counters are read before file is forced, so every counted
+   * byte is on disk before progress file says so. Progress is replaced by rename, so crash
+   * leaves either old or new one where file system can rename atomically.
+   */
+  private synchronized void writeProgress() throws IOException {
+    AtomicLongArray done = this.done;
+    long[] snapshot = new long[done.length()];
+    for (int i = 0; i < snapshot.length; i++) snapshot[i] = done.get(i);
+    FileChannel channel = this.channel;
+    if (channel != null && channel.isOpen()) channel.force(false);
+
+    Path tmp = Paths.get(progressFile.toString() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(tmp)));
+    try {
+      out.writeInt(PROGRESS_MAGIC);
+      out.writeUTF(request.url.toString());
+      out.writeUTF(validator);
+      out.writeLong(length);
+      out.writeLong(segmentSize);
+      out.writeInt(snapshot.length);
+      for (long bytes : snapshot) out.writeLong(bytes);
+    } finally {
+      out.close();
+    }
+    try {
+      Files.move(tmp, progressFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, progressFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /** Progress of the same resource version split the same way, null if there is none */
+  private AtomicLongArray readProgress(int count) {
+    if (!Files.exists(file)) return null;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(progressFile)));
+      if (in.readInt() != PROGRESS_MAGIC) return null;
+      if (!in.readUTF().equals(request.url.toString())) return null;
+      String validator = in.readUTF();
+      // without validator there is no telling whether resource is still the same
+      if (validator.length() == 0 || !validator.equals(this.validator)) return null;
+      if (in.readLong() != length || in.readLong() != segmentSize) return null;
+      if (in.readInt() != count) return null;
+      AtomicLongArray done = new AtomicLongArray(count);
+      for (int i = 0; i < count; i++) {
+        long bytes = in.readLong();
+        if (bytes < 0 || bytes > segmentLength(i)) return null;
+        done.set(i, bytes);
+      }
+      return done;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      // unreadable progress is as good as missing one
+      return null;
+    } finally {
+      HttpClient.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Parses {@code bytes first-last/length} into first, last and length, -1 stands for
+   * {@code *}. Null if header is malformed.
+   */
+  static long[] parseContentRange(String contentRange) {
+    if (contentRange == null || !contentRange.regionMatches(true, 0, "bytes ", 0, 6)) return null;
+    int slash = contentRange.indexOf('/', 6);
+    if (slash == -1) return null;
+    try {
+      long[] range = {-1, -1, -1};
+      String total = contentRange.substring(slash + 1).trim();
+      if (!total.equals("*")) range[2] = Long.parseLong(total);
+      String bytes = contentRange.substring(6, slash).trim();
+      if (!bytes.equals("*")) {
+        int dash = bytes.indexOf('-');
+        if (dash == -1) return null;
+        range[0] = Long.parseLong(bytes.substring(0, dash));
+        range[1] = Long.parseLong(bytes.substring(dash + 1));
+      }
+      return range;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Failure which retry of the same range can not fix */
+  private static final class RangeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /** False once resource changed, ranges of two versions can not be mixed */
+    final boolean keepProgress;
+
+    RangeException(String message, boolean keepProgress) {
+      super(message);
+      this.keepProgress = keepProgress;
+    }
+  }
+
+  public static final class Builder {
+    private NetworkDispatcher dispatcher;
+    private Request request;
+    private Path file;
+    private Path progressFile;
+    private long segmentSize = 1024 * 1024 * 8;
+    private int connections = 4;
+    private Priority priority = Priority.LOW;
+    private RetryPolicy retryPolicy = new RetryPolicy.Builder().build();
+
+    /** Runs range requests, its per host limit applies on top of connections */
+    public Builder dispatcher(NetworkDispatcher dispatcher) {
+      if (dispatcher == null) throw new NullPointerException("NetworkDispatcher is null");
+      this.dispatcher = dispatcher;
+      return this;
+    }
+
+    public Builder url(String url) {
+      return request(new Request.Builder().url(url).build());
+    }
+
+    /** GET request whose headers, such as Authorization, go with every range request */
+    public Builder request(Request request) {
+      if (request == null) throw new NullPointerException("Request is null");
+      if (request.method != HttpMethod.GET) {
+        throw new IllegalArgumentException("Only GET can be downloaded");
+      }
+      this.request = request;
+      return this;
+    }
+
+    public Builder file(Path file) {
+      if (file == null) throw new NullPointerException("Path is null");
+      this.file = file;
+      return this;
+    }
+
+    /** Where progress is kept between attempts, file name plus .progress by default */
+    public Builder progressFile(Path progressFile) {
+      if (progressFile == null) throw new NullPointerException("Path is null");
+      this.progressFile = progressFile;
+      return this;
+    }
+
+    /** Bytes fetched by one range request, 8 MB by default */
+    public Builder segmentSize(long segmentSize) {
+      if (segmentSize <= 0) throw new IllegalArgumentException("segmentSize <= 0");
+      this.segmentSize = segmentSize;
+      return this;
+    }
+
+    /** Segments fetched at the same time, 4 by default */
+    public Builder connections(int connections) {
+      if (connections <= 0) throw new IllegalArgumentException("connections <= 0");
+      this.connections = connections;
+      return this;
+    }
+
+    /** {@link Priority#LOW} by default, download should not hold up other requests */
+    public Builder priority(Priority priority) {
+      if (priority == null) throw new NullPointerException("Priority is null");
+      this.priority = priority;
+      return this;
+    }
+
+    /** Retries of each range, attempts start over once range makes progress */
+    public Builder retryPolicy(RetryPolicy retryPolicy) {
+      if (retryPolicy == null) throw new NullPointerException("RetryPolicy is null");
+      this.retryPolicy = retryPolicy;
+      return this;
+    }
+
+    public Download build() {
+      if (dispatcher == null) throw new IllegalStateException("NetworkDispatcher must be set");
+      if (request == null) throw new IllegalStateException("Url must be set");
+      if (file == null) throw new IllegalStateException("File must be set");
+      return new Download(this);
+    }
+  }
+}
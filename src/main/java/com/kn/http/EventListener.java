@@ -0,0 +1,154 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Receives timing events of a single call. One listener is created per call by
+ * {@link Factory}, so implementations may keep per-call state in fields. Events fire on the
+ * thread which executes the call, except body events, which fire on the thread reading body.
+ * Redirects and retries repeat connect, request and response events within one call.
+ *
+ * <p>Which connection events fire depends on transport, {@link UrlConnectionTransport} can not
+ * tell DNS, TCP and TLS apart and reports them as one connect.
+ *
+ * @author nk
+ */
+public abstract class EventListener {
+  public static final EventListener NONE = new EventListener() {
+  };
+
+  public static final Factory NONE_FACTORY = new Factory() {
+    @Override public EventListener create(Request request) {
+      return NONE;
+    }
+  };
+
+  public interface Factory {
+    EventListener create(Request request);
+  }
+
+  public void callStart(Request request) {
+  }
+
+  public void dnsStart(String host) {
+  }
+
+  public void dnsEnd(String host, List<InetAddress> addresses) {
+  }
+
+  public void connectStart(InetSocketAddress address) {
+  }
+
+  public void secureConnectStart() {
+  }
+
+  /** @param protocol negotiated via ALPN, null when there was no negotiation */
+  public void secureConnectEnd(String protocol) {
+  }
+
+  /**
+   * Reported by transports which can tell resumed handshake from full one, calls
+   * {@link #secureConnectEnd(String)} unless overridden
+   *
+   * @param resumed cached session was resumed, see {@link TlsConfig}
+   */
+  public void secureConnectEnd(String protocol, boolean resumed) {
+    secureConnectEnd(protocol);
+  }
+
+  public void connectEnd(InetSocketAddress address) {
+  }
+
+  public void connectFailed(InetSocketAddress address, IOException e) {
+  }
+
+  /** Connection or HTTP/2 stream is ready to carry request */
+  public void connectionAcquired(boolean reused) {
+  }
+
+  public void requestStart() {
+  }
+
+  /** Request headers and body are written and flushed */
+  public void requestEnd() {
+  }
+
+  /** Final response headers arrived, this is time to first byte */
+  public void responseStart(int code) {
+  }
+
+  /** Response body was read to the end or closed */
+  public void responseEnd(long bodyBytes) {
+  }
+
+  public void callEnd() {
+  }
+
+  public void callFailed(IOException e) {
+  }
+
+  /** Wraps response so that body end is reported to listener */
+  static Response observe(Response response, EventListener listener) {
+    if (listener == NONE) return response;
+    InputStream body = response.stream();
+    if (body == null) {
+      listener.responseEnd(0);
+      listener.callEnd();
+      return response;
+    }
+    return new Response(response.code(), response.headers(), new ObservedStream(body, listener));
+  }
+
+  private static final class ObservedStream extends FilterInputStream {
+    private final EventListener listener;
+    private long bytes;
+    private boolean ended;
+
+    ObservedStream(InputStream in, EventListener listener) {
+      super(in);
+      this.listener = listener;
+    }
+
+    @Override public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        end();
+      } else {
+        bytes++;
+      }
+      return b;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+      int read = super.read(buffer, offset, count);
+      if (read == -1) {
+        end();
+      } else {
+        bytes += read;
+      }
+      return read;
+    }
+
+    @Override public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        end();
+      }
+    }
+
+    private synchronized void end() {
+      if (ended) return;
+      ended = true;
+      listener.responseEnd(bytes);
+      listener.callEnd();
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package com.kn.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable header fields of a request or response, kept in one flat array of names and values
+ * in the order they were added. Lookups ignore case of names, a name may have several values.
+ * Common names are interned, so thousands of parsed responses share a single "Content-Type".
+ *
+ * @author nk
+ */
+public final class Headers {
+  public static final Headers EMPTY = new Headers(new String[0]);
+
+  /** Most common request and response names, parsers return these without allocation */
+  static final String[] COMMON_NAMES = {
+      "Accept", "Accept-Encoding", "Age", "Authorization", "Cache-Control", "Connection",
+      "Content-Encoding", "Content-Length", "Content-Type", "Date", "ETag", "Expires", "Host",
+      "If-Modified-Since", "If-None-Match", "Keep-Alive", "Last-Modified", "Location", "Pragma",
+      "Server", "Set-Cookie", "Transfer-Encoding", "User-Agent", "Vary"};
+
+  private static final Map<String, String> INTERNED = new HashMap<>();
+
+  static {
+    for (String name : COMMON_NAMES) {
+      INTERNED.put(name, name);
+    }
+  }
+
+  /** name0, value0, name1, value1... */
+  private final String[] namesAndValues;
+
+  private Headers(String[] namesAndValues) {
+    this.namesAndValues = namesAndValues;
+  }
+
+  /** Headers of a multimap such as {@link java.net.HttpURLConnection#getHeaderFields()} */
+  public static Headers of(Map<String, List<String>> multimap) {
+    if (multimap == null) throw new NullPointerException("Map is null");
+    Builder builder = new Builder();
+    for (Map.Entry<String, List<String>> entry : multimap.entrySet()) {
+      // HttpURLConnection keeps status line under null key
+      if (entry.getKey() == null || entry.getValue() == null) continue;
+      for (String value : entry.getValue()) {
+        if (value != null) builder.add(entry.getKey(), value);
+      }
+    }
+    return builder.build();
+  }
+
+  /** Alternating names and values */
+  public static Headers of(String... namesAndValues) {
+    if (namesAndValues == null) throw new NullPointerException("Names and values are null");
+    if (namesAndValues.length % 2 != 0) {
+      throw new IllegalArgumentException("Expected alternating names and values");
+    }
+    Builder builder = new Builder();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      builder.add(namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return builder.build();
+  }
+
+  /** First value of name, case is ignored */
+  public String get(String name) {
+    String[] namesAndValues = this.namesAndValues;
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      if (equalsIgnoreCase(name, namesAndValues[i])) return namesAndValues[i + 1];
+    }
+    return null;
+  }
+
+  /** All values of name in order they were added, case is ignored */
+  public List<String> values(String name) {
+    List<String> values = null;
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      if (!equalsIgnoreCase(name, namesAndValues[i])) continue;
+      if (values == null) values = new ArrayList<>(2);
+      values.add(namesAndValues[i + 1]);
+    }
+    return values == null
+        ? Collections.<String>emptyList() : Collections.unmodifiableList(values);
+  }
+
+  /** Number of fields, a name with two values counts twice */
+  public int size() {
+    return namesAndValues.length / 2;
+  }
+
+  public String name(int index) {
+    return namesAndValues[index * 2];
+  }
+
+  public String value(int index) {
+    return namesAndValues[index * 2 + 1];
+  }
+
+  /** Distinct names, sorted ignoring case */
+  public Set<String> names() {
+    Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      names.add(namesAndValues[i]);
+    }
+    return Collections.unmodifiableSet(names);
+  }
+
+  /** Case insensitive copy, for code which still works with maps */
+  public Map<String, List<String>> toMultimap() {
+    Map<String, List<String>> multimap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      List<String> values = multimap.get(namesAndValues[i]);
+      if (values == null) {
+        values = new ArrayList<>(1);
+        multimap.put(namesAndValues[i], values);
+      }
+      values.add(namesAndValues[i + 1]);
+    }
+    return multimap;
+  }
+
+  /** Builder starting with these fields, array is copied once */
+  public Builder newBuilder() {
+    Builder builder = new Builder();
+    builder.namesAndValues = Arrays.copyOf(namesAndValues, Math.max(16, namesAndValues.length));
+    builder.length = namesAndValues.length;
+    return builder;
+  }
+
+  @Override public boolean equals(Object other) {
+    return other instanceof Headers
+        && Arrays.equals(((Headers) other).namesAndValues, namesAndValues);
+  }
+
+  @Override public int hashCode() {
+    return Arrays.hashCode(namesAndValues);
+  }
+
+  @Override public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      builder.append(namesAndValues[i]).append(": ").append(namesAndValues[i + 1]).append('\n');
+    }
+    return builder.toString();
+  }
+
+  /** Interned instance of a common name, name itself otherwise */
+  static String intern(String name) {
+    String interned = INTERNED.get(name);
+    return interned != null ? interned : name;
+  }
+
+  private static boolean equalsIgnoreCase(String a, String b) {
+    // interned names usually match by reference
+    return a == b || a.equalsIgnoreCase(b);
+  }
+
+  public static final class Builder {
+    private String[] namesAndValues = new String[16];
+    private int length;
+
+    /** Adds one more value of name, values added before stay */
+    public Builder add(String name, String value) {
+      checkField(name, value);
+      if (length == namesAndValues.length) {
+        namesAndValues = Arrays.copyOf(namesAndValues, length * 2);
+      }
+      namesAndValues[length++] = intern(name);
+      namesAndValues[length++] = value;
+      return this;
+    }
+
+    /** Replaces all values of name, case is ignored */
+    public Builder set(String name, String value) {
+      checkField(name, value);
+      removeAll(name);
+      return add(name, value);
+    }
+
+    public Builder addAll(Headers headers) {
+      if (headers == null) throw new NullPointerException("Headers are null");
+      for (int i = 0; i < headers.namesAndValues.length; i += 2) {
+        add(headers.namesAndValues[i], headers.namesAndValues[i + 1]);
+      }
+      return this;
+    }
+
+    /** Removes all values of name, case is ignored */
+    public Builder removeAll(String name) {
+      if (name == null) throw new NullPointerException("Name is null");
+      int kept = 0;
+      for (int i = 0; i < length; i += 2) {
+        if (equalsIgnoreCase(name, namesAndValues[i])) continue;
+        namesAndValues[kept++] = namesAndValues[i];
+        namesAndValues[kept++] = namesAndValues[i + 1];
+      }
+      Arrays.fill(namesAndValues, kept, length, null);
+      length = kept;
+      return this;
+    }
+
+    /** First value of name, case is ignored */
+    public String get(String name) {
+      for (int i = 0; i < length; i += 2) {
+        if (equalsIgnoreCase(name, namesAndValues[i])) return namesAndValues[i + 1];
+      }
+      return null;
+    }
+
+    public Headers build() {
+      return length == 0 ? EMPTY : new Headers(Arrays.copyOf(namesAndValues, length));
+    }
+
+    /** Appends to the last value, for obsolete line folding */
+    void appendToLast(String continuation) {
+      namesAndValues[length - 1] = namesAndValues[length - 1] + ' ' + continuation;
+    }
+
+    boolean isEmpty() {
+      return length == 0;
+    }
+
+    /** Forgets all fields, array is kept for reuse */
+    void clear() {
+      Arrays.fill(namesAndValues, 0, length, null);
+      length = 0;
+    }
+
+    private static void checkField(String name, String value) {
+      if (name == null) throw new NullPointerException("Name is null");
+      if (value == null) throw new NullPointerException("Value is null");
+      if (name.length() == 0) throw new IllegalArgumentException("Name is empty");
+      // line breaks would let caller write extra fields or a whole request of its own
+      if (hasControl(name)) throw new IllegalArgumentException("Unexpected character in " + name);
+      if (hasControl(value)) {
+        throw new IllegalArgumentException("Unexpected character in value of " + name);
+      }
+    }
+
+    private static boolean hasControl(String string) {
+      for (int i = 0, length = string.length(); i < length; i++) {
+        char c = string.charAt(i);
+        if (c == '\r' || c == '\n' || c == '\0') return true;
+      }
+      return false;
+    }
+  }
+}
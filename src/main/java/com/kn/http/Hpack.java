@@ -0,0 +1,322 @@
+package com.kn.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * HPACK header compression (RFC 7541) for {@link Http2Connection}. Encoder writes every field
+ * as a literal without indexing, so it keeps no state and needs no synchronization. Decoder
+ * understands the whole spec, including Huffman coded strings and the dynamic table, since
+ * servers are free to use all of it.
+ *
+ * @author nk
+ */
+final class Hpack {
+  static final int DEFAULT_TABLE_SIZE = 4096;
+
+  private static final String[][] STATIC_TABLE = {
+      {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+      {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+      {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+      {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+      {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""},
+      {"accept", ""}, {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+      {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+      {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+      {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+      {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+      {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+      {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+      {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""},
+      {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+      {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+      {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+  };
+
+  private Hpack() {
+  }
+
+  /** Appends field as literal without indexing, reusing static table name when there is one */
+  static void encode(String name, String value, ByteArrayOutputStream out) {
+    int nameIndex = 0;
+    for (int i = 0; i < STATIC_TABLE.length; i++) {
+      if (STATIC_TABLE[i][0].equals(name)) {
+        nameIndex = i + 1;
+        break;
+      }
+    }
+
+    writeInt(out, nameIndex, 4, 0x00);
+    if (nameIndex == 0) writeString(out, name);
+    writeString(out, value);
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String string) {
+    writeInt(out, string.length(), 7, 0x00);
+    for (int i = 0; i < string.length(); i++) {
+      out.write(string.charAt(i));
+    }
+  }
+
+  static void writeInt(ByteArrayOutputStream out, int value, int prefixBits, int firstByteFlags) {
+    int max = (1 << prefixBits) - 1;
+    if (value < max) {
+      out.write(firstByteFlags | value);
+      return;
+    }
+    out.write(firstByteFlags | max);
+    value -= max;
+    while (value >= 0x80) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /** Decodes header blocks of a single connection, blocks must be fed in order they arrive */
+  static final class Decoder {
+    private final ArrayDeque<String[]> dynamicTable = new ArrayDeque<>();
+    private final int maxTableSizeLimit;
+    private int maxTableSize;
+    private int tableSize;
+    private byte[] block;
+    private int position;
+    private int limit;
+
+    Decoder() {
+      this(DEFAULT_TABLE_SIZE);
+    }
+
+    Decoder(int maxTableSize) {
+      this.maxTableSizeLimit = maxTableSize;
+      this.maxTableSize = maxTableSize;
+    }
+
+    /** Returns names and values one after another */
+    List<String> decode(byte[] block, int offset, int length) throws IOException {
+      this.block = block;
+      this.position = offset;
+      this.limit = offset + length;
+      List<String> fields = new ArrayList<>();
+
+      while (position < limit) {
+        int b = block[position] & 0xff;
+        if ((b & 0x80) != 0) {
+          String[] field = field(readInt(7));
+          fields.add(field[0]);
+          fields.add(field[1]);
+        } else if ((b & 0xc0) == 0x40) {
+          int index = readInt(6);
+          String name = index == 0 ? readString() : field(index)[0];
+          String value = readString();
+          fields.add(name);
+          fields.add(value);
+          add(name, value);
+        } else if ((b & 0xe0) == 0x20) {
+          int size = readInt(5);
+          if (size > maxTableSizeLimit) throw new ProtocolException("Table size " + size);
+          maxTableSize = size;
+          evict(0);
+        } else {
+          // literal without indexing or never indexed, both have 4 bit prefix
+          int index = readInt(4);
+          String name = index == 0 ? readString() : field(index)[0];
+          fields.add(name);
+          fields.add(readString());
+        }
+      }
+      this.block = null;
+      return fields;
+    }
+
+    private String[] field(int index) throws ProtocolException {
+      if (index <= 0) throw new ProtocolException("Header index " + index);
+      if (index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+
+      int dynamicIndex = index - STATIC_TABLE.length - 1;
+      if (dynamicIndex >= dynamicTable.size()) throw new ProtocolException("Header index " + index);
+      Iterator<String[]> iterator = dynamicTable.iterator();
+      for (int i = 0; i < dynamicIndex; i++) {
+        iterator.next();
+      }
+      return iterator.next();
+    }
+
+    private void add(String name, String value) {
+      int size = name.length() + value.length() + 32;
+      if (size > maxTableSize) {
+        dynamicTable.clear();
+        tableSize = 0;
+        return;
+      }
+      evict(size);
+      dynamicTable.addFirst(new String[] {name, value});
+      tableSize += size;
+    }
+
+    /** Makes room for an entry of given size */
+    private void evict(int size) {
+      while (tableSize + size > maxTableSize && !dynamicTable.isEmpty()) {
+        String[] oldest = dynamicTable.pollLast();
+        tableSize -= oldest[0].length() + oldest[1].length() + 32;
+      }
+    }
+
+    private int readInt(int prefixBits) throws ProtocolException {
+      int max = (1 << prefixBits) - 1;
+      int value = block[position++] & max;
+      if (value < max) return value;
+
+      for (int shift = 0; shift <= 28; shift += 7) {
+        if (position == limit) throw new ProtocolException("Truncated integer");
+        int b = block[position++] & 0xff;
+        value += (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          if (value < 0) throw new ProtocolException("Integer overflow");
+          return value;
+        }
+      }
+      throw new ProtocolException("Integer overflow");
+    }
+
+    private String readString() throws ProtocolException {
+      if (position == limit) throw new ProtocolException("Truncated string");
+      boolean huffman = (block[position] & 0x80) != 0;
+      int length = readInt(7);
+      if (length > limit - position) throw new ProtocolException("Truncated string");
+
+      String string = huffman
+          ? Huffman.decode(block, position, length) : latin1(block, position, length);
+      position += length;
+      return string;
+    }
+
+    private static String latin1(byte[] bytes, int offset, int length) {
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++) {
+        chars[i] = (char) (bytes[offset + i] & 0xff);
+      }
+      return new String(chars);
+    }
+  }
+
+  /** Canonical Huffman code from RFC 7541 appendix B, only decoding is needed */
+  static final class Huffman {
+    private static final int[] CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6,
+        0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd,
+        0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1,
+        0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7,
+        0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9,
+        0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+        0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0,
+        0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb,
+        0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60,
+        0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67,
+        0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+        0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd,
+        0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3,
+        0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27,
+        0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77,
+        0x78, 0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+        0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3,
+        0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc,
+        0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7,
+        0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc,
+        0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda,
+        0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb,
+        0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1,
+        0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0,
+        0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1,
+        0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4,
+        0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+        0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4,
+        0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8,
+        0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5,
+        0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7,
+        0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+        0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    private static final byte[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    /** Binary tree over the codes, children of node n live at 2 * n and 2 * n + 1 slots */
+    private static final int[] CHILDREN;
+    /** Symbol of a leaf, -1 for inner nodes */
+    private static final int[] SYMBOLS;
+
+    static {
+      int[] children = new int[1024];
+      int[] symbols = new int[512];
+      Arrays.fill(symbols, -1);
+      int nodes = 1;
+      for (int symbol = 0; symbol < CODES.length; symbol++) {
+        int node = 0;
+        for (int bit = LENGTHS[symbol] - 1; bit >= 0; bit--) {
+          int branch = 2 * node + ((CODES[symbol] >>> bit) & 1);
+          if (children[branch] == 0) children[branch] = nodes++;
+          node = children[branch];
+        }
+        symbols[node] = symbol;
+      }
+      CHILDREN = children;
+      SYMBOLS = symbols;
+    }
+
+    private Huffman() {
+    }
+
+    static String decode(byte[] bytes, int offset, int length) throws ProtocolException {
+      StringBuilder string = new StringBuilder(length * 8 / 5);
+      int node = 0;
+      int depth = 0;
+      boolean allOnes = true;
+      for (int i = offset; i < offset + length; i++) {
+        int b = bytes[i] & 0xff;
+        for (int bit = 7; bit >= 0; bit--) {
+          int value = (b >>> bit) & 1;
+          node = CHILDREN[2 * node + value];
+          if (node == 0) throw new ProtocolException("Invalid Huffman code");
+          depth++;
+          allOnes &= value == 1;
+          if (SYMBOLS[node] != -1) {
+            string.append((char) SYMBOLS[node]);
+            node = 0;
+            depth = 0;
+            allOnes = true;
+          }
+        }
+      }
+      // leftover bits must be a prefix of EOS, which is all ones, and shorter than a byte
+      if (depth > 7 || !allOnes) throw new ProtocolException("Invalid Huffman padding");
+      return string.toString();
+    }
+  }
+}
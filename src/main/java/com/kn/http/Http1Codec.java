@@ -0,0 +1,483 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.URL;
+
+/**
+ * Writes HTTP/1.1 requests to and reads responses from a {@link Connection}.
+ *
+ * @author nk
+ */
+final class Http1Codec {
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] HEX_DIGITS = {
+      '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  private Http1Codec() {
+  }
+
+  static void writeRequest(OutputStream out, URL url, HttpMethod method,
+      Headers headers, RequestBody body) throws IOException {
+    long length = body == null ? 0 : body.contentLength();
+    boolean hasLength = false;
+    HeadWriter head = new HeadWriter(out);
+    try {
+      String target = url.getFile();
+      head.write(method.methodName())
+          .write(' ')
+          .write(target.length() == 0 ? "/" : target)
+          .write(" HTTP/1.1")
+          .crlf();
+
+      boolean hasHost = false;
+      for (int i = 0, size = headers.size(); i < size; i++) {
+        String name = headers.name(i);
+        if ("Host".equalsIgnoreCase(name)) hasHost = true;
+        if ("Content-Length".equalsIgnoreCase(name)) hasLength = true;
+        head.header(name, headers.value(i));
+      }
+      if (!hasHost) {
+        head.write("Host: ").write(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+          head.write(':').write(url.getPort());
+        }
+        head.crlf();
+      }
+
+      if (method != HttpMethod.GET && !hasLength) {
+        if (length != -1) {
+          head.write("Content-Length: ").write(length).crlf();
+        } else {
+          head.header("Transfer-Encoding", "chunked");
+        }
+      }
+      head.crlf();
+      head.flush();
+    } finally {
+      head.release();
+    }
+
+    if (body == null) return;
+    if (hasLength) {
+      // caller took responsibility for framing
+      body.writeTo(out);
+    } else if (length == -1) {
+      ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+      try {
+        body.writeTo(chunked);
+        chunked.close();
+      } finally {
+        chunked.release();
+      }
+    } else {
+      FixedLengthOutputStream fixed = new FixedLengthOutputStream(out, length);
+      body.writeTo(fixed);
+      if (fixed.remaining != 0) {
+        throw new ProtocolException("Body is " + fixed.remaining + " bytes shorter than "
+            + length + " bytes declared");
+      }
+    }
+  }
+
+  /**
+   * Reads next response head into {@link Connection#parser}
+   *
+   * @return false if peer closed connection before sending a single byte
+   */
+  static boolean readResponseHead(Connection connection) throws IOException {
+    connection.parser.reset();
+    return connection.in.readHead(connection.parser);
+  }
+
+  /** Reads bytes up to and including LF, nothing is kept */
+  static void skipLine(InputStream in) throws IOException {
+    int read;
+    for (int length = 0; (read = in.read()) != -1; length++) {
+      if (read == '\n') return;
+      if (length == Http1Parser.MAX_LINE_LENGTH) throw new ProtocolException("Line is too long");
+    }
+    throw new EOFException("Unexpected end of stream");
+  }
+
+  static boolean hasBody(int code) {
+    return code != 204 && code != 304 && (code < 100 || code >= 200);
+  }
+
+  /** Whether connection may carry another exchange after this response */
+  static boolean isReusable(String version, Headers headers) {
+    String connection = headers.get("Connection");
+    if ("close".equalsIgnoreCase(connection)) return false;
+    return "HTTP/1.1".equals(version) || "keep-alive".equalsIgnoreCase(connection);
+  }
+
+  /**
+   * Frames response body. Once body is fully read connection is released to pool if it is
+   * reusable, null pool keeps connection with caller.
+   */
+  static BodyStream newBodyStream(Connection connection, ConnectionPool pool, int code,
+      Headers headers, boolean reusable) throws ProtocolException {
+    String contentLength = headers.get("Content-Length");
+    if (!hasBody(code)) {
+      return new FixedLengthStream(connection, pool, reusable, 0);
+    } else if ("chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+      return new ChunkedStream(connection, pool, reusable);
+    } else if (contentLength != null) {
+      long length;
+      try {
+        length = Long.parseLong(contentLength.trim());
+      } catch (NumberFormatException e) {
+        throw new ProtocolException("Unexpected Content-Length: " + contentLength);
+      }
+      if (length < 0) throw new ProtocolException("Unexpected Content-Length: " + contentLength);
+      return new FixedLengthStream(connection, pool, reusable, length);
+    } else {
+      return new UntilCloseStream(connection, pool);
+    }
+  }
+
+  /** Body of a response which gives connection back to pool once it has been fully read */
+  abstract static class BodyStream extends InputStream {
+    final Connection connection;
+    private final ConnectionPool pool;
+    private final boolean reusable;
+    private final byte[] single = new byte[1];
+    private volatile boolean finished;
+    private volatile boolean canceled;
+
+    BodyStream(Connection connection, ConnectionPool pool, boolean reusable) {
+      this.connection = connection;
+      this.pool = pool;
+      this.reusable = reusable;
+    }
+
+    @Override public int read() throws IOException {
+      int read = read(single, 0, 1);
+      return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    /** Body was completely consumed */
+    final synchronized void endOfBody() {
+      if (finished) return;
+      finished = true;
+      if (reusable) {
+        if (pool != null) pool.release(connection);
+      } else {
+        connection.close();
+      }
+    }
+
+    /** Body was abandoned half way, rest of it would confuse next exchange */
+    final synchronized void abort() {
+      if (finished) return;
+      finished = true;
+      connection.close();
+    }
+
+    /** Call was canceled or timed out, reads fail from now on instead of ending early */
+    final synchronized void cancel() {
+      if (finished) return;
+      canceled = true;
+      finished = true;
+      connection.close();
+    }
+
+    final boolean isFinished() {
+      return finished;
+    }
+
+    @Override public final int read(byte[] buffer, int offset, int count) throws IOException {
+      if (canceled) throw new IOException("Canceled");
+      if (finished) return -1;
+      try {
+        return readBody(buffer, offset, count);
+      } catch (IOException e) {
+        // socket closed by cancel fails with whatever exception it likes
+        if (canceled) throw new IOException("Canceled", e);
+        throw e;
+      }
+    }
+
+    /** Reads body of unfinished stream */
+    abstract int readBody(byte[] buffer, int offset, int count) throws IOException;
+
+    @Override public void close() {
+      abort();
+    }
+  }
+
+  static final class FixedLengthStream extends BodyStream {
+    private long remaining;
+
+    FixedLengthStream(Connection connection, ConnectionPool pool, boolean reusable, long length) {
+      super(connection, pool, reusable);
+      this.remaining = length;
+      if (remaining == 0) endOfBody();
+    }
+
+    @Override int readBody(byte[] buffer, int offset, int count) throws IOException {
+      if (remaining == 0) return -1;
+      int read = connection.in.read(buffer, offset, (int) Math.min(count, remaining));
+      if (read == -1) {
+        abort();
+        throw new EOFException("Unexpected end of stream, " + remaining + " bytes remaining");
+      }
+      remaining -= read;
+      if (remaining == 0) endOfBody();
+      return read;
+    }
+
+    @Override public int available() throws IOException {
+      if (isFinished()) return 0;
+      return (int) Math.min(connection.in.available(), remaining);
+    }
+  }
+
+  static final class ChunkedStream extends BodyStream {
+    private long chunkRemaining = -1;
+
+    ChunkedStream(Connection connection, ConnectionPool pool, boolean reusable) {
+      super(connection, pool, reusable);
+    }
+
+    @Override int readBody(byte[] buffer, int offset, int count) throws IOException {
+      try {
+        if (chunkRemaining <= 0) {
+          if (chunkRemaining == 0) skipLine(connection.in); // CRLF after previous chunk
+          chunkRemaining = readChunkSize();
+          if (chunkRemaining == 0) {
+            if (!connection.in.readHead(new Http1Parser(Http1Parser.Mode.TRAILERS))) {
+              throw new EOFException("Unexpected end of chunked stream");
+            }
+            endOfBody();
+            return -1;
+          }
+        }
+        int read = connection.in.read(buffer, offset, (int) Math.min(count, chunkRemaining));
+        if (read == -1) throw new EOFException("Unexpected end of chunked stream");
+        chunkRemaining -= read;
+        return read;
+      } catch (IOException e) {
+        abort();
+        throw e;
+      }
+    }
+
+    /** Hex size, then optional extensions which are ignored */
+    private long readChunkSize() throws IOException {
+      long size = 0;
+      int digits = 0;
+      int read;
+      while ((read = connection.in.read()) != -1) {
+        int digit = Character.digit(read, 16);
+        if (digit == -1) break;
+        // 15 digits still fit into a positive long
+        if (++digits > 15) throw new ProtocolException("Chunk size is too large");
+        size = size << 4 | digit;
+      }
+      if (read == -1) throw new EOFException("Unexpected end of chunked stream");
+      if (digits == 0) throw new ProtocolException("Unexpected chunk size");
+      if (read != '\n') {
+        if (read != ';' && read != '\r' && read != ' ' && read != '\t') {
+          throw new ProtocolException("Unexpected chunk size");
+        }
+        skipLine(connection.in);
+      }
+      return size;
+    }
+  }
+
+  /** Body without framing, it ends when server closes connection */
+  static final class UntilCloseStream extends BodyStream {
+
+    UntilCloseStream(Connection connection, ConnectionPool pool) {
+      super(connection, pool, false);
+    }
+
+    @Override int readBody(byte[] buffer, int offset, int count) throws IOException {
+      int read = connection.in.read(buffer, offset, count);
+      if (read == -1) endOfBody();
+      return read;
+    }
+  }
+
+  /** Frames written bytes as chunks of up to {@link BufferPool#ARRAY_SIZE} bytes */
+  static final class ChunkedOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final byte[] sizeLine = new byte[10];
+    private byte[] buffer = BufferPool.shared().takeArray();
+    private int count;
+    private boolean closed;
+
+    ChunkedOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override public void write(int b) throws IOException {
+      checkOpen();
+      if (count == buffer.length) writeBuffer();
+      buffer[count++] = (byte) b;
+    }
+
+    @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+      checkOpen();
+      if (count == 0 && length >= buffer.length) {
+        // large writes skip the copy
+        writeChunk(bytes, offset, length);
+        return;
+      }
+      while (length > 0) {
+        int n = Math.min(length, buffer.length - count);
+        System.arraycopy(bytes, offset, buffer, count, n);
+        count += n;
+        offset += n;
+        length -= n;
+        if (count == buffer.length) writeBuffer();
+      }
+    }
+
+    @Override public void flush() throws IOException {
+      checkOpen();
+      writeBuffer();
+      out.flush();
+    }
+
+    /** Writes last chunk, underlying stream stays open */
+    @Override public void close() throws IOException {
+      if (closed) return;
+      writeBuffer();
+      out.write('0');
+      out.write(CRLF);
+      out.write(CRLF);
+      closed = true;
+    }
+
+    void release() {
+      closed = true;
+      BufferPool.shared().releaseArray(buffer);
+      buffer = null;
+    }
+
+    private void writeBuffer() throws IOException {
+      if (count == 0) return;
+      writeChunk(buffer, 0, count);
+      count = 0;
+    }
+
+    private void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+      // hex size and CRLF, written backwards from the end of sizeLine
+      int position = sizeLine.length;
+      sizeLine[--position] = '\n';
+      sizeLine[--position] = '\r';
+      int size = length;
+      do {
+        sizeLine[--position] = HEX_DIGITS[size & 0xf];
+        size >>>= 4;
+      } while (size != 0);
+      out.write(sizeLine, position, sizeLine.length - position);
+      out.write(bytes, offset, length);
+      out.write(CRLF);
+    }
+
+    private void checkOpen() throws IOException {
+      if (closed) throw new IOException("Stream closed");
+    }
+  }
+
+  /** Fails as soon as body grows past declared Content-Length */
+  static final class FixedLengthOutputStream extends OutputStream {
+    private final OutputStream out;
+    long remaining;
+
+    FixedLengthOutputStream(OutputStream out, long length) {
+      this.out = out;
+      this.remaining = length;
+    }
+
+    @Override public void write(int b) throws IOException {
+      if (remaining == 0) {
+        throw new ProtocolException("Body is longer than declared Content-Length");
+      }
+      out.write(b);
+      remaining--;
+    }
+
+    @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+      if (length > remaining) {
+        throw new ProtocolException("Body is longer than declared Content-Length");
+      }
+      out.write(bytes, offset, length);
+      remaining -= length;
+    }
+
+    @Override public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override public void close() {
+      // connection stays open, body end is checked by caller
+    }
+  }
+
+  /**
+   * Writes message head as ISO-8859-1 straight into a pooled buffer, which goes to out whenever
+   * it fills up, so no strings or byte arrays are created on the way
+   */
+  static final class HeadWriter {
+    private final OutputStream out;
+    private byte[] buffer = BufferPool.shared().takeArray();
+    private int count;
+
+    HeadWriter(OutputStream out) {
+      this.out = out;
+    }
+
+    HeadWriter write(String string) throws IOException {
+      for (int i = 0, length = string.length(); i < length; i++) {
+        write(string.charAt(i));
+      }
+      return this;
+    }
+
+    HeadWriter write(char c) throws IOException {
+      if (count == buffer.length) flush();
+      buffer[count++] = (byte) (c <= 0xff ? c : '?');
+      return this;
+    }
+
+    HeadWriter write(long value) throws IOException {
+      if (value < 0) {
+        write('-');
+        if (value == Long.MIN_VALUE) return write("9223372036854775808");
+        value = -value;
+      }
+      if (value >= 10) write(value / 10);
+      return write((char) ('0' + value % 10));
+    }
+
+    HeadWriter crlf() throws IOException {
+      return write('\r').write('\n');
+    }
+
+    /** Header field followed by CRLF */
+    HeadWriter header(String name, String value) throws IOException {
+      return write(name).write(':').write(' ').write(value).crlf();
+    }
+
+    /** Writes what is buffered to out, out itself is not flushed */
+    void flush() throws IOException {
+      out.write(buffer, 0, count);
+      count = 0;
+    }
+
+    /** Returns buffer to the pool, unflushed bytes are dropped */
+    void release() {
+      BufferPool.shared().releaseArray(buffer);
+      buffer = null;
+    }
+  }
+}
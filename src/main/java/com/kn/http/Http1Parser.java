@@ -0,0 +1,331 @@
+package com.kn.http;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental parser of HTTP/1.1 message head: request or status line followed by header
+ * fields, RFC 7230 3. Bytes may arrive in any number of buffers split at any point, parser
+ * keeps partial line between calls. Lines are scanned as bytes, without regex or intermediate
+ * line strings, well known header names are not allocated at all. One parser is reused for
+ * every message read from a connection.
+ *
+ * @author nk
+ */
+final class Http1Parser {
+  static final int MAX_LINE_LENGTH = 1024 * 64;
+
+  enum Mode {
+    REQUEST, RESPONSE,
+    /** Trailer fields after the last chunk, there is no start line */
+    TRAILERS
+  }
+
+  /** {@link Headers#COMMON_NAMES} as bytes, they are returned without allocation */
+  private static final byte[][] COMMON_NAMES;
+
+  static {
+    COMMON_NAMES = new byte[Headers.COMMON_NAMES.length][];
+    for (int i = 0; i < COMMON_NAMES.length; i++) {
+      COMMON_NAMES[i] = Headers.COMMON_NAMES[i].getBytes(StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private final Mode mode;
+  private byte[] line = new byte[256];
+  private int lineLength;
+  private boolean startLineDone;
+  private boolean done;
+  private long consumed;
+
+  private String method;
+  private String target;
+  private String version;
+  private int code;
+  private String reason;
+  private final Headers.Builder fields = new Headers.Builder();
+  private Headers headers = Headers.EMPTY;
+
+  Http1Parser(Mode mode) {
+    this.mode = mode;
+    reset();
+  }
+
+  /** Prepares parser for next message, keeping its line buffer */
+  void reset() {
+    lineLength = 0;
+    startLineDone = mode == Mode.TRAILERS;
+    done = false;
+    consumed = 0;
+    method = null;
+    target = null;
+    version = null;
+    code = 0;
+    reason = null;
+    fields.clear();
+    headers = Headers.EMPTY;
+  }
+
+  /**
+   * Consumes bytes of buffer up to the end of head. Buffer position is left at the first byte
+   * after head, which is the first byte of body.
+   *
+   * @return true when head is complete, false when more bytes are needed
+   */
+  boolean parse(ByteBuffer buffer) throws ProtocolException {
+    if (done) return true;
+    if (buffer.hasArray()) {
+      byte[] array = buffer.array();
+      int offset = buffer.arrayOffset();
+      int position = buffer.position();
+      int limit = buffer.limit();
+      try {
+        while (position < limit) {
+          byte b = array[offset + position++];
+          if (b == '\n') {
+            if (endOfLine()) return true;
+          } else {
+            append(b);
+          }
+        }
+      } finally {
+        consumed += position - buffer.position();
+        buffer.position(position);
+      }
+    } else {
+      while (buffer.hasRemaining()) {
+        byte b = buffer.get();
+        consumed++;
+        if (b == '\n') {
+          if (endOfLine()) return true;
+        } else {
+          append(b);
+        }
+      }
+    }
+    return false;
+  }
+
+  boolean isDone() {
+    return done;
+  }
+
+  /** Bytes consumed since reset, including the final empty line once head is complete */
+  long consumed() {
+    return consumed;
+  }
+
+  /** Whether nothing at all was consumed since reset */
+  boolean isEmpty() {
+    return consumed == 0;
+  }
+
+  String method() {
+    return method;
+  }
+
+  /** Request target exactly as sent, may be empty */
+  String target() {
+    return target;
+  }
+
+  /** Such as HTTP/1.1, for request lines it is whatever follows target */
+  String version() {
+    return version;
+  }
+
+  int code() {
+    return code;
+  }
+
+  String reason() {
+    return reason;
+  }
+
+  /** Fields in order of arrival, empty until head is complete */
+  Headers headers() {
+    return headers;
+  }
+
+  private void append(byte b) throws ProtocolException {
+    if (lineLength == line.length) {
+      if (lineLength == MAX_LINE_LENGTH) throw new ProtocolException("Line is too long");
+      line = Arrays.copyOf(line, Math.min(MAX_LINE_LENGTH, lineLength * 2));
+    }
+    line[lineLength++] = b;
+  }
+
+  /** Handles line accumulated so far, true once head is complete */
+  private boolean endOfLine() throws ProtocolException {
+    int length = lineLength;
+    if (length > 0 && line[length - 1] == '\r') length--;
+    lineLength = 0;
+
+    if (!startLineDone) {
+      // RFC 7230 3.5, empty lines before start line are ignored
+      if (length == 0) return false;
+      if (mode == Mode.REQUEST) {
+        requestLine(length);
+      } else {
+        statusLine(length);
+      }
+      startLineDone = true;
+      return false;
+    }
+    if (length == 0) {
+      headers = fields.build();
+      done = true;
+      return true;
+    }
+    headerLine(length);
+    return false;
+  }
+
+  /** METHOD SP target SP version, target may be empty */
+  private void requestLine(int length) throws ProtocolException {
+    int first = indexOf(' ', 0, length);
+    int last = lastIndexOf(' ', length);
+    if (first <= 0 || last == first) {
+      throw new ProtocolException("Unexpected request line: " + string(0, length));
+    }
+    method = string(0, first);
+    target = string(first + 1, last);
+    version = string(last + 1, length);
+  }
+
+  /** HTTP/1.x SP 3DIGIT SP reason, reason may be missing */
+  private void statusLine(int length) throws ProtocolException {
+    if (length < 12 || line[0] != 'H' || line[1] != 'T' || line[2] != 'T' || line[3] != 'P'
+        || line[4] != '/' || line[5] != '1' || line[6] != '.' || line[8] != ' '
+        || (length > 12 && line[12] != ' ')) {
+      throw new ProtocolException("Unexpected status line: " + string(0, length));
+    }
+    int value = 0;
+    for (int i = 9; i < 12; i++) {
+      int digit = line[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new ProtocolException("Unexpected status line: " + string(0, length));
+      }
+      value = value * 10 + digit;
+    }
+    code = value;
+    version = line[7] == '1' ? "HTTP/1.1" : string(0, 8);
+    reason = length > 13 ? string(13, length) : "";
+  }
+
+  /** name ":" OWS value OWS, or obsolete continuation of previous value */
+  private void headerLine(int length) throws ProtocolException {
+    for (int i = 0; i < length; i++) {
+      // RFC 9110 5.5, such field must be rejected
+      if (line[i] == '\r' || line[i] == 0) {
+        throw new ProtocolException("Unexpected header: " + string(0, length));
+      }
+    }
+    if (line[0] == ' ' || line[0] == '\t') {
+      // RFC 7230 3.2.4, obsolete line folding is replaced with a space
+      if (fields.isEmpty()) throw new ProtocolException("Unexpected header continuation");
+      int start = skipWhitespace(0, length);
+      fields.appendToLast(string(start, trimEnd(start, length)));
+      return;
+    }
+
+    int colon = indexOf(':', 0, length);
+    if (colon <= 0 || line[colon - 1] == ' ' || line[colon - 1] == '\t') {
+      throw new ProtocolException("Unexpected header: " + string(0, length));
+    }
+    String name = name(colon);
+    int start = skipWhitespace(colon + 1, length);
+    fields.add(name, string(start, trimEnd(start, length)));
+  }
+
+  private String name(int length) {
+    for (int i = 0; i < COMMON_NAMES.length; i++) {
+      byte[] common = COMMON_NAMES[i];
+      if (common.length == length && equalsIgnoreCase(common, length)) {
+        return Headers.COMMON_NAMES[i];
+      }
+    }
+    return string(0, length);
+  }
+
+  private boolean equalsIgnoreCase(byte[] known, int length) {
+    for (int i = 0; i < length; i++) {
+      int a = known[i];
+      int b = line[i];
+      // ASCII letters differ only in bit 0x20
+      if (a != b && ((a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int indexOf(char c, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (line[i] == c) return i;
+    }
+    return -1;
+  }
+
+  private int lastIndexOf(char c, int to) {
+    for (int i = to - 1; i >= 0; i--) {
+      if (line[i] == c) return i;
+    }
+    return -1;
+  }
+
+  private int skipWhitespace(int from, int to) {
+    while (from < to && (line[from] == ' ' || line[from] == '\t')) from++;
+    return from;
+  }
+
+  private int trimEnd(int from, int to) {
+    while (to > from && (line[to - 1] == ' ' || line[to - 1] == '\t')) to--;
+    return to;
+  }
+
+  private String string(int from, int to) {
+    return new String(line, from, to - from, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Buffered stream of a connection whose buffer parser reads in place, so head bytes are
+   * copied only once, from socket into this buffer.
+   */
+  static final class Source extends BufferedInputStream {
+
+    Source(InputStream in, int size) {
+      super(in, size);
+    }
+
+    /**
+     * Feeds buffered bytes to parser until head is complete, reading more when buffer runs
+     * dry. Bytes after head stay buffered for body.
+     *
+     * @return false if stream ended before a single byte of head
+     * @throws EOFException if stream ended in the middle of head
+     */
+    synchronized boolean readHead(Http1Parser parser) throws IOException {
+      while (true) {
+        if (pos == count) {
+          // read() refills buffer, its byte is put back right away
+          if (read() == -1) {
+            if (parser.isEmpty()) return false;
+            throw new EOFException("Unexpected end of stream");
+          }
+          pos--;
+        }
+        ByteBuffer window = ByteBuffer.wrap(buf, pos, count - pos);
+        boolean done = parser.parse(window);
+        pos = window.position();
+        if (done) return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,513 @@
+package com.kn.http;
+
+import com.kn.http.Connection.Address;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HTTP/2 connection (RFC 7540) multiplexing many {@link Http2Stream}s over one socket. A daemon
+ * reader thread demultiplexes incoming frames, callers write their own frames under a lock.
+ * Lock order is writeLock first, then connection monitor which guards flow control windows
+ * and stream bookkeeping.
+ *
+ * @author nk
+ */
+final class Http2Connection implements Runnable {
+  static final byte[] PREFACE = {
+      'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+      '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+  };
+
+  static final int TYPE_DATA = 0x0;
+  static final int TYPE_HEADERS = 0x1;
+  static final int TYPE_PRIORITY = 0x2;
+  static final int TYPE_RST_STREAM = 0x3;
+  static final int TYPE_SETTINGS = 0x4;
+  static final int TYPE_PUSH_PROMISE = 0x5;
+  static final int TYPE_PING = 0x6;
+  static final int TYPE_GOAWAY = 0x7;
+  static final int TYPE_WINDOW_UPDATE = 0x8;
+  static final int TYPE_CONTINUATION = 0x9;
+
+  static final int FLAG_END_STREAM = 0x1;
+  static final int FLAG_ACK = 0x1;
+  static final int FLAG_END_HEADERS = 0x4;
+  static final int FLAG_PADDED = 0x8;
+  static final int FLAG_PRIORITY = 0x20;
+
+  static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  static final int SETTINGS_ENABLE_PUSH = 0x2;
+  static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+  static final int ERROR_NO_ERROR = 0x0;
+  static final int ERROR_PROTOCOL = 0x1;
+  static final int ERROR_FLOW_CONTROL = 0x3;
+  static final int ERROR_REFUSED_STREAM = 0x7;
+  static final int ERROR_CANCEL = 0x8;
+
+  static final int DEFAULT_WINDOW = 65535;
+  static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+  /** What we allow peer to send on a single stream before its body is consumed */
+  static final int STREAM_RECEIVE_WINDOW = 1024 * 1024;
+  static final int CONNECTION_RECEIVE_WINDOW = 1024 * 1024 * 16;
+
+  final Address address;
+  private final Socket socket;
+  private final DataInputStream in;
+  private final OutputStream out;
+  private final Object writeLock = new Object();
+  private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+  /** Used by reader thread only */
+  private final Hpack.Decoder decoder = new Hpack.Decoder();
+
+  // guarded by this
+  private int nextStreamId = 1;
+  private int reservedStreams;
+  private boolean shutdown;
+  private IOException failure;
+  private long sendWindow = DEFAULT_WINDOW;
+  private int peerInitialWindow = DEFAULT_WINDOW;
+  private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+  private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+  private int unacknowledgedBytes;
+
+  private Http2Connection(Address address, Socket socket) throws IOException {
+    this.address = address;
+    this.socket = socket;
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1024 * 16));
+    this.out = new BufferedOutputStream(socket.getOutputStream(), 1024 * 16);
+  }
+
+  /** Starts HTTP/2 over already connected socket, TLS handshake must be done by now */
+  static Http2Connection start(Address address, Socket socket) throws IOException {
+    Http2Connection connection = new Http2Connection(address, socket);
+    // reader thread waits for frames as long as connection lives
+    socket.setSoTimeout(0);
+    connection.writePreface();
+
+    Thread reader = new Thread(connection, "http2-reader-" + address.host);
+    reader.setDaemon(true);
+    reader.start();
+    return connection;
+  }
+
+  private void writePreface() throws IOException {
+    ByteArrayOutputStream settings = new ByteArrayOutputStream();
+    writeSetting(settings, SETTINGS_ENABLE_PUSH, 0);
+    writeSetting(settings, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_RECEIVE_WINDOW);
+    synchronized (writeLock) {
+      out.write(PREFACE);
+      writeFrame(TYPE_SETTINGS, 0, 0, settings.toByteArray(), 0, settings.size());
+      writeWindowUpdateFrame(0, CONNECTION_RECEIVE_WINDOW - DEFAULT_WINDOW);
+      out.flush();
+    }
+  }
+
+  /** Whether new streams may be opened */
+  synchronized boolean isUsable() {
+    return !shutdown && !socket.isClosed();
+  }
+
+  /**
+   * Opens stream sending its request headers, blocks while peer's concurrent stream limit is
+   * reached.
+   */
+  Http2Stream newStream(List<String> fields, boolean endStream, long timeoutMillis)
+      throws IOException {
+    synchronized (this) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (!shutdown && streams.size() + reservedStreams >= peerMaxConcurrentStreams) {
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) throw new SocketTimeoutException("No free HTTP/2 stream");
+        waitQuietly(wait);
+      }
+      if (shutdown) throw new Http2Stream.RefusedStreamException("Connection is shut down");
+      reservedStreams++;
+    }
+
+    ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+    for (int i = 0; i < fields.size(); i += 2) {
+      Hpack.encode(fields.get(i), fields.get(i + 1), block);
+    }
+    byte[] bytes = block.toByteArray();
+
+    Http2Stream stream;
+    // stream ids must reach the wire in increasing order
+    synchronized (writeLock) {
+      synchronized (this) {
+        reservedStreams--;
+        if (shutdown) throw new Http2Stream.RefusedStreamException("Connection is shut down");
+        stream = new Http2Stream(this, nextStreamId, peerInitialWindow, STREAM_RECEIVE_WINDOW);
+        nextStreamId += 2;
+        streams.put(stream.id, stream);
+      }
+
+      int flags = endStream ? FLAG_END_STREAM : 0;
+      int maxFrameSize = peerMaxFrameSize();
+      int length = Math.min(bytes.length, maxFrameSize);
+      writeFrame(TYPE_HEADERS, flags | (length == bytes.length ? FLAG_END_HEADERS : 0), stream.id,
+          bytes, 0, length);
+      for (int offset = length; offset < bytes.length; offset += length) {
+        length = Math.min(bytes.length - offset, maxFrameSize);
+        writeFrame(TYPE_CONTINUATION, offset + length == bytes.length ? FLAG_END_HEADERS : 0,
+            stream.id, bytes, offset, length);
+      }
+      out.flush();
+    }
+    return stream;
+  }
+
+  /** Sends request body respecting both connection and stream flow control windows */
+  void writeData(Http2Stream stream, byte[] buffer, int offset, int count, boolean endStream,
+      long timeoutMillis) throws IOException {
+    do {
+      int length;
+      synchronized (this) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (count > 0 && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+          stream.checkWritable();
+          if (shutdown) throw failure != null ? failure : new IOException("Connection shut down");
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) throw new SocketTimeoutException("Flow control window is exhausted");
+          waitQuietly(wait);
+        }
+        stream.checkWritable();
+        length = (int) Math.min(Math.min(count, peerMaxFrameSize),
+            Math.min(sendWindow, stream.sendWindow));
+        sendWindow -= length;
+        stream.sendWindow -= length;
+      }
+
+      boolean last = endStream && length == count;
+      synchronized (writeLock) {
+        writeFrame(TYPE_DATA, last ? FLAG_END_STREAM : 0, stream.id, buffer, offset, length);
+        out.flush();
+      }
+      offset += length;
+      count -= length;
+    } while (count > 0);
+  }
+
+  void writeRstStream(int streamId, int errorCode) {
+    byte[] payload = intBytes(errorCode);
+    try {
+      synchronized (writeLock) {
+        writeFrame(TYPE_RST_STREAM, 0, streamId, payload, 0, payload.length);
+        out.flush();
+      }
+    } catch (IOException ignored) {
+      // connection is broken anyway, reader thread will notice it
+    }
+  }
+
+  void writeWindowUpdate(int streamId, int increment) {
+    try {
+      synchronized (writeLock) {
+        writeWindowUpdateFrame(streamId, increment);
+        out.flush();
+      }
+    } catch (IOException ignored) {
+    }
+  }
+
+  void removeStream(Http2Stream stream) {
+    if (streams.remove(stream.id) == null) return;
+    boolean drained;
+    synchronized (this) {
+      drained = shutdown && streams.isEmpty();
+      notifyAll();
+    }
+    // connection which got GOAWAY lives only until its last stream completes
+    if (drained) HttpClient.closeQuietly(socket);
+  }
+
+  synchronized int peerMaxFrameSize() {
+    return peerMaxFrameSize;
+  }
+
+  int streamCount() {
+    return streams.size();
+  }
+
+  /** Closes socket failing every open stream */
+  void close() {
+    fail(new IOException("Connection closed"));
+  }
+
+  @Override public void run() {
+    try {
+      byte[] headerBlock = null;
+      int headerStreamId = 0;
+      int headerFlags = 0;
+
+      while (true) {
+        int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int streamId = in.readInt() & 0x7fffffff;
+        // we never raise max frame size, so peer must stick to the default one
+        if (length > DEFAULT_MAX_FRAME_SIZE) throw new ProtocolException("Frame is too large");
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        if (headerBlock != null && (type != TYPE_CONTINUATION || streamId != headerStreamId)) {
+          throw new ProtocolException("Expected CONTINUATION of stream " + headerStreamId);
+        }
+
+        switch (type) {
+          case TYPE_DATA:
+            onData(streamId, flags, payload);
+            break;
+          case TYPE_HEADERS: {
+            int offset = 0;
+            int end = length;
+            if ((flags & FLAG_PADDED) != 0 && length > 0) {
+              end -= payload[offset++] & 0xff;
+            }
+            if ((flags & FLAG_PRIORITY) != 0) offset += 5;
+            if (offset > end) throw new ProtocolException("Malformed HEADERS");
+            headerBlock = Arrays.copyOfRange(payload, offset, end);
+            headerStreamId = streamId;
+            headerFlags = flags;
+            if ((flags & FLAG_END_HEADERS) != 0) {
+              onHeaders(headerStreamId, headerFlags, headerBlock);
+              headerBlock = null;
+            }
+            break;
+          }
+          case TYPE_CONTINUATION:
+            if (headerBlock == null) throw new ProtocolException("Unexpected CONTINUATION");
+            byte[] joined = Arrays.copyOf(headerBlock, headerBlock.length + length);
+            System.arraycopy(payload, 0, joined, headerBlock.length, length);
+            headerBlock = joined;
+            if ((flags & FLAG_END_HEADERS) != 0) {
+              onHeaders(headerStreamId, headerFlags, headerBlock);
+              headerBlock = null;
+            }
+            break;
+          case TYPE_RST_STREAM: {
+            Http2Stream stream = streams.get(streamId);
+            if (stream != null) {
+              removeStream(stream);
+              int code = readInt(payload, 0);
+              stream.fail(code == ERROR_REFUSED_STREAM
+                  ? new Http2Stream.RefusedStreamException("Stream refused")
+                  : new IOException("Stream reset, error code " + code));
+            }
+            break;
+          }
+          case TYPE_SETTINGS:
+            if ((flags & FLAG_ACK) == 0) onSettings(payload);
+            break;
+          case TYPE_PING:
+            if ((flags & FLAG_ACK) == 0) {
+              synchronized (writeLock) {
+                writeFrame(TYPE_PING, FLAG_ACK, 0, payload, 0, payload.length);
+                out.flush();
+              }
+            }
+            break;
+          case TYPE_GOAWAY:
+            onGoAway(readInt(payload, 0) & 0x7fffffff, readInt(payload, 4));
+            break;
+          case TYPE_WINDOW_UPDATE:
+            onWindowUpdate(streamId, readInt(payload, 0) & 0x7fffffff);
+            break;
+          case TYPE_PUSH_PROMISE:
+            throw new ProtocolException("Server push is disabled");
+          default:
+            // PRIORITY and unknown frames are ignored
+        }
+      }
+    } catch (IOException e) {
+      fail(e);
+    } catch (RuntimeException e) {
+      // frame shorter than its type requires, reader must not die leaving streams hanging
+      ProtocolException protocolException = new ProtocolException("Malformed frame");
+      protocolException.initCause(e);
+      fail(protocolException);
+    }
+  }
+
+  private void onData(int streamId, int flags, byte[] payload) throws IOException {
+    int offset = 0;
+    int end = payload.length;
+    if ((flags & FLAG_PADDED) != 0 && end > 0) {
+      end -= payload[offset++] & 0xff;
+      if (end < offset) throw new ProtocolException("Malformed DATA");
+    }
+
+    // whole frame counts against connection window, no matter whether anybody reads it
+    int update = 0;
+    synchronized (this) {
+      unacknowledgedBytes += payload.length;
+      if (unacknowledgedBytes >= CONNECTION_RECEIVE_WINDOW / 2) {
+        update = unacknowledgedBytes;
+        unacknowledgedBytes = 0;
+      }
+    }
+    if (update > 0) writeWindowUpdate(0, update);
+
+    Http2Stream stream = streams.get(streamId);
+    if (stream == null) return;
+    boolean endStream = (flags & FLAG_END_STREAM) != 0;
+    if (endStream) removeStream(stream);
+    int streamUpdate = stream.receiveData(payload, offset, end - offset,
+        payload.length - (end - offset), endStream);
+    if (streamUpdate == -1) {
+      removeStream(stream);
+      stream.fail(new ProtocolException("Flow control window exceeded"));
+      writeRstStream(streamId, ERROR_FLOW_CONTROL);
+    } else if (streamUpdate > 0) {
+      writeWindowUpdate(streamId, streamUpdate);
+    }
+  }
+
+  private void onHeaders(int streamId, int flags, byte[] block) throws IOException {
+    // block must be decoded even for unknown streams, it changes decoder state
+    List<String> fields = decoder.decode(block, 0, block.length);
+    Http2Stream stream = streams.get(streamId);
+    if (stream == null) return;
+    boolean endStream = (flags & FLAG_END_STREAM) != 0;
+    if (endStream) removeStream(stream);
+    stream.receiveHeaders(fields, endStream);
+  }
+
+  private void onSettings(byte[] payload) throws IOException {
+    synchronized (this) {
+      for (int offset = 0; offset + 6 <= payload.length; offset += 6) {
+        int id = (payload[offset] & 0xff) << 8 | (payload[offset + 1] & 0xff);
+        int value = readInt(payload, offset + 2);
+        switch (id) {
+          case SETTINGS_MAX_CONCURRENT_STREAMS:
+            peerMaxConcurrentStreams = value;
+            break;
+          case SETTINGS_INITIAL_WINDOW_SIZE:
+            if (value < 0) throw new ProtocolException("Window size " + value);
+            int delta = value - peerInitialWindow;
+            peerInitialWindow = value;
+            for (Http2Stream stream : streams.values()) {
+              stream.sendWindow += delta;
+            }
+            break;
+          case SETTINGS_MAX_FRAME_SIZE:
+            if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+              throw new ProtocolException("Max frame size " + value);
+            }
+            peerMaxFrameSize = value;
+            break;
+          default:
+            // header table size only matters for encoder with dynamic table, ours has none
+        }
+      }
+      notifyAll();
+    }
+
+    synchronized (writeLock) {
+      writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+      out.flush();
+    }
+  }
+
+  private void onGoAway(int lastStreamId, int errorCode) {
+    List<Http2Stream> refused = new ArrayList<>();
+    synchronized (this) {
+      shutdown = true;
+      for (Http2Stream stream : streams.values()) {
+        if (stream.id > lastStreamId) refused.add(stream);
+      }
+      notifyAll();
+    }
+    if (streams.isEmpty()) HttpClient.closeQuietly(socket);
+    // streams above last id were never processed and may be retried on another connection
+    for (Http2Stream stream : refused) {
+      removeStream(stream);
+      stream.fail(new Http2Stream.RefusedStreamException("GOAWAY, error code " + errorCode));
+    }
+  }
+
+  private void onWindowUpdate(int streamId, int increment) throws ProtocolException {
+    if (increment == 0) throw new ProtocolException("Zero window update");
+    synchronized (this) {
+      if (streamId == 0) {
+        sendWindow += increment;
+      } else {
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) stream.sendWindow += increment;
+      }
+      notifyAll();
+    }
+  }
+
+  private void fail(IOException e) {
+    synchronized (this) {
+      if (failure == null) failure = e;
+      shutdown = true;
+      notifyAll();
+    }
+    HttpClient.closeQuietly(socket);
+    for (Http2Stream stream : streams.values()) {
+      removeStream(stream);
+      stream.fail(e);
+    }
+  }
+
+  /** Must hold writeLock */
+  private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset,
+      int length) throws IOException {
+    out.write(length >>> 16);
+    out.write(length >>> 8);
+    out.write(length);
+    out.write(type);
+    out.write(flags);
+    out.write(intBytes(streamId & 0x7fffffff));
+    out.write(payload, offset, length);
+  }
+
+  /** Must hold writeLock */
+  private void writeWindowUpdateFrame(int streamId, int increment) throws IOException {
+    byte[] payload = intBytes(increment);
+    writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+  }
+
+  private void waitQuietly(long millis) throws IOException {
+    try {
+      wait(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private static void writeSetting(ByteArrayOutputStream out, int id, int value) {
+    out.write(id >>> 8);
+    out.write(id);
+    out.write(intBytes(value), 0, 4);
+  }
+
+  static byte[] intBytes(int value) {
+    return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
+        (byte) value};
+  }
+
+  static int readInt(byte[] bytes, int offset) throws ProtocolException {
+    if (offset + 4 > bytes.length) throw new ProtocolException("Truncated frame");
+    return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+        | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+  }
+}
@@ -0,0 +1,218 @@
+package com.kn.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Single request/response exchange inside {@link Http2Connection}. Reader thread pushes
+ * headers and data in, caller thread waits for them. Received bytes stay in memory until
+ * caller reads them, that is at most {@link Http2Connection#STREAM_RECEIVE_WINDOW} since
+ * window is only replenished for consumed bytes.
+ *
+ * @author nk
+ */
+final class Http2Stream {
+  final int id;
+  private final Http2Connection connection;
+  private final int receiveWindow;
+  /** Guarded by connection */
+  long sendWindow;
+
+  // guarded by this
+  private List<String> headers;
+  private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+  private int chunkOffset;
+  private int buffered;
+  private boolean finished;
+  private IOException error;
+  private int unacknowledgedBytes;
+
+  Http2Stream(Http2Connection connection, int id, int sendWindow, int receiveWindow) {
+    this.connection = connection;
+    this.id = id;
+    this.sendWindow = sendWindow;
+    this.receiveWindow = receiveWindow;
+  }
+
+  synchronized void receiveHeaders(List<String> fields, boolean endStream) {
+    if (headers == null) {
+      String status = field(fields, ":status");
+      // 1xx responses are followed by the final one
+      if (status == null || status.length() != 3 || status.charAt(0) != '1') headers = fields;
+    }
+    // later header blocks are trailers, nobody asks for them
+    if (endStream) finished = true;
+    notifyAll();
+  }
+
+  /**
+   * Returns window increment which should be sent to peer, or -1 when peer does not respect
+   * our flow control window
+   */
+  synchronized int receiveData(byte[] payload, int offset, int length, int padding,
+      boolean endStream) {
+    if (buffered + length > receiveWindow) return -1;
+    if (length > 0 && error == null) {
+      byte[] chunk = new byte[length];
+      System.arraycopy(payload, offset, chunk, 0, length);
+      chunks.add(chunk);
+      buffered += length;
+    }
+    if (endStream) finished = true;
+    notifyAll();
+    // padding is never read by caller, acknowledge it right away
+    return padding > 0 && !finished ? acknowledge(padding) : 0;
+  }
+
+  synchronized void fail(IOException e) {
+    // once END_STREAM arrived whole body is here, losing connection does not matter
+    if (error == null && !finished) error = e;
+    notifyAll();
+  }
+
+  /** Throws when peer reset the stream or it was canceled */
+  synchronized void checkWritable() throws IOException {
+    if (error != null) throw error;
+  }
+
+  synchronized List<String> awaitHeaders(long timeoutMillis) throws IOException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (headers == null) {
+      if (error != null) throw error;
+      if (finished) throw new IOException("Stream finished without response headers");
+      await(deadline);
+    }
+    return headers;
+  }
+
+  /** Resets stream, unblocking everybody who waits for it */
+  void cancel() {
+    boolean open;
+    synchronized (this) {
+      open = !finished;
+      if (error == null) error = new IOException("Canceled");
+      chunks.clear();
+      notifyAll();
+    }
+    connection.removeStream(this);
+    if (open) connection.writeRstStream(id, Http2Connection.ERROR_CANCEL);
+  }
+
+  OutputStream outputStream(final long timeoutMillis) {
+    return new OutputStream() {
+      private final byte[] single = new byte[1];
+
+      @Override public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+      }
+
+      @Override public void write(byte[] buffer, int offset, int count) throws IOException {
+        if (count > 0) connection.writeData(Http2Stream.this, buffer, offset, count, false,
+            timeoutMillis);
+      }
+
+      @Override public void close() throws IOException {
+        connection.writeData(Http2Stream.this, new byte[0], 0, 0, true, timeoutMillis);
+      }
+    };
+  }
+
+  InputStream inputStream(final long timeoutMillis) {
+    return new InputStream() {
+      private final byte[] single = new byte[1];
+      private boolean closed;
+
+      @Override public int read() throws IOException {
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+      }
+
+      @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) return 0;
+        int update;
+        int read;
+        synchronized (Http2Stream.this) {
+          if (closed) throw new IOException("Stream closed");
+          long deadline = System.currentTimeMillis() + timeoutMillis;
+          while (chunks.isEmpty()) {
+            if (error != null) throw error;
+            if (finished) return -1;
+            await(deadline);
+          }
+
+          byte[] chunk = chunks.peek();
+          read = Math.min(count, chunk.length - chunkOffset);
+          System.arraycopy(chunk, chunkOffset, buffer, offset, read);
+          chunkOffset += read;
+          if (chunkOffset == chunk.length) {
+            chunks.poll();
+            chunkOffset = 0;
+          }
+          buffered -= read;
+          update = finished ? 0 : acknowledge(read);
+        }
+        if (update > 0) connection.writeWindowUpdate(id, update);
+        return read;
+      }
+
+      @Override public int available() {
+        synchronized (Http2Stream.this) {
+          return buffered;
+        }
+      }
+
+      @Override public void close() {
+        boolean drained;
+        synchronized (Http2Stream.this) {
+          if (closed) return;
+          closed = true;
+          drained = finished && chunks.isEmpty();
+        }
+        // abandoned body must not keep flowing in
+        if (!drained) cancel();
+      }
+    };
+  }
+
+  /** Returns window increment to send once enough bytes were consumed, 0 otherwise */
+  private int acknowledge(int bytes) {
+    unacknowledgedBytes += bytes;
+    if (unacknowledgedBytes < receiveWindow / 2) return 0;
+    int update = unacknowledgedBytes;
+    unacknowledgedBytes = 0;
+    return update;
+  }
+
+  private void await(long deadline) throws IOException {
+    long wait = deadline - System.currentTimeMillis();
+    if (wait <= 0) throw new SocketTimeoutException("Read timed out");
+    try {
+      wait(wait);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  static String field(List<String> fields, String name) {
+    for (int i = 0; i < fields.size(); i += 2) {
+      if (fields.get(i).equals(name)) return fields.get(i + 1);
+    }
+    return null;
+  }
+
+  /** Stream was never processed by server, request may be safely sent again */
+  static final class RefusedStreamException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RefusedStreamException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package com.kn.http;
+
+import com.kn.http.Connection.Address;
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * HTTP/2 transport. Plain http uses h2c with prior knowledge, https negotiates h2 via ALPN and
+ * hosts which only speak HTTP/1.1 are served by {@link SocketTransport}. All requests to one
+ * origin are multiplexed over a single connection, so {@link NetworkDispatcher} per-host limit
+ * counts concurrent streams rather than sockets.
+ *
+ * @author nk
+ */
+public final class Http2Transport implements Transport {
+  private static final String[] APPLICATION_PROTOCOLS = {"h2", "http/1.1"};
+
+  private final Object LOCK = new Object();
+  private final Map<Address, Http2Connection> connections = new HashMap<>();
+  /** Hosts which did not agree on h2 during ALPN */
+  private final Set<Address> http1Only =
+      Collections.newSetFromMap(new ConcurrentHashMap<Address, Boolean>());
+  private final ConcurrentMap<Address, Object> connectLocks = new ConcurrentHashMap<>();
+  private final SSLSocketFactory sslSocketFactory;
+  private final Dns dns;
+  private final SocketTransport fallback;
+
+  public Http2Transport() {
+    this((SSLSocketFactory) SSLSocketFactory.getDefault());
+  }
+
+  public Http2Transport(SSLSocketFactory sslSocketFactory) {
+    this(sslSocketFactory, Dns.SYSTEM);
+  }
+
+  public Http2Transport(SSLSocketFactory sslSocketFactory, Dns dns) {
+    if (sslSocketFactory == null) throw new NullPointerException("SSLSocketFactory is null");
+    if (dns == null) throw new NullPointerException("Dns is null");
+    this.sslSocketFactory = sslSocketFactory;
+    this.dns = dns;
+    this.fallback = new SocketTransport(new ConnectionPool(), sslSocketFactory, dns);
+  }
+
+  @Override public Exchange newExchange(Request request, int connectTimeout, int readTimeout) {
+    return newExchange(request, connectTimeout, readTimeout, EventListener.NONE);
+  }
+
+  @Override public Exchange newExchange(Request request, int connectTimeout, int readTimeout,
+      EventListener listener) {
+    return new Http2Exchange(request, connectTimeout, readTimeout, listener);
+  }
+
+  /** Number of open HTTP/2 connections */
+  public int connectionCount() {
+    synchronized (LOCK) {
+      return connections.size();
+    }
+  }
+
+  /** Closes every connection, streams in flight fail */
+  public void shutdown() {
+    List<Http2Connection> closing;
+    synchronized (LOCK) {
+      closing = new ArrayList<>(connections.values());
+      connections.clear();
+    }
+    for (Http2Connection connection : closing) {
+      connection.close();
+    }
+    fallback.connectionPool().evictAll();
+  }
+
+  /** Returns shared connection to address or null if address does not speak HTTP/2 */
+  private Http2Connection connection(Address address, int connectTimeout, int readTimeout,
+      EventListener listener, Canceler canceler) throws IOException {
+    Http2Connection connection = usableConnection(address);
+    if (connection != null) {
+      listener.connectionAcquired(true);
+      return connection;
+    }
+
+    // concurrent callers wait for single connect instead of racing to open their own sockets
+    Object connectLock = connectLocks.get(address);
+    if (connectLock == null) {
+      Object created = new Object();
+      connectLock = connectLocks.putIfAbsent(address, created);
+      if (connectLock == null) connectLock = created;
+    }
+    synchronized (connectLock) {
+      connection = usableConnection(address);
+      if (connection != null) {
+        listener.connectionAcquired(true);
+        return connection;
+      }
+      if (http1Only.contains(address)) return null;
+
+      Socket socket = Connection.openSocket(address, sslSocketFactory, dns, connectTimeout,
+          readTimeout, APPLICATION_PROTOCOLS, listener, canceler);
+      if (address.secure && !"h2".equals(Connection.applicationProtocol(socket))) {
+        HttpClient.closeQuietly(socket);
+        http1Only.add(address);
+        return null;
+      }
+
+      try {
+        connection = Http2Connection.start(address, socket);
+      } catch (IOException e) {
+        HttpClient.closeQuietly(socket);
+        throw e;
+      }
+      synchronized (LOCK) {
+        connections.put(address, connection);
+      }
+      listener.connectionAcquired(false);
+      return connection;
+    }
+  }
+
+  private Http2Connection usableConnection(Address address) {
+    synchronized (LOCK) {
+      Http2Connection connection = connections.get(address);
+      if (connection != null && connection.isUsable()) return connection;
+      connections.remove(address);
+      return null;
+    }
+  }
+
+  private final class Http2Exchange extends RedirectingExchange {
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final EventListener listener;
+    private volatile Http2Stream stream;
+    private volatile Exchange http1Exchange;
+    private volatile boolean canceled;
+    private final Canceler canceler = new Canceler();
+
+    Http2Exchange(Request request, int connectTimeout, int readTimeout,
+        EventListener listener) {
+      super(request);
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+      this.listener = listener;
+    }
+
+    @Override Response executeOnce(URL url, HttpMethod method, RequestBody body)
+        throws IOException {
+      Address address = Address.of(url);
+      for (int attempt = 0; ; attempt++) {
+        checkCanceled();
+        Http2Connection connection = http1Only.contains(address)
+            ? null : connection(address, connectTimeout, readTimeout, listener, canceler);
+        if (connection == null) return executeHttp1(url, method, body);
+
+        try {
+          return executeOn(connection, url, method, body);
+        } catch (Http2Stream.RefusedStreamException e) {
+          // server never processed the stream, it is safe to send it once more
+          if (attempt > 0 || canceled || !isRepeatable(body)) throw e;
+        }
+      }
+    }
+
+    private Response executeOn(Http2Connection connection, URL url, HttpMethod method,
+        RequestBody body) throws IOException {
+      listener.requestStart();
+      Http2Stream stream = connection.newStream(requestFields(url, method, body), body == null,
+          readTimeout);
+      this.stream = stream;
+      if (canceled) stream.cancel();
+      checkCanceled();
+
+      if (body != null) {
+        OutputStream output = stream.outputStream(readTimeout);
+        body.writeTo(output);
+        output.close();
+      }
+      listener.requestEnd();
+
+      List<String> fields = stream.awaitHeaders(readTimeout);
+      int code;
+      try {
+        code = Integer.parseInt(Http2Stream.field(fields, ":status"));
+      } catch (NumberFormatException e) {
+        stream.cancel();
+        throw new ProtocolException("Unexpected :status " + fields);
+      }
+      listener.responseStart(code);
+
+      Headers.Builder builder = new Headers.Builder();
+      for (int i = 0; i < fields.size(); i += 2) {
+        String name = fields.get(i);
+        if (name.startsWith(":")) continue;
+        try {
+          builder.add(name, fields.get(i + 1));
+        } catch (IllegalArgumentException e) {
+          stream.cancel();
+          throw new ProtocolException("Unexpected header: " + name);
+        }
+      }
+      Headers headers = builder.build();
+
+      InputStream input = stream.inputStream(readTimeout);
+      InputStream responseBody = Http1Codec.hasBody(code)
+          ? HttpClient.decode(input, headers.get("Content-Encoding")) : input;
+      return new Response(code, headers, responseBody);
+    }
+
+    private List<String> requestFields(URL url, HttpMethod method, RequestBody body)
+        throws IOException {
+      String target = url.getFile();
+      String authority = url.getPort() == -1 || url.getPort() == url.getDefaultPort()
+          ? url.getHost() : url.getHost() + ":" + url.getPort();
+
+      List<String> fields = new ArrayList<>(16);
+      fields.add(":method");
+      fields.add(method.methodName());
+      fields.add(":scheme");
+      fields.add(url.getProtocol());
+      fields.add(":authority");
+      fields.add(authority);
+      fields.add(":path");
+      fields.add(target.length() == 0 ? "/" : target);
+
+      boolean hasLength = false;
+      Headers headers = request.headers;
+      for (int i = 0, size = headers.size(); i < size; i++) {
+        String name = headers.name(i).toLowerCase(Locale.US);
+        // connection specific headers are forbidden in HTTP/2
+        if (name.equals("host") || name.equals("connection") || name.equals("keep-alive")
+            || name.equals("proxy-connection") || name.equals("transfer-encoding")
+            || name.equals("upgrade")) {
+          continue;
+        }
+        if (name.equals("content-length")) hasLength = true;
+        fields.add(name);
+        fields.add(headers.value(i));
+      }
+      long length = body == null ? -1 : body.contentLength();
+      if (!hasLength && length != -1) {
+        fields.add("content-length");
+        fields.add(String.valueOf(length));
+      }
+      return fields;
+    }
+
+    private Response executeHttp1(URL url, HttpMethod method, RequestBody body)
+        throws IOException {
+      Request hop = new Request(url, method, request.headers, body);
+      Exchange exchange = fallback.newExchange(hop, connectTimeout, readTimeout, listener);
+      http1Exchange = exchange;
+      if (canceled) exchange.cancel();
+      return exchange.execute();
+    }
+
+    private void checkCanceled() throws IOException {
+      if (canceled) throw new IOException("Canceled");
+    }
+
+    @Override public void cancel() {
+      canceled = true;
+      canceler.cancel();
+      Http2Stream stream = this.stream;
+      if (stream != null) stream.cancel();
+      Exchange exchange = http1Exchange;
+      if (exchange != null) exchange.cancel();
+    }
+  }
+}
@@ -0,0 +1,715 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Private HTTP cache (RFC 7234) for GET responses. Entries live in a size bounded in-memory LRU
+ * and, optionally, in a size bounded directory. Fresh entries are served without touching the
+ * network, stale ones carrying ETag or Last-Modified are revalidated with a conditional request.
+ *
+ * @author nk
+ */
+public final class HttpCache {
+  private static final int ENTRY_MAGIC = 0x48430001;
+  private static final String ENTRY_SUFFIX = ".entry";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /** Heuristic freshness never exceeds one day */
+  private static final long MAX_HEURISTIC_MILLIS = 24L * 60 * 60 * 1000;
+
+  private final Object LOCK = new Object();
+  private final long maxMemoryBytes;
+  private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+  private long memoryBytes;
+
+  private final File directory;
+  private final long maxDiskBytes;
+  /** Entry file name to its size, in access order */
+  private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+  private long diskBytes;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong revalidationCount = new AtomicLong();
+
+  /** Memory only cache */
+  public HttpCache(long maxMemoryBytes) {
+    this(maxMemoryBytes, null, 0);
+  }
+
+  /**
+   * @param directory where entries survive restarts, each entry is a separate file written
+   * atomically, so crash may lose an entry but never corrupts one
+   */
+  public HttpCache(long maxMemoryBytes, File directory, long maxDiskBytes) {
+    if (maxMemoryBytes < 0) throw new IllegalArgumentException("maxMemoryBytes < 0");
+    if (directory != null && maxDiskBytes <= 0) {
+      throw new IllegalArgumentException("maxDiskBytes <= 0");
+    }
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.directory = directory;
+    this.maxDiskBytes = maxDiskBytes;
+    if (directory != null) loadDirectory();
+  }
+
+  /** Requests served from cache without network */
+  public long hitCount() {
+    return hitCount.get();
+  }
+
+  /** Requests which had to download response body */
+  public long missCount() {
+    return missCount.get();
+  }
+
+  /** Stale entries confirmed by server with 304 Not Modified */
+  public long revalidationCount() {
+    return revalidationCount.get();
+  }
+
+  public long memorySize() {
+    synchronized (LOCK) {
+      return memoryBytes;
+    }
+  }
+
+  public long diskSize() {
+    synchronized (LOCK) {
+      return diskBytes;
+    }
+  }
+
+  /** Drops every entry from both tiers */
+  public void evictAll() {
+    List<String> files;
+    synchronized (LOCK) {
+      memory.clear();
+      memoryBytes = 0;
+      files = new ArrayList<>(disk.keySet());
+      disk.clear();
+      diskBytes = 0;
+    }
+    for (String file : files) {
+      new File(directory, file).delete();
+    }
+  }
+
+  /** Single round trip through transport, used for misses and revalidation */
+  interface Network {
+    Response execute(Request request) throws IOException;
+  }
+
+  Response execute(Request request, Network network) throws IOException {
+    String key = request.url.toString();
+    if (request.method != HttpMethod.GET) {
+      Response response = network.execute(request);
+      // unsafe method invalidates what we know about the resource
+      if (response.code() < 400) remove(key);
+      return response;
+    }
+    // entries hold whole bodies, part of one is not what range request asked for
+    if (requestHeader(request, "Range") != null) return network.execute(request);
+
+    Map<String, String> requestCacheControl =
+        cacheControl(requestHeader(request, "Cache-Control"));
+    boolean requestNoCache = requestCacheControl.containsKey("no-cache")
+        || "no-cache".equalsIgnoreCase(requestHeader(request, "Pragma"));
+    // caller does its own conditional request, let it see the real answer
+    boolean conditional = requestHeader(request, "If-None-Match") != null
+        || requestHeader(request, "If-Modified-Since") != null;
+
+    Entry entry = conditional ? null : get(key);
+    if (entry != null && !entry.matchesVary(request)) entry = null;
+
+    long now = System.currentTimeMillis();
+    if (entry != null && !requestNoCache && entry.isFresh(now, requestCacheControl)) {
+      hitCount.incrementAndGet();
+      return entry.response();
+    }
+    if (requestCacheControl.containsKey("only-if-cached")) {
+      missCount.incrementAndGet();
+      return new Response(504, Headers.EMPTY, new ByteArrayInputStream(new byte[0]));
+    }
+
+    Request networkRequest = entry != null && entry.hasValidator()
+        ? entry.conditionalRequest(request) : request;
+    long sentAt = now;
+    Response response = network.execute(networkRequest);
+    long receivedAt = System.currentTimeMillis();
+
+    if (entry != null && response.code() == 304) {
+      response.close();
+      revalidationCount.incrementAndGet();
+      Entry updated = entry.revalidated(response.headers(), sentAt, receivedAt);
+      put(key, updated);
+      return updated.response();
+    }
+
+    missCount.incrementAndGet();
+    if (!isCacheable(request, requestCacheControl, response)) {
+      if (entry != null) remove(key);
+      return response;
+    }
+    long maxEntryBytes = Math.max(maxMemoryBytes, directory != null ? maxDiskBytes : 0);
+    InputStream body = new CachingStream(response.stream(), key, request, response, sentAt,
+        receivedAt, maxEntryBytes);
+    return new Response(response.code(), response.headers(), body);
+  }
+
+  private static boolean isCacheable(Request request, Map<String, String> requestCacheControl,
+      Response response) {
+    switch (response.code()) {
+      case 200:
+      case 203:
+      case 204:
+      case 300:
+      case 301:
+      case 404:
+      case 405:
+      case 410:
+      case 414:
+      case 501:
+        break;
+      default:
+        return false;
+    }
+    if (response.stream() == null) return false;
+    Map<String, String> cacheControl = cacheControl(joined(response.headers("Cache-Control")));
+    if (cacheControl.containsKey("no-store") || requestCacheControl.containsKey("no-store")) {
+      return false;
+    }
+    if ("*".equals(response.header("Vary"))) return false;
+    if (requestHeader(request, "Authorization") != null && !cacheControl.containsKey("public")
+        && !cacheControl.containsKey("must-revalidate") && !cacheControl.containsKey("s-maxage")) {
+      return false;
+    }
+    return true;
+  }
+
+  private Entry get(String key) {
+    synchronized (LOCK) {
+      Entry entry = memory.get(key);
+      if (entry != null || directory == null) return entry;
+      if (!disk.containsKey(fileName(key))) return null;
+    }
+
+    Entry entry = readEntry(key);
+    if (entry == null) return null;
+    synchronized (LOCK) {
+      putInMemory(key, entry);
+    }
+    return entry;
+  }
+
+  private void put(String key, Entry entry) {
+    if (!entry.isStorable()) {
+      remove(key);
+      return;
+    }
+    synchronized (LOCK) {
+      putInMemory(key, entry);
+    }
+    if (directory != null) writeEntry(key, entry);
+  }
+
+  private void remove(String key) {
+    String file = fileName(key);
+    boolean onDisk;
+    synchronized (LOCK) {
+      Entry removed = memory.remove(key);
+      if (removed != null) memoryBytes -= removed.size();
+      Long size = disk.remove(file);
+      onDisk = size != null;
+      if (onDisk) diskBytes -= size;
+    }
+    if (onDisk) new File(directory, file).delete();
+  }
+
+  /** Must hold LOCK */
+  private void putInMemory(String key, Entry entry) {
+    Entry previous = memory.remove(key);
+    if (previous != null) memoryBytes -= previous.size();
+    if (entry.size() > maxMemoryBytes) return;
+    memory.put(key, entry);
+    memoryBytes += entry.size();
+    Iterator<Entry> eldest = memory.values().iterator();
+    while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+      memoryBytes -= eldest.next().size();
+      eldest.remove();
+    }
+  }
+
+  private void loadDirectory() {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalArgumentException("Can not create " + directory);
+    }
+    File[] files = directory.listFiles();
+    if (files == null) return;
+    // least recently used first, so that access order survives restart
+    Arrays.sort(files, new Comparator<File>() {
+      @Override public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    synchronized (LOCK) {
+      for (File file : files) {
+        if (file.getName().endsWith(TMP_SUFFIX)) {
+          // leftover of interrupted write
+          file.delete();
+        } else if (file.getName().endsWith(ENTRY_SUFFIX)) {
+          disk.put(file.getName(), file.length());
+          diskBytes += file.length();
+        }
+      }
+    }
+    trimDisk();
+  }
+
+  private Entry readEntry(String key) {
+    File file = new File(directory, fileName(key));
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      Entry entry = Entry.readFrom(in);
+      if (!entry.url.equals(key)) return null;
+      file.setLastModified(System.currentTimeMillis());
+      return entry;
+    } catch (IOException e) {
+      // unreadable entry is as good as missing one
+      remove(key);
+      return null;
+    } finally {
+      HttpClient.closeQuietly(in);
+    }
+  }
+
+  private void writeEntry(String key, Entry entry) {
+    String name = fileName(key);
+    File tmp = new File(directory, name + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+    File file = new File(directory, name);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      entry.writeTo(out);
+      out.close();
+      out = null;
+      if (!tmp.renameTo(file)) {
+        file.delete();
+        if (!tmp.renameTo(file)) throw new IOException("Can not rename " + tmp);
+      }
+    } catch (IOException e) {
+      HttpClient.closeQuietly(out);
+      tmp.delete();
+      return;
+    }
+
+    synchronized (LOCK) {
+      Long previous = disk.put(name, file.length());
+      if (previous != null) diskBytes -= previous;
+      diskBytes += file.length();
+    }
+    trimDisk();
+  }
+
+  private void trimDisk() {
+    List<String> evicted = new ArrayList<>();
+    synchronized (LOCK) {
+      Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+      while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+        Map.Entry<String, Long> next = eldest.next();
+        diskBytes -= next.getValue();
+        evicted.add(next.getKey());
+        eldest.remove();
+      }
+    }
+    for (String file : evicted) {
+      new File(directory, file).delete();
+    }
+  }
+
+  private static String fileName(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+      StringBuilder builder = new StringBuilder(digest.length * 2 + ENTRY_SUFFIX.length());
+      for (byte b : digest) {
+        builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+            .append(Character.forDigit(b & 0xf, 16));
+      }
+      return builder.append(ENTRY_SUFFIX).toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static String requestHeader(Request request, String name) {
+    return request.headers.get(name);
+  }
+
+  /** Lowercase directive names to their values, null for directives without value */
+  static Map<String, String> cacheControl(String header) {
+    if (header == null) return Collections.emptyMap();
+    Map<String, String> directives = new HashMap<>();
+    for (String directive : header.split(",")) {
+      directive = directive.trim();
+      if (directive.length() == 0) continue;
+      int equals = directive.indexOf('=');
+      if (equals == -1) {
+        directives.put(directive.toLowerCase(Locale.US), null);
+      } else {
+        String value = directive.substring(equals + 1).trim();
+        if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+          value = value.substring(1, value.length() - 1);
+        }
+        directives.put(directive.substring(0, equals).trim().toLowerCase(Locale.US), value);
+      }
+    }
+    return directives;
+  }
+
+  private static String joined(List<String> values) {
+    if (values.isEmpty()) return null;
+    if (values.size() == 1) return values.get(0);
+    StringBuilder builder = new StringBuilder();
+    for (String value : values) {
+      if (builder.length() > 0) builder.append(',');
+      builder.append(value);
+    }
+    return builder.toString();
+  }
+
+  /** Seconds value of directive, -1 when absent or malformed */
+  private static long seconds(Map<String, String> directives, String name) {
+    String value = directives.get(name);
+    if (value == null) return -1;
+    try {
+      return Math.max(0, Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  static long parseDate(String value) {
+    if (value == null) return -1;
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return format.parse(value).getTime();
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  /** Stored response, immutable */
+  static final class Entry {
+    final String url;
+    final int code;
+    final Headers headers;
+    /** Request header values response varies on */
+    final Map<String, String> varyHeaders;
+    final long sentAtMillis;
+    final long receivedAtMillis;
+    final byte[] body;
+
+    Entry(String url, int code, Headers headers,
+        Map<String, String> varyHeaders, long sentAtMillis, long receivedAtMillis, byte[] body) {
+      this.url = url;
+      this.code = code;
+      this.headers = headers;
+      this.varyHeaders = varyHeaders;
+      this.sentAtMillis = sentAtMillis;
+      this.receivedAtMillis = receivedAtMillis;
+      this.body = body;
+    }
+
+    static Entry of(String url, Request request, Response response, long sentAtMillis,
+        long receivedAtMillis, byte[] body) {
+      // transports hand out decoded bodies, stored headers must describe what we store
+      Headers headers = response.headers().newBuilder()
+          .removeAll("Content-Encoding")
+          .set("Content-Length", String.valueOf(body.length))
+          .build();
+
+      Map<String, String> varyHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      for (String vary : response.headers("Vary")) {
+        for (String name : vary.split(",")) {
+          name = name.trim();
+          if (name.length() > 0) varyHeaders.put(name, requestHeader(request, name));
+        }
+      }
+      return new Entry(url, response.code(), headers, varyHeaders, sentAtMillis,
+          receivedAtMillis, body);
+    }
+
+    long size() {
+      return body.length + url.length() + 64L * headers.size();
+    }
+
+    boolean matchesVary(Request request) {
+      for (Map.Entry<String, String> vary : varyHeaders.entrySet()) {
+        String value = requestHeader(request, vary.getKey());
+        if (value == null ? vary.getValue() != null : !value.equals(vary.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    boolean hasValidator() {
+      return header("ETag") != null || header("Last-Modified") != null;
+    }
+
+    /** Worth keeping only if it may be served fresh or revalidated */
+    boolean isStorable() {
+      return hasValidator() || freshnessLifetime() > 0;
+    }
+
+    boolean isFresh(long nowMillis, Map<String, String> requestCacheControl) {
+      Map<String, String> cacheControl = cacheControl(joined(headers("Cache-Control")));
+      if (cacheControl.containsKey("no-cache")) return false;
+
+      long lifetime = freshnessLifetime();
+      long requestMaxAge = seconds(requestCacheControl, "max-age");
+      if (requestMaxAge != -1) lifetime = Math.min(lifetime, requestMaxAge * 1000);
+      long minFresh = seconds(requestCacheControl, "min-fresh");
+      long maxStale = cacheControl.containsKey("must-revalidate")
+          ? -1 : seconds(requestCacheControl, "max-stale");
+
+      long age = age(nowMillis);
+      if (minFresh != -1) age += minFresh * 1000;
+      return age < lifetime + (maxStale != -1 ? maxStale * 1000 : 0);
+    }
+
+    /** RFC 7234 4.2.1 */
+    long freshnessLifetime() {
+      Map<String, String> cacheControl = cacheControl(joined(headers("Cache-Control")));
+      long maxAge = seconds(cacheControl, "max-age");
+      if (maxAge != -1) return maxAge * 1000;
+
+      long date = parseDate(header("Date"));
+      long served = date != -1 ? date : receivedAtMillis;
+      long expires = parseDate(header("Expires"));
+      if (header("Expires") != null) return Math.max(0, expires - served);
+
+      long lastModified = parseDate(header("Last-Modified"));
+      if (lastModified != -1 && lastModified < served) {
+        return Math.min((served - lastModified) / 10, MAX_HEURISTIC_MILLIS);
+      }
+      return 0;
+    }
+
+    /** RFC 7234 4.2.3 */
+    long age(long nowMillis) {
+      long date = parseDate(header("Date"));
+      long apparentAge = date != -1 ? Math.max(0, receivedAtMillis - date) : 0;
+      long ageValue = 0;
+      try {
+        String age = header("Age");
+        if (age != null) ageValue = Long.parseLong(age) * 1000;
+      } catch (NumberFormatException ignored) {
+      }
+      long correctedAge = Math.max(apparentAge, ageValue + receivedAtMillis - sentAtMillis);
+      return correctedAge + nowMillis - receivedAtMillis;
+    }
+
+    Request conditionalRequest(Request request) {
+      String etag = header("ETag");
+      Headers.Builder headers = request.headers.newBuilder();
+      if (etag != null) {
+        headers.set("If-None-Match", etag);
+      } else {
+        headers.set("If-Modified-Since", header("Last-Modified"));
+      }
+
+      return new Request(request.url, request.method, headers.build(), null);
+    }
+
+    /** Same body with headers refreshed by 304 response, RFC 7234 4.3.4 */
+    Entry revalidated(Headers notModifiedHeaders, long sentAtMillis, long receivedAtMillis) {
+      Headers.Builder merged = headers.newBuilder();
+      for (String name : notModifiedHeaders.names()) {
+        if (name.equalsIgnoreCase("Content-Length")
+            || name.equalsIgnoreCase("Content-Encoding")
+            || name.equalsIgnoreCase("Transfer-Encoding")) {
+          continue;
+        }
+        merged.removeAll(name);
+        for (String value : notModifiedHeaders.values(name)) {
+          merged.add(name, value);
+        }
+      }
+      return new Entry(url, code, merged.build(), varyHeaders, sentAtMillis, receivedAtMillis,
+          body);
+    }
+
+    Response response() {
+      // headers are immutable, every hit shares them
+      return new Response(code, headers, new ByteArrayInputStream(body));
+    }
+
+    private String header(String name) {
+      return headers.get(name);
+    }
+
+    private List<String> headers(String name) {
+      return headers.values(name);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.writeInt(ENTRY_MAGIC);
+      out.writeUTF(url);
+      out.writeInt(code);
+      out.writeLong(sentAtMillis);
+      out.writeLong(receivedAtMillis);
+      // every field is written as a name with one value
+      out.writeInt(headers.size());
+      for (int i = 0; i < headers.size(); i++) {
+        out.writeUTF(headers.name(i));
+        out.writeInt(1);
+        out.writeUTF(headers.value(i));
+      }
+      out.writeInt(varyHeaders.size());
+      for (Map.Entry<String, String> vary : varyHeaders.entrySet()) {
+        out.writeUTF(vary.getKey());
+        out.writeBoolean(vary.getValue() != null);
+        if (vary.getValue() != null) out.writeUTF(vary.getValue());
+      }
+      out.writeInt(body.length);
+      out.write(body);
+    }
+
+    static Entry readFrom(DataInputStream in) throws IOException {
+      if (in.readInt() != ENTRY_MAGIC) throw new IOException("Not a cache entry");
+      String url = in.readUTF();
+      int code = in.readInt();
+      long sentAtMillis = in.readLong();
+      long receivedAtMillis = in.readLong();
+      Headers.Builder headers = new Headers.Builder();
+      for (int i = in.readInt(); i > 0; i--) {
+        String name = in.readUTF();
+        for (int j = in.readInt(); j > 0; j--) {
+          headers.add(name, in.readUTF());
+        }
+      }
+      Map<String, String> varyHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      for (int i = in.readInt(); i > 0; i--) {
+        String name = in.readUTF();
+        varyHeaders.put(name, in.readBoolean() ? in.readUTF() : null);
+      }
+      byte[] body = new byte[in.readInt()];
+      in.readFully(body);
+      return new Entry(url, code, headers.build(), varyHeaders, sentAtMillis, receivedAtMillis,
+          body);
+    }
+  }
+
+  /** Hands body to caller while keeping a copy, which is stored once body is read completely */
+  private final class CachingStream extends FilterInputStream {
+    private final String key;
+    private final Request request;
+    private final Response response;
+    private final long sentAtMillis;
+    private final long receivedAtMillis;
+    private final long maxBytes;
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    CachingStream(InputStream in, String key, Request request, Response response,
+        long sentAtMillis, long receivedAtMillis, long maxBytes) {
+      super(in);
+      this.key = key;
+      this.request = request;
+      this.response = response;
+      this.sentAtMillis = sentAtMillis;
+      this.receivedAtMillis = receivedAtMillis;
+      this.maxBytes = maxBytes;
+    }
+
+    @Override public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        complete();
+      } else if (copy != null) {
+        copy.write(b);
+        checkSize();
+      }
+      return b;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+      int read = super.read(buffer, offset, count);
+      if (read == -1) {
+        complete();
+      } else if (copy != null) {
+        copy.write(buffer, offset, read);
+        checkSize();
+      }
+      return read;
+    }
+
+    @Override public long skip(long n) throws IOException {
+      // skipped bytes never reach the copy
+      copy = null;
+      return super.skip(n);
+    }
+
+    @Override public boolean markSupported() {
+      return false;
+    }
+
+    private void checkSize() {
+      if (copy.size() > maxBytes) copy = null;
+    }
+
+    private void complete() {
+      if (copy == null) return;
+      byte[] body = copy.toByteArray();
+      copy = null;
+      if (!isComplete(body.length)) return;
+      put(key, Entry.of(key, request, response, sentAtMillis, receivedAtMillis, body));
+    }
+
+    /** End of stream may still be a cut off body, plain body must match its Content-Length */
+    private boolean isComplete(long length) {
+      // decoded length has nothing to do with encoded one
+      if (response.header("Content-Encoding") != null) return true;
+      String contentLength = response.header("Content-Length");
+      if (contentLength == null) return true;
+      try {
+        return Long.parseLong(contentLength.trim()) == length;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+  }
+}
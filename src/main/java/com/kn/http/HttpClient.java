@@ -1,22 +1,34 @@
 package com.kn.http;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.ProtocolException;
 import java.net.URL;
-import java.util.Collections;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Very very simple HttpClient
@@ -57,6 +69,15 @@ public final class HttpClient {
 
   private int readTimeout = 1000 * 20; // default 20 sec
   private int connectTimeout = 1000 * 20; // default 20 sec
+  private int callTimeout; // no limit by default
+  private Transport transport = new UrlConnectionTransport();
+  private HttpCache cache;
+  private EventListener.Factory eventListenerFactory = EventListener.NONE_FACTORY;
+  private RetryPolicy retryPolicy = RetryPolicy.NONE;
+  private boolean compression = true;
+
+  /** Fires call timeouts and dispatcher hedges, its single thread must never block */
+  static final ScheduledThreadPoolExecutor TIMERS = newTimerExecutor();
 
   public HttpClient() {
   }
@@ -75,151 +96,367 @@ public final class HttpClient {
     this.connectTimeout = timeout;
   }
 
-  public Call call(final Request request) {
-
-    return new Call() {
-      public HttpURLConnection connection;
-
-      @Override public Response execute() throws IOException {
-        connection = (HttpURLConnection) request.url.openConnection();
-        connection.setRequestMethod(request.method.methodName());
-        connection.setReadTimeout(readTimeout);
-        connection.setConnectTimeout(connectTimeout);
-        copyHeaders(connection, request.headers);
-
-        Response response = null;
-
-        switch (request.method) {
-          case PUT:
-          case PATCH:
-          case POST:
-            response = doPost(connection, request, request.method.method);
-            break;
-          case GET:
-            response = doGet(connection);
-            break;
-        }
+  /** Limits every call from connect till the end of response body, 0 means no limit */
+  public void callTimeout(int timeout) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout < 0");
+    }
+    this.callTimeout = timeout;
+  }
 
-        return response;
-      }
+  public void transport(Transport transport) {
+    if (transport == null) throw new NullPointerException("Transport is null");
+    this.transport = transport;
+  }
+
+  /** Enables response caching, null disables it */
+  public void cache(HttpCache cache) {
+    this.cache = cache;
+  }
 
-      @Override public boolean isExecuted() {
-        return connection != null;
+  /** Same listener receives events of every call */
+  public void eventListener(final EventListener listener) {
+    if (listener == null) throw new NullPointerException("EventListener is null");
+    eventListenerFactory(new EventListener.Factory() {
+      @Override public EventListener create(Request request) {
+        return listener;
       }
+    });
+  }
 
-      @Override public void cancel() {
-        if (connection == null) {
-          throw new IllegalStateException("http call has not been executed");
-        }
-        // TODO what should we do to in order to say that call is really cancelled?
-        // or another question, is it possible to cancel already started connection in a proper way?
-        // if we are waiting for server to establish connection, can we cancel that?
-        // seems that HttpURLConnection does not have such functionality
-        connection.disconnect();
+  /** Factory creates separate listener for each call, see {@link HttpMetrics} */
+  public void eventListenerFactory(EventListener.Factory factory) {
+    if (factory == null) throw new NullPointerException("EventListener.Factory is null");
+    this.eventListenerFactory = factory;
+  }
+
+  /** Retries failed idempotent requests, nothing is retried by default */
+  public void retryPolicy(RetryPolicy retryPolicy) {
+    if (retryPolicy == null) throw new NullPointerException("RetryPolicy is null");
+    this.retryPolicy = retryPolicy;
+  }
+
+  /**
+   * Asks servers for gzip or deflate compressed responses by sending Accept-Encoding, unless
+   * request has its own. Compressed bodies are decoded either way. Enabled by default.
+   */
+  public void compression(boolean enabled) {
+    this.compression = enabled;
+  }
+
+  public Call call(Request request) {
+    if (request == null) throw new NullPointerException("Request is null");
+    return new RealCall(request, callTimeout);
+  }
+
+  /**
+   * Executes requests and returns responses in the same order. {@link SocketTransport} pipelines
+   * GET requests to the same host, other transports execute them one by one.
+   */
+  public List<Response> executeBatch(List<Request> requests) throws IOException {
+    if (requests == null) throw new NullPointerException("Requests are null");
+    return transport.executeBatch(requests, connectTimeout, readTimeout);
+  }
+
+  private static ScheduledThreadPoolExecutor newTimerExecutor() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "http-client-timer");
+        thread.setDaemon(true);
+        return thread;
       }
-    };
+    });
+    // most calls finish in time and most hedges are not needed, timers should not pile up
+    executor.setRemoveOnCancelPolicy(true);
+    return executor;
+  }
+
+  /** See {@link ContentEncoding#decode} */
+  static InputStream decode(InputStream stream, String contentEncoding) throws IOException {
+    return ContentEncoding.decode(stream, contentEncoding, BufferPool.shared());
   }
 
-  private final Response doGet(HttpURLConnection connection) throws IOException {
-    connection.setDoOutput(false);
+  public interface Call {
+    /**
+     * @throws InterruptedIOException when call timeout elapsed
+     * @throws IOException with message "Canceled" when call was canceled
+     * @see HttpClient#retryPolicy(RetryPolicy)
+     */
+    Response execute() throws IOException;
+
+    /**
+     * Limits whole call, from connect till the end of response body, must be set before
+     * execute. Overrides {@link HttpClient#callTimeout(int)}, 0 means no limit.
+     */
+    Call timeout(long timeout, TimeUnit unit);
 
-    InputStream inputStream = null;
-    try {
-      Response response = new Response();
-      response.connection = connection;
-      response.code = connection.getResponseCode();
-      response.inputStream = inputStream = inputStream(connection);
-      response.headers = connection.getHeaderFields();
-
-      return response;
-    } catch (IOException exception) {
-      closeQuietly(inputStream);
-      connection.disconnect();
-      throw exception;
+    boolean isExecuted();
+
+    boolean isCanceled();
+
+    /**
+     * Cancels call at any moment, even before it is executed. Socket the call uses is closed
+     * at once, so blocked execute or body read fail right away. Cancel of finished call does
+     * nothing.
+     */
+    void cancel();
+
+    /**
+     * Executes call on given executor without blocking caller. Cancelling returned future
+     * cancels the call, response which arrives after that is closed.
+     */
+    default CompletableFuture<Response> executeAsync(Executor executor) {
+      final Call call = this;
+      final CompletableFuture<Response> future = new CompletableFuture<Response>() {
+        @Override public boolean cancel(boolean mayInterruptIfRunning) {
+          boolean canceled = super.cancel(mayInterruptIfRunning);
+          if (canceled) call.cancel();
+          return canceled;
+        }
+      };
+
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          if (future.isDone()) return;
+          try {
+            Response response = call.execute();
+            if (!future.complete(response)) response.close();
+          } catch (Throwable e) {
+            future.completeExceptionally(e);
+          }
+        }
+      });
+      return future;
     }
   }
 
-  private final Response doPost(HttpURLConnection connection, Request request, String method)
-      throws IOException {
-    connection.setDoOutput(request.stream != null);
-    connection.setRequestMethod(method);
+  /**
+   * Cancel marks call first, so cancel which comes before execute or between its steps is never
+   * lost, then closes whatever socket call is using at the moment, whether it is connecting,
+   * writing or reading.
+   */
+  private final class RealCall implements Call {
+    private final Request request;
+    private long timeoutMillis;
+    private volatile boolean executed;
+    private volatile boolean canceled;
+    private volatile boolean timedOut;
+    private volatile Transport.Exchange exchange;
+    /** Wakes up retry backoff on cancel */
+    private final CountDownLatch cancelSignal = new CountDownLatch(1);
+
+    RealCall(Request request, long timeoutMillis) {
+      this.request = request;
+      this.timeoutMillis = timeoutMillis;
+    }
 
-    OutputStream outputStream = null;
-    InputStream inputStream = null;
+    @Override public Call timeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+      if (unit == null) throw new NullPointerException("TimeUnit is null");
+      if (executed) throw new IllegalStateException("Call is already executed");
+      this.timeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
 
-    try {
-      outputStream = connection.getOutputStream();
-      copy(request.stream, outputStream);
-
-      Response response = new Response();
-      response.connection = connection;
-      response.code = connection.getResponseCode();
-      response.inputStream = inputStream = inputStream(connection);
-      response.headers = connection.getHeaderFields();
-
-      return response;
-    } catch (IOException exception) {
-      closeQuietly(outputStream);
-      closeQuietly(inputStream);
-      connection.disconnect();
-      throw exception;
+    @Override public Response execute() throws IOException {
+      executed = true;
+      final EventListener listener = eventListenerFactory.create(request);
+      listener.callStart(request);
+      ScheduledFuture<?> timeout = timeoutMillis == 0 ? null : TIMERS.schedule(new Runnable() {
+        @Override public void run() {
+          timedOut = true;
+          cancel();
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+      Response response = null;
+      try {
+        checkCanceled();
+        Request request = this.request;
+        if (compression && request.header("Accept-Encoding") == null) {
+          request = request.withHeader("Accept-Encoding", ContentEncoding.ACCEPT_ENCODING);
+        }
+        HttpCache cache = HttpClient.this.cache;
+        if (cache == null) {
+          response = executeOnNetwork(request, listener);
+        } else {
+          response = cache.execute(request, new HttpCache.Network() {
+            @Override public Response execute(Request request) throws IOException {
+              return executeOnNetwork(request, listener);
+            }
+          });
+        }
+        response = EventListener.observe(response, listener);
+        return timeout == null ? response : withTimeout(response, timeout);
+      } catch (IOException e) {
+        IOException failure = canceled ? canceledException(e) : e;
+        listener.callFailed(failure);
+        throw failure;
+      } finally {
+        if (response == null && timeout != null) timeout.cancel(false);
+      }
     }
-  }
 
-  //TODO find out which stream is better to provide to user
-  private InputStream inputStream(HttpURLConnection connection) throws IOException {
-    InputStream stream;
-    if (connection.getResponseCode() < 400) {
-      stream = connection.getInputStream();
-    } else {
-      stream = connection.getErrorStream();
-      if (stream == null) {
-        stream = connection.getInputStream();
+    /** Call timeout covers all attempts and pauses between them */
+    private Response executeOnNetwork(Request request, EventListener listener)
+        throws IOException {
+      RetryPolicy policy = retryPolicy;
+      if (!policy.isRetryable(request)) return executeOnce(request, listener);
+      policy.budget.deposit();
+      for (int attempt = 1; ; attempt++) {
+        Response response;
+        try {
+          response = executeOnce(request, listener);
+        } catch (IOException e) {
+          if (canceled || !RetryPolicy.isRetryable(e) || !policy.canRetry(attempt)) throw e;
+          backoff(policy.backoffMillis(attempt));
+          continue;
+        }
+        if (!RetryPolicy.isRetryable(response.code()) || !policy.canRetry(attempt)) {
+          return response;
+        }
+        response.close();
+        backoff(policy.backoffMillis(attempt));
       }
     }
 
-    if ("gzip".equals(connection.getHeaderField("Content-Encoding"))) {
-      return new GZIPInputStream(stream);
-    } else {
-      return stream;
+    private void backoff(long millis) throws IOException {
+      try {
+        cancelSignal.await(millis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting to retry");
+      }
+      checkCanceled();
     }
-  }
 
-  private void copyHeaders(HttpURLConnection connection, Map<String, String> headers) {
-    if (headers != null && !headers.isEmpty()) {
-      for (Map.Entry<String, String> entry : headers.entrySet()) {
-        connection.setRequestProperty(entry.getKey(), entry.getValue());
+    private Response executeOnce(Request request, EventListener listener) throws IOException {
+      Transport.Exchange exchange =
+          transport.newExchange(request, connectTimeout, readTimeout, listener);
+      this.exchange = exchange;
+      // cancel could have missed exchange, it is checked after exchange is published
+      checkCanceled();
+      return exchange.execute();
+    }
+
+    /** Body has to be read before timeout too, timer stops at its end */
+    private Response withTimeout(Response response, final ScheduledFuture<?> timeout) {
+      InputStream body = response.stream();
+      if (body == null) {
+        timeout.cancel(false);
+        return response;
       }
+      return new Response(response.code(), response.headers(), new FilterInputStream(body) {
+        @Override public int read() throws IOException {
+          try {
+            int b = super.read();
+            if (b == -1) timeout.cancel(false);
+            return b;
+          } catch (IOException e) {
+            throw canceled ? canceledException(e) : e;
+          }
+        }
+
+        @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+          try {
+            int read = super.read(buffer, offset, count);
+            if (read == -1) timeout.cancel(false);
+            return read;
+          } catch (IOException e) {
+            throw canceled ? canceledException(e) : e;
+          }
+        }
+
+        @Override public void close() throws IOException {
+          timeout.cancel(false);
+          super.close();
+        }
+      });
     }
-  }
 
-  public interface Call {
-    Response execute() throws IOException;
+    private void checkCanceled() throws IOException {
+      if (canceled) throw new IOException("Canceled");
+    }
 
-    boolean isExecuted();
+    /** Same exception whatever state call was in when it was canceled or timed out */
+    private IOException canceledException(IOException cause) {
+      if (timedOut) {
+        IOException exception =
+            new InterruptedIOException("Call timed out after " + timeoutMillis + " ms");
+        exception.initCause(cause);
+        return exception;
+      }
+      return "Canceled".equals(cause.getMessage()) ? cause : new IOException("Canceled", cause);
+    }
 
-    void cancel();
+    @Override public boolean isExecuted() {
+      return executed;
+    }
+
+    @Override public boolean isCanceled() {
+      return canceled;
+    }
+
+    @Override public void cancel() {
+      canceled = true;
+      cancelSignal.countDown();
+      Transport.Exchange exchange = this.exchange;
+      // cache hit has no exchange to cancel
+      if (exchange != null) exchange.cancel();
+    }
   }
 
   public final static class Request {
-    URL url;
-    HttpMethod method;
-    InputStream stream;
-    Map<String, String> headers;
-
-    private Request() {
+    private static final byte[] END_OF_HEAD = {'\n', '\n'};
+
+    final URL url;
+    final HttpMethod method;
+    final Headers headers;
+    final RequestBody body;
+
+    Request(URL url, HttpMethod method, Headers headers, RequestBody body) {
+      this.url = url;
+      this.method = method;
+      this.headers = headers;
+      this.body = body;
     }
 
     public String url() {
       return url.toString();
     }
 
+    public HttpMethod method() {
+      return method;
+    }
+
+    /** Null when request has no body */
+    public RequestBody body() {
+      return body;
+    }
+
+    public Headers headers() {
+      return headers;
+    }
+
+    /** First value of header, name is case insensitive */
+    public String header(String name) {
+      return headers.get(name);
+    }
+
+    /** Copy of this request with header set to value */
+    Request withHeader(String name, String value) {
+      return new Request(url, method, headers.newBuilder().set(name, value).build(), body);
+    }
+
     public static class Builder {
       private String baseUrl;
       private HttpMethod method;
-      private InputStream stream;
+      private RequestBody body;
       private StringBuilder paramQuery;
-      private final Map<String, String> headers = new HashMap<>();
+      /** Parsed baseUrl and params, reused until either of them changes */
+      private URL url;
+      private boolean gzipBody;
+      private final Headers.Builder headers = new Headers.Builder();
 
       public Builder() {
         this.method = HttpMethod.GET;
@@ -227,11 +464,30 @@ public final class HttpClient {
 
       public Builder url(String url) {
         this.baseUrl = url;
+        this.url = null;
         return this;
       }
 
+      /** Replaces values header had so far, null value removes header */
       public Builder header(String headerName, String value) {
-        headers.put(headerName, value);
+        if (value == null) {
+          headers.removeAll(headerName);
+        } else {
+          headers.set(headerName, value);
+        }
+        return this;
+      }
+
+      /** Adds one more value, values header had so far stay */
+      public Builder addHeader(String headerName, String value) {
+        headers.add(headerName, value);
+        return this;
+      }
+
+      /** Replaces all headers set so far */
+      public Builder headers(Headers headers) {
+        this.headers.clear();
+        this.headers.addAll(headers);
         return this;
       }
 
@@ -241,16 +497,24 @@ public final class HttpClient {
       }
 
       public Builder body(String value) {
-        try {
-          stream = new StringInputStream(value);
-        } catch (UnsupportedEncodingException e) {
-          rethrow(e);
-        }
+        body = value == null ? null : RequestBody.of(value);
         return this;
       }
 
+      /** Stream is sent chunked, see {@link RequestBody#of(InputStream)} */
       public Builder body(InputStream argStream) {
-        stream = argStream;
+        body = argStream == null ? null : RequestBody.of(argStream);
+        return this;
+      }
+
+      public Builder body(RequestBody body) {
+        this.body = body;
+        return this;
+      }
+
+      /** Compresses body with gzip, see {@link RequestBody#gzip(RequestBody)} */
+      public Builder gzipBody() {
+        this.gzipBody = true;
         return this;
       }
 
@@ -259,48 +523,59 @@ public final class HttpClient {
         return this;
       }
 
+      /** Query parameters, names and values are percent encoded as UTF-8 */
       public Builder params(Map<String, String> params) {
-        if (params == null || params.isEmpty()) return this;
+        this.url = null;
+        if (params == null || params.isEmpty()) {
+          paramQuery = null;
+          return this;
+        }
         paramQuery = new StringBuilder();
 
         Set<Map.Entry<String, String>> entries = params.entrySet();
         for (Map.Entry<String, String> entry : entries) {
-          paramQuery.append(entry.getKey()).append("=").append(entry.getValue()).append("&");
-        }
-
-        int lastSymbol = paramQuery.length() - 1;
-        if (paramQuery.charAt(lastSymbol) == '&') {
-          paramQuery.deleteCharAt(lastSymbol);
+          if (paramQuery.length() > 0) paramQuery.append('&');
+          RequestTemplate.encode(paramQuery, entry.getKey());
+          if (entry.getValue() != null) {
+            RequestTemplate.encode(paramQuery.append('='), entry.getValue());
+          }
         }
         return this;
       }
 
+      /**
+       * Every call makes a new immutable request, so builder may be reused. Url is parsed only
+       * when it or params changed since the last call, see {@link RequestTemplate} for requests
+       * which differ in path or query.
+       */
       public Request build() {
         checkArgs();
 
-        Request request = new Request();
-        URL url = null;
-        try {
-          url = new URL(baseUrl + addParams());
-        } catch (MalformedURLException e) {
-          rethrow(e);
+        if (url == null) {
+          try {
+            url = new URL(baseUrl + addParams());
+          } catch (MalformedURLException e) {
+            rethrow(e);
+          }
         }
-        request.url = url;
-        request.stream = stream;
-        request.method = method;
-        request.headers = headers;
-        return request;
+        RequestBody body = this.body;
+        Headers headers = this.headers.build();
+        if (gzipBody && body != null) {
+          body = RequestBody.gzip(body);
+          headers = headers.newBuilder().set("Content-Encoding", "gzip").build();
+        }
+        return new Request(url, method, headers, body);
       }
 
       private String addParams() {
         if (paramQuery == null || paramQuery.length() == 0) {
           return "";
         }
-        return "?" + paramQuery.toString();
+        return (baseUrl.indexOf('?') == -1 ? "?" : "&") + paramQuery.toString();
       }
 
       private void checkArgs() {
-        if (method == HttpMethod.GET && stream != null) {
+        if (method == HttpMethod.GET && body != null) {
           throw new IllegalStateException("GET method can not have body");
         }
         if (baseUrl == null) {
@@ -316,14 +591,14 @@ public final class HttpClient {
       StringBuilder builder = new StringBuilder();
       builder.append(method)
           .append(" ")
-          .append(url.getPath())
+          .append(url.getFile())
           .append(" ")
           .append(url.getProtocol())
           .append("\n");
 
       builder.append("Host").append(":").append(url.getHost()).append("\n");
-      for (Map.Entry<String, String> entry : headers.entrySet()) {
-        builder.append(entry.getKey()).append(":").append(entry.getValue()).append("\n");
+      for (int i = 0, size = headers.size(); i < size; i++) {
+        builder.append(headers.name(i)).append(":").append(headers.value(i)).append("\n");
       }
 
       String body;
@@ -336,98 +611,133 @@ public final class HttpClient {
     }
 
     private String getBody() {
-      if (stream == null) {
+      if (body == null) {
         return null;
       }
-      if (!(stream instanceof StringInputStream)) {
-        return "<--stream of bytes-->";
+      if (body instanceof RequestBody.BytesBody) {
+        return new String(((RequestBody.BytesBody) body).bytes, StandardCharsets.UTF_8);
       }
+      return "<--stream of bytes-->";
+    }
 
+    /**
+     * Parses what {@link #toString()} prints, as well as raw HTTP/1.1 requests such as
+     * captured logs. Header values may contain colons, body is everything after the empty line.
+     */
+    public static Request fromString(String string) {
+      if (string == null) throw new NullPointerException("String is null");
+      Http1Parser parser = new Http1Parser(Http1Parser.Mode.REQUEST);
+      byte[] array = BufferPool.shared().takeArray();
+      boolean ascii = true;
       try {
-        // TODO, this is bad. Do not call toString while stream is being used by another thread ;(
-        stream.reset();
-        byte[] bytes = new byte[stream.available()];
-        stream.read(bytes);
-        return new String(bytes, "utf-8");
-      } catch (Exception ignored) {
-      } finally {
-        try {
-          stream.reset();
-        } catch (IOException ignored) {
+        int length = string.length();
+        int offset = 0;
+        while (offset < length && !parser.isDone()) {
+          int count = 0;
+          // non-ASCII chars go as UTF-8, code point never needs more than 4 bytes
+          while (offset < length && count <= array.length - 4) {
+            int c = string.codePointAt(offset);
+            offset += Character.charCount(c);
+            if (c < 0x80) {
+              array[count++] = (byte) c;
+              continue;
+            }
+            ascii = false;
+            count = encodeUtf8(c, array, count);
+          }
+          parser.parse(ByteBuffer.wrap(array, 0, count));
+        }
+        // head may end with the string, without an empty line
+        if (!parser.isDone() && !parser.parse(ByteBuffer.wrap(END_OF_HEAD))) {
+          throw new IllegalArgumentException("Request line is missing");
         }
+      } catch (ProtocolException e) {
+        throw new IllegalArgumentException(e.getMessage());
+      } finally {
+        BufferPool.shared().releaseArray(array);
       }
 
-      return "<--stream of bytes-->";
+      Headers headers = parser.headers();
+      String host = headers.get("Host");
+      // toString() prints protocol in place of version
+      String version = parser.version();
+      String scheme = version.startsWith("HTTP/") ? "http" : version;
+
+      Request.Builder builder = new Request.Builder()
+          .url(scheme + "://" + (host != null ? utf8(host, ascii) : "")
+              + utf8(parser.target(), ascii))
+          .method(HttpMethod.from(parser.method()));
+      for (int i = 0, size = headers.size(); i < size; i++) {
+        // we do not need host in real request headers
+        if ("Host".equalsIgnoreCase(headers.name(i))) continue;
+        builder.addHeader(headers.name(i), utf8(headers.value(i), ascii));
+      }
+      int bodyStart = ascii ? (int) parser.consumed() : charOffset(string, parser.consumed());
+      if (bodyStart < string.length()) {
+        builder.body(string.substring(bodyStart));
+      }
+      return builder.build();
     }
 
-    public static Request fromString(String string) {
-      Request.Builder builder = new Request.Builder();
-      String[] split = string.split("\\r?\\n");
-      String firstLine = split[0];
-      int firstSpace = firstLine.indexOf(' ');
-      String method = firstLine.substring(0, firstSpace);
-      String path = "";
-      String schema;
-
-      if (firstLine.charAt(firstSpace + 1) != ' ') {
-        int secondSpace = firstLine.indexOf(' ', firstSpace + 1);
-        path = firstLine.substring(firstSpace + 1, secondSpace);
-        schema = firstLine.substring(secondSpace + 1);
+    private static int encodeUtf8(int c, byte[] array, int count) {
+      if (c < 0x800) {
+        array[count++] = (byte) (0xc0 | c >> 6);
+      } else if (c < 0x10000) {
+        array[count++] = (byte) (0xe0 | c >> 12);
+        array[count++] = (byte) (0x80 | (c >> 6 & 0x3f));
       } else {
-        schema = firstLine.substring(firstSpace + 1);
+        array[count++] = (byte) (0xf0 | c >> 18);
+        array[count++] = (byte) (0x80 | (c >> 12 & 0x3f));
+        array[count++] = (byte) (0x80 | (c >> 6 & 0x3f));
       }
+      array[count++] = (byte) (0x80 | (c & 0x3f));
+      return count;
+    }
 
-      String host = "";
-      int bodyStartLine = -1;
-      for (int i = 1; i < split.length; i++) {
-        String line = split[i];
-        if (line == null || line.length() == 0) {
-          bodyStartLine = i;
-          break;
-        }
-        String[] header = line.split(":");
+    /** Parser reads bytes as ISO-8859-1, turns them back into chars fromString encoded */
+    private static String utf8(String parsed, boolean ascii) {
+      if (ascii) return parsed;
+      return new String(parsed.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    }
 
-        // we do not need host in real request headers
-        if (header[0].equals("Host")) {
-          host = header[1].trim();
-        } else {
-          builder.header(header[0], header[1]);
-        }
+    /** Index of char which starts after given number of UTF-8 bytes */
+    private static int charOffset(String string, long bytes) {
+      int offset = 0;
+      while (bytes > 0 && offset < string.length()) {
+        int c = string.codePointAt(offset);
+        offset += Character.charCount(c);
+        bytes -= c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
       }
-
-      builder.url(schema + "://" + host + path);
-      builder.method(HttpMethod.from(method));
-
-      if (bodyStartLine != -1) {
-        StringBuilder b = new StringBuilder();
-        for (int i = bodyStartLine; i < split.length; i++) {
-          b.append(split[i]);
-        }
-        builder.body(b.toString());
-      }
-
-      return builder.build();
+      return offset;
     }
   }
 
   public static final class Response {
-    private Map<String, List<String>> headers;
+    /** Content-Length is up to the server, larger bodies grow their array as they arrive */
+    private static final int MAX_PREALLOCATED = 1024 * 1024;
+
+    private Headers headers;
     private int code;
     private InputStream inputStream;
-    private HttpURLConnection connection;
 
-    private Response() {
+    Response(int code, Headers headers, InputStream inputStream) {
+      this.code = code;
+      this.headers = headers;
+      this.inputStream = inputStream;
+    }
+
+    public Headers headers() {
+      return headers;
     }
 
+    /** All values of header, name is case insensitive */
     public List<String> headers(String headerName) {
-      List<String> list = headers.get(headerName);
-      return list != null ? list : Collections.<String>emptyList();
+      return headers.values(headerName);
     }
 
+    /** First value of header, name is case insensitive */
     public String header(String headerName) {
-      List<String> headerFields = headers(headerName);
-      if (!headerFields.isEmpty()) return headerFields.get(0);
-      return null;
+      return headers.get(headerName);
     }
 
     public int code() {
@@ -439,17 +749,12 @@ public final class HttpClient {
     }
 
     public String string() {
-      ByteArrayOutputStream output = new ByteArrayOutputStream();
-      BufferedInputStream input = buffer();
+      byte[] bytes = bytes();
       try {
-        copy(input, output);
         String charset = charset();
-        return charset == null ? output.toString() : output.toString(charset);
-      } catch (IOException e) {
+        return charset == null ? new String(bytes) : new String(bytes, charset);
+      } catch (UnsupportedEncodingException e) {
         rethrow(e);
-      } finally {
-        closeQuietly(input);
-        closeQuietly(output);
       }
       return null;
     }
@@ -458,71 +763,162 @@ public final class HttpClient {
       return inputStream;
     }
 
+    /**
+     * Reads whole body. When Content-Length is known and not too large body is read straight
+     * into resulting array without intermediate copies. Use {@link #subscribe} for bodies which
+     * should not be held in memory.
+     */
     public byte[] bytes() {
-      ByteArrayOutputStream output = null;
-      BufferedInputStream input = null;
+      InputStream input = stream();
+      if (input == null) return new byte[0];
       try {
-        output = new ByteArrayOutputStream(contentLength());
-        input = buffer();
+        int length = contentLength();
+        byte[] bytes = new byte[Math.max(0, Math.min(length, MAX_PREALLOCATED))];
+        int read = 0;
+        while (read < bytes.length) {
+          int count = input.read(bytes, read, bytes.length - read);
+          if (count == -1) return Arrays.copyOf(bytes, read);
+          read += count;
+        }
+
+        int next = input.read();
+        if (next == -1) return bytes;
+        // body is larger than preallocated, or decoded body is longer than encoded one
+        ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length * 2 + 1024);
+        output.write(bytes, 0, read);
+        output.write(next);
         copy(input, output);
         return output.toByteArray();
+      } catch (IOException e) {
+        rethrow(e);
+        return null;
+      } finally {
+        closeQuietly(input);
+      }
+    }
+
+    /**
+     * Copies body into channel through pooled heap buffer, so body is never held in memory as
+     * a whole. Closes body, but not the channel.
+     *
+     * @return number of transferred bytes
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+      if (channel == null) throw new NullPointerException("Channel is null");
+      InputStream input = stream();
+      if (input == null) return 0;
+      try {
+        return transfer(input, channel);
       } finally {
         closeQuietly(input);
-        closeQuietly(output);
       }
     }
 
+    /**
+     * Saves body to file, replacing its content. Copies through pooled heap buffer like
+     * {@link #writeTo}.
+     *
+     * @return number of saved bytes
+     */
+    public long saveTo(Path path) throws IOException {
+      if (path == null) throw new NullPointerException("Path is null");
+      InputStream input = stream();
+      FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        if (input == null) return 0;
+        return transfer(input, file);
+      } finally {
+        closeQuietly(input);
+        file.close();
+      }
+    }
+
+    /** Copies stream through pooled buffer, closes neither of them */
+    private static long transfer(InputStream input, WritableByteChannel channel)
+        throws IOException {
+      byte[] array = BufferPool.shared().takeArray();
+      try {
+        long total = 0;
+        int read;
+        while ((read = input.read(array)) != -1) {
+          ByteBuffer buffer = ByteBuffer.wrap(array, 0, read);
+          while (buffer.hasRemaining()) total += channel.write(buffer);
+        }
+        return total;
+      } finally {
+        BufferPool.shared().releaseArray(array);
+      }
+    }
+
+    /**
+     * Streams body to consumer on executor, chunk by chunk as consumer asks for them. Calls
+     * {@link BodyConsumer#onResponse} right away on this thread.
+     */
+    public void subscribe(BodyConsumer consumer, Executor executor) {
+      if (consumer == null) throw new NullPointerException("BodyConsumer is null");
+      if (executor == null) throw new NullPointerException("Executor is null");
+      consumer.onResponse(this, BodyPump.of(this, consumer, executor));
+    }
+
     public BufferedInputStream buffer() {
-      return new BufferedInputStream(stream());
+      return BufferPool.shared().buffered(stream());
     }
 
     public int contentLength() {
-      List<String> strings = headers.get("Content-Length");
       try {
-        return Integer.parseInt(strings.get(0));
+        return Integer.parseInt(headers.get("Content-Length"));
       } catch (Exception ignored) {
       }
       return 0;
     }
 
+    /** Charset parameter of Content-Type, null when there is none */
     public String charset() {
       String contentType = header("Content-Type");
-      if (contentType == null || contentType.length() == 0) return null;
-      int postSemi = contentType.indexOf(';') + 1;
-      if (postSemi > 0 && postSemi == contentType.length()) return null;
-      String[] params = contentType.substring(postSemi).split(";");
-      final String charsetParam = "charset";
-      for (String param : params) {
-        String[] split = param.split("=");
-        if (split.length != 2) continue;
-        if (!charsetParam.equals(split[0])) continue;
-
-        String charset = split[1];
-        int length = charset.length();
-        if (length == 0) continue;
-        if (length > 2 && '"' == charset.charAt(0) && '"' == charset.charAt(length - 1)) {
-          charset = charset.substring(1, length - 1);
+      if (contentType == null) return null;
+      int length = contentType.length();
+      // parameters follow media type, each after a semicolon
+      for (int semicolon = contentType.indexOf(';'); semicolon != -1; ) {
+        int start = skipWhitespace(contentType, semicolon + 1, length);
+        int end = contentType.indexOf(';', start);
+        semicolon = end;
+        if (end == -1) end = length;
+        if (!contentType.regionMatches(true, start, "charset", 0, 7)) continue;
+        int equals = skipWhitespace(contentType, start + 7, end);
+        if (equals == end || contentType.charAt(equals) != '=') continue;
+
+        int valueStart = skipWhitespace(contentType, equals + 1, end);
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(contentType.charAt(valueEnd - 1))) valueEnd--;
+        if (valueEnd - valueStart >= 2 && contentType.charAt(valueStart) == '"'
+            && contentType.charAt(valueEnd - 1) == '"') {
+          valueStart++;
+          valueEnd--;
         }
-        return charset;
+        if (valueStart < valueEnd) return contentType.substring(valueStart, valueEnd);
       }
       return null;
     }
 
-    public void close() {
-      closeQuietly(inputStream);
-      connection.disconnect();
+    private static int skipWhitespace(String string, int from, int to) {
+      while (from < to && isWhitespace(string.charAt(from))) from++;
+      return from;
+    }
+
+    private static boolean isWhitespace(char c) {
+      return c == ' ' || c == '\t';
     }
-  }
 
-  static class StringInputStream extends ByteArrayInputStream {
-    public StringInputStream(String string) throws UnsupportedEncodingException {
-      super(string.getBytes("UTF-8"));
+    /** Releases response body, connection stays alive for reuse when body was fully read */
+    public void close() {
+      closeQuietly(inputStream);
     }
   }
 
   static void copy(final InputStream input, final OutputStream output) {
     if (input == null) return;
-    final byte[] buffer = new byte[1024 * 10];
+    final byte[] buffer = BufferPool.shared().takeArray();
     int read;
     try {
       while ((read = input.read(buffer)) != -1) output.write(buffer, 0, read);
@@ -530,6 +926,7 @@ public final class HttpClient {
       rethrow(e);
     } finally {
       closeQuietly(input);
+      BufferPool.shared().releaseArray(buffer);
     }
   }
 
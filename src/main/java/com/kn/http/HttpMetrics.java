@@ -0,0 +1,247 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.Request;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms per host and phase, in microseconds. Install with
+ * {@link HttpClient#eventListenerFactory(EventListener.Factory)}, then read {@link #snapshot()}
+ * or expose it via {@link #registerMBean(String)}.
+ *
+ * <p>Snapshot keys look like {@code host.example.com.ttfb.p99}, phases are {@code dns},
+ * {@code connect}, {@code tls}, {@code ttfb} (request start to response headers) and
+ * {@code call} (call start to body end). Counts of full and resumed TLS handshakes are
+ * {@code tls.full} and {@code tls.resumed}. Dispatchers added with {@link #monitor} report their
+ * running, waiting, coalesced and hedged counts, queue wait time and concurrency limit of every
+ * host.
+ *
+ * @author nk
+ */
+public final class HttpMetrics implements EventListener.Factory {
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  private final ConcurrentMap<String, HostMetrics> hosts = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, NetworkDispatcher> dispatchers = new ConcurrentHashMap<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong failed = new AtomicLong();
+
+  @Override public EventListener create(Request request) {
+    return new CallMetrics(host(request.url.getHost()));
+  }
+
+  /** Includes dispatcher queue depth and wait time in snapshots under given name */
+  public void monitor(String name, NetworkDispatcher dispatcher) {
+    if (name == null) throw new NullPointerException("Name is null");
+    if (dispatcher == null) throw new NullPointerException("NetworkDispatcher is null");
+    dispatchers.put(name, dispatcher);
+  }
+
+  public int inFlightCount() {
+    return inFlight.get();
+  }
+
+  /** Current values sorted by key, nothing is reset */
+  public Map<String, Long> snapshot() {
+    Map<String, Long> snapshot = new TreeMap<>();
+    snapshot.put("calls.inFlight", (long) inFlight.get());
+    snapshot.put("calls.failed", failed.get());
+    for (Map.Entry<String, HostMetrics> entry : hosts.entrySet()) {
+      String prefix = "host." + entry.getKey() + ".";
+      HostMetrics host = entry.getValue();
+      put(snapshot, prefix + "dns", host.dns);
+      put(snapshot, prefix + "connect", host.connect);
+      put(snapshot, prefix + "tls", host.tls);
+      if (host.tlsFull.get() + host.tlsResumed.get() > 0) {
+        snapshot.put(prefix + "tls.full", host.tlsFull.get());
+        snapshot.put(prefix + "tls.resumed", host.tlsResumed.get());
+      }
+      put(snapshot, prefix + "ttfb", host.ttfb);
+      put(snapshot, prefix + "call", host.call);
+    }
+    for (Map.Entry<String, NetworkDispatcher> entry : dispatchers.entrySet()) {
+      String prefix = "dispatcher." + entry.getKey() + ".";
+      NetworkDispatcher dispatcher = entry.getValue();
+      snapshot.put(prefix + "running", (long) dispatcher.runningCount());
+      snapshot.put(prefix + "waiting", (long) dispatcher.waitingCount());
+      snapshot.put(prefix + "coalesced", dispatcher.coalescedCount());
+      snapshot.put(prefix + "hedged", dispatcher.hedgedCount());
+      put(snapshot, prefix + "queueWait", dispatcher.queueWaitMicros());
+      for (Map.Entry<String, Integer> limit : dispatcher.hostLimits().entrySet()) {
+        snapshot.put(prefix + "limit." + limit.getKey(), (long) limit.getValue());
+      }
+    }
+    return snapshot;
+  }
+
+  /** Registers snapshot as read-only attributes of platform MBean server */
+  public ObjectName registerMBean(String objectName) throws JMException {
+    ObjectName name = new ObjectName(objectName);
+    ManagementFactory.getPlatformMBeanServer().registerMBean(new SnapshotMBean(), name);
+    return name;
+  }
+
+  private static void put(Map<String, Long> snapshot, String prefix,
+      LatencyHistogram histogram) {
+    long count = histogram.count();
+    if (count == 0) return;
+    snapshot.put(prefix + ".count", count);
+    for (double percentile : PERCENTILES) {
+      String key = percentile == (long) percentile
+          ? String.valueOf((long) percentile) : String.valueOf(percentile).replace(".", "");
+      snapshot.put(prefix + ".p" + key, histogram.valueAtPercentile(percentile));
+    }
+    snapshot.put(prefix + ".max", histogram.max());
+  }
+
+  private HostMetrics host(String name) {
+    String key = name.toLowerCase(Locale.US);
+    HostMetrics host = hosts.get(key);
+    if (host == null) {
+      HostMetrics created = new HostMetrics();
+      host = hosts.putIfAbsent(key, created);
+      if (host == null) host = created;
+    }
+    return host;
+  }
+
+  private static long micros(long startNanos) {
+    return (System.nanoTime() - startNanos) / 1000;
+  }
+
+  private static final class HostMetrics {
+    final LatencyHistogram dns = new LatencyHistogram();
+    final LatencyHistogram connect = new LatencyHistogram();
+    final LatencyHistogram tls = new LatencyHistogram();
+    final AtomicLong tlsFull = new AtomicLong();
+    final AtomicLong tlsResumed = new AtomicLong();
+    final LatencyHistogram ttfb = new LatencyHistogram();
+    final LatencyHistogram call = new LatencyHistogram();
+  }
+
+  /** Per-call listener, phases of one call never overlap so plain fields are enough */
+  private final class CallMetrics extends EventListener {
+    private final HostMetrics host;
+    private long callStart;
+    private long dnsStart;
+    private long connectStart;
+    private long secureConnectStart;
+    private long requestStart;
+
+    CallMetrics(HostMetrics host) {
+      this.host = host;
+    }
+
+    @Override public void callStart(Request request) {
+      inFlight.incrementAndGet();
+      callStart = System.nanoTime();
+    }
+
+    @Override public void dnsStart(String host) {
+      dnsStart = System.nanoTime();
+    }
+
+    @Override public void dnsEnd(String host, List<InetAddress> addresses) {
+      this.host.dns.record(micros(dnsStart));
+    }
+
+    @Override public void connectStart(InetSocketAddress address) {
+      connectStart = System.nanoTime();
+    }
+
+    @Override public void secureConnectStart() {
+      secureConnectStart = System.nanoTime();
+    }
+
+    @Override public void secureConnectEnd(String protocol) {
+      host.tls.record(micros(secureConnectStart));
+    }
+
+    @Override public void secureConnectEnd(String protocol, boolean resumed) {
+      secureConnectEnd(protocol);
+      (resumed ? host.tlsResumed : host.tlsFull).incrementAndGet();
+    }
+
+    @Override public void connectEnd(InetSocketAddress address) {
+      host.connect.record(micros(connectStart));
+    }
+
+    @Override public void requestStart() {
+      requestStart = System.nanoTime();
+    }
+
+    @Override public void responseStart(int code) {
+      host.ttfb.record(micros(requestStart));
+    }
+
+    @Override public void callEnd() {
+      host.call.record(micros(callStart));
+      inFlight.decrementAndGet();
+    }
+
+    @Override public void callFailed(IOException e) {
+      failed.incrementAndGet();
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /** Attributes are whatever keys current snapshot has */
+  private final class SnapshotMBean implements DynamicMBean {
+    @Override public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Long value = snapshot().get(attribute);
+      if (value == null) throw new AttributeNotFoundException(attribute);
+      return value;
+    }
+
+    @Override public AttributeList getAttributes(String[] attributes) {
+      Map<String, Long> snapshot = snapshot();
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        Long value = snapshot.get(attribute);
+        if (value != null) list.add(new Attribute(attribute, value));
+      }
+      return list;
+    }
+
+    @Override public void setAttribute(Attribute attribute) {
+      throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<>();
+      for (String key : snapshot().keySet()) {
+        attributes.add(new MBeanAttributeInfo(key, Long.class.getName(), key, true, false,
+            false));
+      }
+      return new MBeanInfo(HttpMetrics.class.getName(), "HTTP client metrics",
+          attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+  }
+}
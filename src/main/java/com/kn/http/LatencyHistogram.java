@@ -0,0 +1,75 @@
+package com.kn.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent log-linear histogram in the spirit of HdrHistogram. Values below 64 are counted
+ * exactly, larger ones land in one of 32 buckets per power of two, so reported percentiles are
+ * within 3% of the recorded value. Recording is lock and allocation free.
+ *
+ * @author nk
+ */
+public final class LatencyHistogram {
+  private static final int LINEAR_BUCKETS = 64;
+  private static final int SUB_BUCKETS = 32;
+  /** Values from 2^41 on share the last bucket, in microseconds that is about 25 days */
+  private static final int MAX_SHIFT = 35;
+
+  private final AtomicLongArray counts =
+      new AtomicLongArray(LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Negative values are recorded as 0 */
+  public void record(long value) {
+    if (value < 0) value = 0;
+    counts.incrementAndGet(index(value));
+    totalCount.incrementAndGet();
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+    }
+  }
+
+  public long count() {
+    return totalCount.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return highest value equivalent to the one at percentile, 0 when nothing was recorded
+   */
+  public long valueAtPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile " + percentile);
+    }
+    long total = totalCount.get();
+    if (total == 0) return 0;
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= target) return Math.min(highestEquivalentValue(i), max.get());
+    }
+    return max.get();
+  }
+
+  static int index(long value) {
+    if (value < LINEAR_BUCKETS) return (int) value;
+    // keeps 6 most significant bits, value >>> shift falls into [32, 64)
+    int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+    if (shift > MAX_SHIFT) return LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS - 1;
+    return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  static long highestEquivalentValue(int index) {
+    if (index < LINEAR_BUCKETS) return index;
+    int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+    long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -1,89 +1,549 @@
 package com.kn.http;
 
+import com.kn.http.HttpClient.HttpMethod;
 import com.kn.http.HttpClient.Request;
 import com.kn.http.HttpClient.Response;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Runs requests in background limiting both total number of running requests and number of
+ * running requests per host. Waiting requests are queued per host, hosts take turns so that one
+ * busy host can not starve the others. Admission is lock free, counters are updated with CAS.
+ *
+ * <p>Each request has a {@link Priority}. Free slots go to the highest priority first, within
+ * one priority to the earliest deadline, then in order of arrival. Request whose deadline passed
+ * while it was waiting fails with {@link InterruptedIOException} instead of being sent.
+ *
+ * <p>With {@link #coalesceRequests(boolean)} identical GETs in flight share one network call.
+ * With {@link #hedging(double, RetryBudget)} GETs which take longer than most requests to the
+ * same host are sent once more, whichever response comes first wins.
+ *
+ * <p>Per-host limit is a {@link ConcurrencyLimit}, fixed by default. Adaptive limits such as
+ * {@link ConcurrencyLimit#aimd} learn from latency and failures of finished requests, current
+ * values are reported by {@link #hostLimits()}.
+ *
  * @author nk
  */
 
 public final class NetworkDispatcher {
   static final int MAX_CONCURRENT_CONNECTION = 2;
+  /** Host latency percentile means little before that many samples */
+  static final int MIN_HEDGE_SAMPLES = 20;
+  private static final Priority[] PRIORITIES = Priority.values();
 
-  private final Object LOCK = new Object();
-  private final Deque<CancelableTask> running = new ArrayDeque<>();
-  private final Deque<CancelableTask> waiting = new ArrayDeque<>();
-  private final HttpClient httpClient;
+  public enum Priority {
+    /** Someone is waiting for the answer right now */
+    HIGH,
+    NORMAL,
+    /** Prefetches and other background work */
+    LOW
+  }
 
-  private ExecutorService executorService =
-      new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
-          new SynchronousQueue<Runnable>(), new ThreadFactory() {
-        private final AtomicInteger poolNumber = new AtomicInteger(1);
+  private final HttpClient httpClient;
+  private final int maxRequests;
+  private final ConcurrencyLimit.Factory hostLimitFactory;
+  private final AtomicInteger running = new AtomicInteger();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+  /** Hosts with waiting tasks per priority, each host is present at most once per priority */
+  private final ConcurrentLinkedDeque<Host>[] ready = newReadyQueues();
+  private final AtomicLong sequence = new AtomicLong();
+  private final LatencyHistogram queueWaitMicros = new LatencyHistogram();
+  /** Shared GET calls by method, url and headers */
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+  private final AtomicLong coalescedCount = new AtomicLong();
+  private volatile boolean coalesceRequests;
+  private final AtomicLong hedgedCount = new AtomicLong();
+  private volatile double hedgePercentile;
+  private volatile RetryBudget hedgeBudget;
 
-        @Override public Thread newThread(Runnable runnable) {
-          return new Thread(runnable, "network-dispatcher-thread-" + poolNumber.getAndIncrement());
-        }
-      });
+  final ExecutorService executorService;
 
   public NetworkDispatcher(HttpClient httpClient) {
+    this(httpClient, MAX_CONCURRENT_CONNECTION, MAX_CONCURRENT_CONNECTION);
+  }
+
+  public NetworkDispatcher(HttpClient httpClient, int maxRequests, int maxRequestsPerHost) {
+    this(httpClient, maxRequests, maxRequestsPerHost, platformThreadExecutor());
+  }
+
+  /**
+   * @param executorService runs admitted requests, it should not queue them since admission
+   * limits are already enforced by dispatcher. See {@link #virtualThreadExecutor()}.
+   */
+  public NetworkDispatcher(HttpClient httpClient, int maxRequests, int maxRequestsPerHost,
+      ExecutorService executorService) {
+    this(httpClient, maxRequests, fixedHostLimit(maxRequestsPerHost), executorService);
+  }
+
+  /** Limits requests per host with limit created by hostLimitFactory for every host */
+  public NetworkDispatcher(HttpClient httpClient, int maxRequests,
+      ConcurrencyLimit.Factory hostLimitFactory) {
+    this(httpClient, maxRequests, hostLimitFactory, platformThreadExecutor());
+  }
+
+  public NetworkDispatcher(HttpClient httpClient, int maxRequests,
+      ConcurrencyLimit.Factory hostLimitFactory, ExecutorService executorService) {
+    if (httpClient == null) throw new NullPointerException("HttpClient is null");
+    if (hostLimitFactory == null) {
+      throw new NullPointerException("ConcurrencyLimit.Factory is null");
+    }
+    if (executorService == null) throw new NullPointerException("ExecutorService is null");
+    if (maxRequests <= 0) throw new IllegalArgumentException("maxRequests <= 0");
     this.httpClient = httpClient;
+    this.maxRequests = maxRequests;
+    this.hostLimitFactory = hostLimitFactory;
+    this.executorService = executorService;
   }
 
-  public Cancelable execute(final Request request, Callback<Response> callback) {
-    if (request == null) throw new NullPointerException("Request is null");
+  private static ConcurrencyLimit.Factory fixedHostLimit(int maxRequestsPerHost) {
+    if (maxRequestsPerHost <= 0) throw new IllegalArgumentException("maxRequestsPerHost <= 0");
+    return ConcurrencyLimit.fixed(maxRequestsPerHost);
+  }
+
+  /** Cached pool of platform threads, the default */
+  public static ExecutorService platformThreadExecutor() {
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger poolNumber = new AtomicInteger(1);
+
+      @Override public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, "network-dispatcher-thread-" + poolNumber.getAndIncrement());
+      }
+    });
+  }
+
+  /**
+   * Starts a new virtual thread for every request, so that blocked calls do not pin platform
+   * threads. Requires JDK 21+, looked up reflectively because library is built for older JDKs.
+   *
+   * @throws UnsupportedOperationException if running JDK has no virtual threads
+   */
+  public static ExecutorService virtualThreadExecutor() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, "network-dispatcher-virtual-thread-", 1L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor",
+          ThreadFactory.class).invoke(null, factory);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("Virtual threads require JDK 21+", e);
+    }
+  }
 
-    CancelableTask task = createTask(request, callback);
-    if (running.size() < MAX_CONCURRENT_CONNECTION) {
-      running.add(task);
-      executorService.execute(task);
-    } else {
-      waiting.add(task);
+  /** Whether {@link #virtualThreadExecutor()} is available on running JDK */
+  public static boolean isVirtualThreadSupported() {
+    try {
+      Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
     }
+  }
+
+  public Cancelable execute(Request request, Callback<Response> callback) {
+    return execute(request, Priority.NORMAL, callback);
+  }
+
+  public Cancelable execute(Request request, Priority priority, Callback<Response> callback) {
+    return execute(request, priority, 0, null, callback);
+  }
+
+  /**
+   * @param timeout request which did not start within timeout is not sent and fails with
+   * {@link InterruptedIOException}, 0 means no deadline
+   */
+  public Cancelable execute(Request request, Priority priority, long timeout, TimeUnit unit,
+      Callback<Response> callback) {
+    if (request == null) throw new NullPointerException("Request is null");
+    if (priority == null) throw new NullPointerException("Priority is null");
+    if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+    if (timeout > 0 && unit == null) throw new NullPointerException("TimeUnit is null");
 
+    if (coalesceRequests && timeout == 0 && request.method == HttpMethod.GET) {
+      return coalesce(request, priority, callback);
+    }
+    long deadlineNanos = timeout == 0 ? 0 : System.nanoTime() + unit.toNanos(timeout);
+    RetryBudget hedgeBudget = this.hedgeBudget;
+    if (hedgeBudget != null && request.method == HttpMethod.GET) {
+      hedgeBudget.deposit();
+      long delayMicros = hedgeDelayMicros(host(request));
+      if (delayMicros > 0) {
+        Hedge hedge = new Hedge(request, callback, priority, timeout != 0, deadlineNanos,
+            hedgeBudget);
+        hedge.start(delayMicros);
+        return hedge;
+      }
+    }
+    CancelableTask task = createTask(request, callback, priority, timeout != 0, deadlineNanos);
+    submit(task);
     return task;
   }
 
-  private CancelableTask createTask(Request request, Callback<Response> callback) {
-    return new CancelableTask(request, callback) {
-      HttpClient.Call call;
+  private void submit(CancelableTask task) {
+    waiting.incrementAndGet();
+    task.host.waiting.put(task, Boolean.TRUE);
+    schedule(task.host, task.priority);
+    promote();
+  }
 
-      @Override public void run() {
-        if (isCanceled) return;
+  /**
+   * When enabled GET requests without deadline, whose url and headers are the same as those of
+   * a request already in flight, do not make a call of their own. They receive a copy of its
+   * response, which is then read into memory. Shared call runs with priority of the request
+   * which started it and is canceled only when all its requests are canceled. Disabled by
+   * default.
+   */
+  public void coalesceRequests(boolean enabled) {
+    this.coalesceRequests = enabled;
+  }
 
-        Response response = null;
-        try {
-          call = httpClient.call(request);
-          response = call.execute();
-        } catch (IOException e) {
-          failure(e);
-        }
+  /** Number of requests which were served by a call started for another request */
+  public long coalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * Sends GET once more when it has been running longer than given percentile of recent
+   * successful requests to the same host, first response wins and the other call is canceled.
+   * Every hedge spends a budget token, so that hedges add at most budget ratio of load when
+   * host slows down as a whole. Coalesced requests are not hedged. Null budget disables
+   * hedging, which is the default.
+   *
+   * @param percentile such as 95, hedges are sent for about 5% of requests
+   */
+  public void hedging(double percentile, RetryBudget budget) {
+    if (percentile <= 0 || percentile >= 100) {
+      throw new IllegalArgumentException("percentile must be in (0, 100)");
+    }
+    this.hedgePercentile = percentile;
+    this.hedgeBudget = budget;
+  }
 
-        if (response != null) {
-          success(response);
+  /** Number of duplicate requests sent by hedging */
+  public long hedgedCount() {
+    return hedgedCount.get();
+  }
+
+  /** 0 while host has too few samples to tell slow request from usual one */
+  private long hedgeDelayMicros(Host host) {
+    if (host.latencyMicros.count() < MIN_HEDGE_SAMPLES) return 0;
+    return Math.max(1000, host.latencyMicros.valueAtPercentile(hedgePercentile));
+  }
+
+  private Cancelable coalesce(Request request, Priority priority, Callback<Response> callback) {
+    String key = flightKey(request);
+    Subscriber subscriber = new Subscriber(callback);
+    while (true) {
+      Flight flight = flights.get(key);
+      if (flight != null) {
+        if (flight.join(subscriber)) {
+          coalescedCount.incrementAndGet();
+          return subscriber;
         }
+        // call has just completed, it is on its way out of the map
+        flights.remove(key, flight);
+        continue;
+      }
+
+      Flight created = new Flight(key, subscriber);
+      created.task = createTask(request, created, priority, false, 0);
+      if (flights.putIfAbsent(key, created) == null) {
+        submit(created.task);
+        return subscriber;
+      }
+    }
+  }
 
-        notifyFinished();
+  private static String flightKey(Request request) {
+    StringBuilder key = new StringBuilder(request.method.methodName())
+        .append(' ')
+        .append(request.url);
+    Headers headers = request.headers;
+    for (String name : headers.names()) {
+      key.append('\n').append(name.toLowerCase(Locale.US)).append(':');
+      List<String> values = headers.values(name);
+      for (int i = 0; i < values.size(); i++) {
+        if (i > 0) key.append(',');
+        key.append(values.get(i));
       }
+    }
+    return key.toString();
+  }
 
-      @Override public void cancel() {
-        if (call != null && call.isExecuted()) {
-          call.cancel();
+  /**
+   * Same as {@link #execute(Request, Callback)} but returns a future which can be composed.
+   * Cancelling the future cancels the request, whether it is still waiting or already running.
+   */
+  public CompletableFuture<Response> enqueue(Request request) {
+    return enqueue(request, Priority.NORMAL, 0, null);
+  }
+
+  /** See {@link #execute(Request, Priority, long, TimeUnit, Callback)} */
+  public CompletableFuture<Response> enqueue(Request request, Priority priority, long timeout,
+      TimeUnit unit) {
+    final Cancelable[] task = new Cancelable[1];
+    final CompletableFuture<Response> future = new CompletableFuture<Response>() {
+      @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean canceled = super.cancel(mayInterruptIfRunning);
+        if (canceled) task[0].cancel();
+        return canceled;
+      }
+    };
+
+    task[0] = execute(request, priority, timeout, unit, new Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        if (!future.complete(response)) response.close();
+      }
+
+      @Override public void onFailure(IOException e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Streams response body to consumer as it asks for chunks, see {@link BodyConsumer}. Body is
+   * read on threads of this dispatcher's executor. Canceling stops the request if it is still
+   * running and the body read otherwise.
+   */
+  public Cancelable execute(Request request, Priority priority, BodyConsumer consumer) {
+    if (consumer == null) throw new NullPointerException("BodyConsumer is null");
+    Streaming streaming = new Streaming(consumer);
+    streaming.task = execute(request, priority, streaming);
+    if (streaming.canceled) streaming.task.cancel();
+    return streaming;
+  }
+
+  /** Number of requests being executed right now */
+  public int runningCount() {
+    return running.get();
+  }
+
+  /** Number of requests waiting for a free slot */
+  public int waitingCount() {
+    return waiting.get();
+  }
+
+  /** Current concurrency limit of every host seen so far, sorted by host */
+  public Map<String, Integer> hostLimits() {
+    Map<String, Integer> limits = new TreeMap<>();
+    for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+      limits.put(entry.getKey(), entry.getValue().limit.limit());
+    }
+    return limits;
+  }
+
+  /** Time requests spent waiting for a slot, in microseconds */
+  public LatencyHistogram queueWaitMicros() {
+    return queueWaitMicros;
+  }
+
+  private Host host(Request request) {
+    String name = request.url.getHost().toLowerCase();
+    Host host = hosts.get(name);
+    if (host == null) {
+      Host newHost = new Host(hostLimitFactory.create(name));
+      host = hosts.putIfAbsent(name, newHost);
+      if (host == null) host = newHost;
+    }
+    return host;
+  }
+
+  /** Puts host in line for a slot at given priority unless it is there already */
+  private void schedule(Host host, Priority priority) {
+    if (host.scheduled.compareAndSet(priority.ordinal(), 0, 1)) {
+      ready[priority.ordinal()].offer(host);
+    }
+  }
+
+  /** Puts host in line at priority of its most urgent waiting task, if any */
+  private void reschedule(Host host) {
+    CancelableTask head = first(host);
+    if (head != null) schedule(host, head.priority);
+  }
+
+  /** Takes host out of line at given priority, keeping it in line for tasks added meanwhile */
+  private void unschedule(Host host, Priority priority) {
+    host.scheduled.set(priority.ordinal(), 0);
+    reschedule(host);
+  }
+
+  /** Starts waiting tasks while there are free slots, most urgent first */
+  private void promote() {
+    while (running.get() < maxRequests) {
+      Priority priority = null;
+      Host host = null;
+      for (int i = 0; i < PRIORITIES.length && host == null; i++) {
+        host = ready[i].poll();
+        priority = PRIORITIES[i];
+      }
+      if (host == null) return;
+
+      dropExpired(host);
+      CancelableTask head = first(host);
+      if (head == null || head.priority.compareTo(priority) > 0) {
+        // tasks of this priority were taken, canceled or expired
+        unschedule(host, priority);
+        continue;
+      }
+
+      if (!tryAcquire(host.running, host.limit.limit())) {
+        host.scheduled.set(priority.ordinal(), 0);
+        // running task of this host could have finished after our attempt, do not lose its turn
+        if (host.running.get() < host.limit.limit()) reschedule(host);
+        continue;
+      }
+      if (!tryAcquire(running, maxRequests)) {
+        host.running.decrementAndGet();
+        // keep place in line, loop condition re-checks whether a slot was freed meanwhile
+        ready[priority.ordinal()].offerFirst(host);
+        continue;
+      }
+
+      Map.Entry<CancelableTask, Boolean> entry = host.waiting.pollFirstEntry();
+      CancelableTask task = entry != null ? entry.getKey() : null;
+      if (task != null) waiting.decrementAndGet();
+
+      CancelableTask next = first(host);
+      if (next != null && next.priority == priority) {
+        // let other hosts take their turn before this one gets next slot
+        ready[priority.ordinal()].offer(host);
+      } else {
+        unschedule(host, priority);
+      }
+
+      if (task == null) {
+        host.running.decrementAndGet();
+        running.decrementAndGet();
+      } else {
+        executorService.execute(task);
+      }
+    }
+  }
+
+  /** Fails waiting tasks of host whose deadline passed, they are never sent */
+  private void dropExpired(Host host) {
+    long now = System.nanoTime();
+    CancelableTask head;
+    while ((head = first(host)) != null && head.isExpired(now)) {
+      if (host.waiting.remove(head) != null) {
+        waiting.decrementAndGet();
+        head.expire();
+      }
+    }
+  }
+
+  private static CancelableTask first(Host host) {
+    Map.Entry<CancelableTask, Boolean> entry = host.waiting.firstEntry();
+    return entry != null ? entry.getKey() : null;
+  }
+
+  private void finished(CancelableTask task) {
+    Host host = task.host;
+    host.running.decrementAndGet();
+    running.decrementAndGet();
+    reschedule(host);
+    promote();
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ConcurrentLinkedDeque<Host>[] newReadyQueues() {
+    ConcurrentLinkedDeque<Host>[] queues = new ConcurrentLinkedDeque[PRIORITIES.length];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ConcurrentLinkedDeque<>();
+    }
+    return queues;
+  }
+
+  private static boolean tryAcquire(AtomicInteger counter, int limit) {
+    while (true) {
+      int current = counter.get();
+      if (current >= limit) return false;
+      if (counter.compareAndSet(current, current + 1)) return true;
+    }
+  }
+
+  private CancelableTask createTask(Request request, Callback<Response> callback,
+      Priority priority, boolean hasDeadline, long deadlineNanos) {
+    return new CancelableTask(request, callback, priority, hasDeadline, deadlineNanos) {
+      volatile HttpClient.Call call;
+
+      @Override public void run() {
+        try {
+          if (isCanceled) return;
+          queueWaitMicros.record((System.nanoTime() - enqueuedAtNanos) / 1000);
+          if (onStart != null) onStart.run();
+
+          Response response = null;
+          IOException failure = null;
+          int inFlight = host.running.get();
+          long startNanos = System.nanoTime();
+          try {
+            HttpClient.Call call = httpClient.call(request);
+            this.call = call;
+            // cancel which came before call was published could not reach it
+            if (isCanceled) call.cancel();
+            response = call.execute();
+          } catch (IOException e) {
+            failure = e;
+          }
+
+          if (!isCanceled) {
+            long rttNanos = System.nanoTime() - startNanos;
+            boolean dropped = failure != null || response.code() == 429 || response.code() == 503;
+            host.limit.onSample(rttNanos, inFlight, dropped);
+            if (!dropped) host.latencyMicros.record(rttNanos / 1000);
+          }
+          if (response != null) {
+            success(response);
+          } else {
+            failure(failure);
+          }
+        } finally {
+          finished(this);
         }
+      }
+
+      @Override public void cancel() {
+        // flag goes first, run checks it after publishing call, so one of them cancels call
         super.cancel();
+        HttpClient.Call call = this.call;
+        if (call != null) call.cancel();
       }
 
       private void success(Response response) {
         if (!isCanceled && callback != null) {
           callback.onSuccess(response);
+        } else {
+          // nobody is going to read it, give connection back
+          response.close();
         }
       }
 
@@ -93,44 +553,366 @@ public final class NetworkDispatcher {
         }
       }
 
-      private void notifyFinished() {
-        running.remove(this);
-        CancelableTask nextTask;
+      @Override void expire() {
+        synchronized (this) {
+          if (isCanceled) return;
+          isCanceled = true;
+        }
+        if (callback != null) {
+          callback.onFailure(new InterruptedIOException("Deadline passed before request was sent"));
+        }
+      }
+    };
+  }
+
+  /** Waiting tasks, running task count and concurrency limit of a single host */
+  private static final class Host {
+    /** Skip list map rather than set, its firstEntry does not throw when empty */
+    final ConcurrentSkipListMap<CancelableTask, Boolean> waiting =
+        new ConcurrentSkipListMap<>(URGENCY);
+    final AtomicInteger running = new AtomicInteger();
+    /** Whether host is in ready queue, per priority */
+    final AtomicIntegerArray scheduled = new AtomicIntegerArray(PRIORITIES.length);
+    final ConcurrencyLimit limit;
+    /** Time to response headers of successful requests, hedge delay is its percentile */
+    final LatencyHistogram latencyMicros = new LatencyHistogram();
+
+    Host(ConcurrencyLimit limit) {
+      this.limit = limit;
+    }
+  }
+
+  /** One of the requests sharing a call */
+  private static final class Subscriber implements Cancelable {
+    final Callback<Response> callback;
+    volatile Flight flight;
+    /** Checked before delivery, subscriber may cancel after shared call is answered */
+    volatile boolean isCanceled;
+
+    Subscriber(Callback<Response> callback) {
+      this.callback = callback;
+    }
 
-        // make safe concurrent mutation of 'waiting' deque
-        synchronized (LOCK) {
-          if (waiting.isEmpty()) return;
+    @Override public void cancel() {
+      isCanceled = true;
+      Flight flight = this.flight;
+      if (flight != null) flight.leave(this);
+    }
 
-          nextTask = waiting.pop();
+    boolean isWaiting() {
+      return !isCanceled && callback != null;
+    }
+  }
+
+  /** Call shared by identical requests, replays its response to every subscriber */
+  private final class Flight implements Callback<Response> {
+    final String key;
+    /** Guarded by this */
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private boolean closed;
+    CancelableTask task;
+
+    Flight(String key, Subscriber first) {
+      this.key = key;
+      subscribers.add(first);
+      first.flight = this;
+    }
+
+    synchronized boolean join(Subscriber subscriber) {
+      if (closed) return false;
+      subscribers.add(subscriber);
+      subscriber.flight = this;
+      return true;
+    }
+
+    /** Cancels call once nobody waits for it */
+    void leave(Subscriber subscriber) {
+      synchronized (this) {
+        if (closed || !subscribers.remove(subscriber) || !subscribers.isEmpty()) return;
+        closed = true;
+      }
+      flights.remove(key, this);
+      task.cancel();
+    }
+
+    /** Stops accepting subscribers, those who came later make a new call */
+    private List<Subscriber> close() {
+      List<Subscriber> result;
+      synchronized (this) {
+        closed = true;
+        result = new ArrayList<>(subscribers);
+      }
+      flights.remove(key, this);
+      return result;
+    }
+
+    @Override public void onSuccess(Response response) {
+      List<Subscriber> subscribers = close();
+      int waiting = 0;
+      for (Subscriber subscriber : subscribers) {
+        if (subscriber.isWaiting()) waiting++;
+      }
+      if (waiting == 0) {
+        response.close();
+        return;
+      }
+      if (subscribers.size() == 1) {
+        // nobody joined, body does not have to be buffered
+        subscribers.get(0).callback.onSuccess(response);
+        return;
+      }
+
+      byte[] body = null;
+      if (response.stream() != null) {
+        try {
+          body = response.bytes();
+        } catch (Exception e) {
+          // bytes() rethrows IOException without declaring it
+          onFailure(e instanceof IOException ? (IOException) e : new IOException(e), subscribers);
+          return;
         }
+      }
+      for (Subscriber subscriber : subscribers) {
+        // replayed body is just an array, canceled subscriber gets nothing to close
+        if (!subscriber.isWaiting()) continue;
+        subscriber.callback.onSuccess(new Response(response.code(), response.headers(),
+            body == null ? null : new ByteArrayInputStream(body)));
+      }
+    }
 
-        running.add(nextTask);
-        executorService.execute(nextTask);
+    @Override public void onFailure(IOException e) {
+      onFailure(e, close());
+    }
+
+    private void onFailure(IOException e, List<Subscriber> subscribers) {
+      for (Subscriber subscriber : subscribers) {
+        if (subscriber.isWaiting()) subscriber.callback.onFailure(e);
       }
-    };
+    }
+  }
+
+  /**
+   * GET which is sent again if the first attempt is slow. Failure is reported once no attempt
+   * is left running, failure of the first attempt before hedge was sent is reported at once.
+   */
+  private final class Hedge implements Cancelable, Runnable {
+    private final Request request;
+    private final Callback<Response> callback;
+    private final Priority priority;
+    private final boolean hasDeadline;
+    private final long deadlineNanos;
+    private final RetryBudget budget;
+    /** Guarded by this */
+    private final List<CancelableTask> tasks = new ArrayList<>(2);
+    private int running;
+    private boolean done;
+    private ScheduledFuture<?> timer;
+
+    Hedge(Request request, Callback<Response> callback, Priority priority, boolean hasDeadline,
+        long deadlineNanos, RetryBudget budget) {
+      this.request = request;
+      this.callback = callback;
+      this.priority = priority;
+      this.hasDeadline = hasDeadline;
+      this.deadlineNanos = deadlineNanos;
+      this.budget = budget;
+    }
+
+    /** Delay is measured from the moment first attempt leaves the queue, like host latency */
+    void start(final long delayMicros) {
+      CancelableTask task = attempt();
+      task.onStart = new Runnable() {
+        @Override public void run() {
+          synchronized (Hedge.this) {
+            if (done) return;
+            timer = HttpClient.TIMERS.schedule(Hedge.this, delayMicros, TimeUnit.MICROSECONDS);
+          }
+        }
+      };
+      submit(task);
+    }
+
+    /** Sends hedge unless first attempt finished or budget is spent */
+    @Override public void run() {
+      synchronized (this) {
+        if (done) return;
+      }
+      if (!budget.tryWithdraw()) return;
+      hedgedCount.incrementAndGet();
+      // attempt() cancels task right away if hedge finished meanwhile
+      submit(attempt());
+    }
+
+    private CancelableTask attempt() {
+      Attempt attempt = new Attempt();
+      CancelableTask task = createTask(request, attempt, priority, hasDeadline, deadlineNanos);
+      attempt.task = task;
+      synchronized (this) {
+        tasks.add(task);
+        running++;
+        if (done) task.cancel();
+      }
+      return task;
+    }
+
+    void succeeded(CancelableTask winner, Response response) {
+      List<CancelableTask> losers;
+      synchronized (this) {
+        if (done) {
+          losers = null;
+        } else {
+          done = true;
+          losers = new ArrayList<>(tasks);
+          losers.remove(winner);
+          if (timer != null) timer.cancel(false);
+        }
+      }
+      if (losers == null) {
+        response.close();
+        return;
+      }
+      for (CancelableTask loser : losers) {
+        loser.cancel();
+      }
+      if (callback != null) {
+        callback.onSuccess(response);
+      } else {
+        response.close();
+      }
+    }
+
+    void failed(IOException e) {
+      synchronized (this) {
+        if (done || --running > 0) return;
+        done = true;
+        // first attempt may fail while still in the queue, before timer is started
+        if (timer != null) timer.cancel(false);
+      }
+      if (callback != null) callback.onFailure(e);
+    }
+
+    @Override public void cancel() {
+      List<CancelableTask> tasks;
+      synchronized (this) {
+        if (done) return;
+        done = true;
+        tasks = new ArrayList<>(this.tasks);
+        if (timer != null) timer.cancel(false);
+      }
+      for (CancelableTask task : tasks) {
+        task.cancel();
+      }
+    }
+
+    private final class Attempt implements Callback<Response> {
+      CancelableTask task;
+
+      @Override public void onSuccess(Response response) {
+        succeeded(task, response);
+      }
+
+      @Override public void onFailure(IOException e) {
+        failed(e);
+      }
+    }
   }
 
+  /** Priority first, then earliest deadline, then order of arrival */
+  private static final Comparator<CancelableTask> URGENCY = new Comparator<CancelableTask>() {
+    @Override public int compare(CancelableTask a, CancelableTask b) {
+      int result = a.priority.compareTo(b.priority);
+      if (result != 0) return result;
+      if (a.hasDeadline != b.hasDeadline) return a.hasDeadline ? -1 : 1;
+      if (a.hasDeadline && a.deadlineNanos != b.deadlineNanos) {
+        // nanoTime values may overflow, only their difference is meaningful
+        return a.deadlineNanos - b.deadlineNanos < 0 ? -1 : 1;
+      }
+      return Long.compare(a.sequence, b.sequence);
+    }
+  };
+
   /** Cancelable runnable */
   abstract class CancelableTask implements Runnable, Cancelable {
     volatile boolean isCanceled; //https://stackoverflow.com/a/3787435/1934509
     final Callback<Response> callback;
     final Request request;
+    final Host host;
+    final Priority priority;
+    final boolean hasDeadline;
+    final long deadlineNanos;
+    final long sequence = NetworkDispatcher.this.sequence.getAndIncrement();
+    final long enqueuedAtNanos = System.nanoTime();
+    /** Runs once task leaves the queue, set before task is submitted */
+    Runnable onStart;
 
-    private CancelableTask(Request request, Callback<Response> callback) {
+    private CancelableTask(Request request, Callback<Response> callback, Priority priority,
+        boolean hasDeadline, long deadlineNanos) {
       this.request = request;
       this.callback = callback;
+      this.priority = priority;
+      this.hasDeadline = hasDeadline;
+      this.deadlineNanos = deadlineNanos;
+      this.host = host(request);
+    }
+
+    boolean isExpired(long nowNanos) {
+      return hasDeadline && nowNanos - deadlineNanos >= 0;
     }
 
+    /** Fails task which was removed from queue because its deadline passed */
+    abstract void expire();
+
+    /**
+     * Waiting task is removed from queue and never runs. Running task has its call canceled,
+     * its slot is released once, by the thread which runs it, and its callback is not invoked.
+     */
     @Override public void cancel() {
-      if (isCanceled) return;
-      isCanceled = true;
+      synchronized (this) {
+        if (isCanceled) return;
+        isCanceled = true;
+      }
 
-      if (!waiting.remove(this)) {
-        running.remove(this);
+      if (host.waiting.remove(this) != null) {
+        waiting.decrementAndGet();
       }
     }
   }
 
+  /** Hands response to {@link BodyPump}, cancel reaches whichever of call and pump is active */
+  private final class Streaming implements Callback<Response>, Cancelable {
+    private final BodyConsumer consumer;
+    volatile Cancelable task;
+    private volatile BodyPump pump;
+    volatile boolean canceled;
+
+    Streaming(BodyConsumer consumer) {
+      this.consumer = consumer;
+    }
+
+    @Override public void onSuccess(Response response) {
+      BodyPump pump = BodyPump.of(response, consumer, executorService);
+      this.pump = pump;
+      // cancel could have missed pump, it is checked after pump is published
+      if (canceled) {
+        pump.cancel();
+        return;
+      }
+      consumer.onResponse(response, pump);
+    }
+
+    @Override public void onFailure(IOException e) {
+      if (!canceled) consumer.onFailure(e);
+    }
+
+    @Override public void cancel() {
+      canceled = true;
+      Cancelable task = this.task;
+      if (task != null) task.cancel();
+      BodyPump pump = this.pump;
+      if (pump != null) pump.cancel();
+    }
+  }
+
   /** Callback for response */
   public interface Callback<Response> {
     void onSuccess(Response response);
@@ -141,4 +923,4 @@ public final class NetworkDispatcher {
   public interface Cancelable {
     void cancel();
   }
-}
\ No newline at end of file
+}
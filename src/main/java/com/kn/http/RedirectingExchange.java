@@ -0,0 +1,62 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Exchange which follows redirects the same way HttpURLConnection does, subclasses only
+ * perform single round trips.
+ *
+ * @author nk
+ */
+abstract class RedirectingExchange implements Transport.Exchange {
+  static final int MAX_REDIRECTS = 20;
+
+  final Request request;
+
+  RedirectingExchange(Request request) {
+    this.request = request;
+  }
+
+  abstract Response executeOnce(URL url, HttpMethod method, RequestBody body) throws IOException;
+
+  @Override public Response execute() throws IOException {
+    URL url = request.url;
+    HttpMethod method = request.method;
+    RequestBody body = request.body;
+
+    for (int redirects = 0; ; redirects++) {
+      Response response = executeOnce(url, method, body);
+      int code = response.code();
+      String location = response.header("Location");
+      if (!isRedirect(code) || location == null || redirects == MAX_REDIRECTS) {
+        return response;
+      }
+
+      URL target = new URL(url, location);
+      // same as HttpURLConnection, never follow redirects between http and https
+      if (!target.getProtocol().equals(url.getProtocol())) return response;
+
+      if (code == 303 || ((code == 301 || code == 302) && method != HttpMethod.GET)) {
+        method = HttpMethod.GET;
+        body = null;
+      } else if (!isRepeatable(body)) {
+        return response;
+      }
+      response.close();
+      url = target;
+    }
+  }
+
+  static boolean isRedirect(int code) {
+    return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+  }
+
+  /** Whether body, possibly null, can be sent again */
+  static boolean isRepeatable(RequestBody body) {
+    return body == null || body.isRepeatable();
+  }
+}
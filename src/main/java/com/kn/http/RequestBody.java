@@ -0,0 +1,198 @@
+package com.kn.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Body of a request, written by transport straight to the connection. Bodies of known length
+ * are sent with Content-Length, the rest with chunked transfer encoding, so nothing but the
+ * pooled copy buffer is held in memory.
+ *
+ * @author nk
+ */
+public abstract class RequestBody {
+
+  /** Number of bytes {@link #writeTo} writes, -1 when unknown */
+  public abstract long contentLength() throws IOException;
+
+  /** Writes body to out, must not close out */
+  public abstract void writeTo(OutputStream out) throws IOException;
+
+  /** Whether body can be written more than once, needed to follow redirects and retry */
+  public boolean isRepeatable() {
+    return false;
+  }
+
+  /** UTF-8 encoded string */
+  public static RequestBody of(String string) {
+    if (string == null) throw new NullPointerException("String is null");
+    return new BytesBody(string.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Array is not copied, do not modify it until request is sent */
+  public static RequestBody of(byte[] bytes) {
+    if (bytes == null) throw new NullPointerException("Bytes are null");
+    return new BytesBody(bytes);
+  }
+
+  /**
+   * Stream of unknown length, sent chunked and only once. Stream is closed after it was
+   * written. {@link ByteArrayInputStream} is the exception, it knows its length and is reset
+   * before each write.
+   */
+  public static RequestBody of(InputStream stream) {
+    if (stream == null) throw new NullPointerException("InputStream is null");
+    if (stream instanceof ByteArrayInputStream) {
+      stream.mark(0);
+      return new StreamBody(stream, ((ByteArrayInputStream) stream).available(), true);
+    }
+    return new StreamBody(stream, -1, false);
+  }
+
+  /** Stream of exactly contentLength bytes, sent only once and closed afterwards */
+  public static RequestBody of(InputStream stream, long contentLength) {
+    if (stream == null) throw new NullPointerException("InputStream is null");
+    if (contentLength < 0) throw new IllegalArgumentException("contentLength < 0");
+    return new StreamBody(stream, contentLength, false);
+  }
+
+  /** File is opened anew for every write, so this body can follow redirects */
+  public static RequestBody of(Path file) {
+    if (file == null) throw new NullPointerException("Path is null");
+    return new FileBody(file);
+  }
+
+  /**
+   * Channel sent only once and closed afterwards
+   *
+   * @param contentLength -1 when unknown
+   */
+  public static RequestBody of(ReadableByteChannel channel, long contentLength) {
+    if (channel == null) throw new NullPointerException("ReadableByteChannel is null");
+    if (contentLength < -1) throw new IllegalArgumentException("contentLength < -1");
+    return new ChannelBody(channel, contentLength);
+  }
+
+  /**
+   * Gzip compressed body, sent chunked. Request must carry Content-Encoding: gzip, which
+   * {@link HttpClient.Request.Builder#gzipBody()} sets. Only worth it for large text bodies and
+   * servers which accept compressed requests.
+   */
+  public static RequestBody gzip(RequestBody body) {
+    if (body == null) throw new NullPointerException("RequestBody is null");
+    return new ContentEncoding.GzipBody(body);
+  }
+
+  /** Copies channel through pooled buffer, does not close channel */
+  static void copy(ReadableByteChannel channel, OutputStream out) throws IOException {
+    byte[] array = BufferPool.shared().takeArray();
+    ByteBuffer buffer = ByteBuffer.wrap(array);
+    try {
+      while (channel.read(buffer) != -1) {
+        if (buffer.position() == 0) continue;
+        out.write(array, 0, buffer.position());
+        buffer.clear();
+      }
+    } finally {
+      BufferPool.shared().releaseArray(array);
+    }
+  }
+
+  static final class BytesBody extends RequestBody {
+    final byte[] bytes;
+
+    BytesBody(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override public long contentLength() {
+      return bytes.length;
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+      out.write(bytes);
+    }
+
+    @Override public boolean isRepeatable() {
+      return true;
+    }
+  }
+
+  private static final class StreamBody extends RequestBody {
+    private final InputStream stream;
+    private final long contentLength;
+    private final boolean repeatable;
+
+    StreamBody(InputStream stream, long contentLength, boolean repeatable) {
+      this.stream = stream;
+      this.contentLength = contentLength;
+      this.repeatable = repeatable;
+    }
+
+    @Override public long contentLength() {
+      return contentLength;
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+      if (repeatable) stream.reset();
+      HttpClient.copy(stream, out);
+    }
+
+    @Override public boolean isRepeatable() {
+      return repeatable;
+    }
+  }
+
+  private static final class FileBody extends RequestBody {
+    private final Path file;
+
+    FileBody(Path file) {
+      this.file = file;
+    }
+
+    @Override public long contentLength() throws IOException {
+      return Files.size(file);
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        copy(channel, out);
+      }
+    }
+
+    @Override public boolean isRepeatable() {
+      return true;
+    }
+  }
+
+  private static final class ChannelBody extends RequestBody {
+    private final ReadableByteChannel channel;
+    private final long contentLength;
+
+    ChannelBody(ReadableByteChannel channel, long contentLength) {
+      this.channel = channel;
+      this.contentLength = contentLength;
+    }
+
+    @Override public long contentLength() {
+      return contentLength;
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+      try {
+        copy(channel, out);
+      } finally {
+        HttpClient.closeQuietly(channel);
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Method, url and headers shared by many requests, parsed once. Url may hold path parameters
+ * like {@code https://api.example.com/users/{id}/items}, which {@link Filler} fills in for each
+ * request together with query parameters, extra headers and body. Parameter values are percent
+ * encoded as UTF-8. Templates are immutable and may be shared by any number of threads.
+ *
+ * <pre>{@code
+ * RequestTemplate items = new RequestTemplate.Builder()
+ *     .url("https://api.example.com/users/{id}/items")
+ *     .header("Accept", "application/json")
+ *     .build();
+ * Request request = items.newRequest().path("id", "42").query("page", "2").build();
+ * }</pre>
+ *
+ * @author nk
+ */
+public final class RequestTemplate {
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  final HttpMethod method;
+  final Headers headers;
+  private final String protocol;
+  private final String host;
+  private final int port;
+  /** Literal parts of url file, parameter of the same index follows each but the last one */
+  private final String[] literals;
+  private final String[] parameters;
+  private final boolean hasQuery;
+  private final int literalsLength;
+
+  private RequestTemplate(Builder builder) {
+    this.method = builder.method;
+    this.headers = builder.headers.build();
+    this.protocol = builder.url.getProtocol();
+    this.host = builder.url.getHost();
+    this.port = builder.url.getPort();
+
+    String file = builder.url.getFile();
+    if (file.length() == 0) file = "/";
+    List<String> literals = new ArrayList<>();
+    List<String> parameters = new ArrayList<>();
+    int start = 0;
+    for (int open; (open = file.indexOf('{', start)) != -1; ) {
+      int close = file.indexOf('}', open);
+      if (close == -1 || close == open + 1) {
+        throw new IllegalArgumentException("Unexpected path parameter in " + file);
+      }
+      literals.add(file.substring(start, open));
+      parameters.add(file.substring(open + 1, close));
+      start = close + 1;
+    }
+    literals.add(file.substring(start));
+    this.literals = literals.toArray(new String[0]);
+    this.parameters = parameters.toArray(new String[0]);
+    this.hasQuery = file.indexOf('?') != -1;
+    this.literalsLength = file.length();
+  }
+
+  public HttpMethod method() {
+    return method;
+  }
+
+  public Headers headers() {
+    return headers;
+  }
+
+  /** Starts a request, fill in its parameters and call {@link Filler#build()} */
+  public Filler newRequest() {
+    return new Filler(this);
+  }
+
+  /**
+   * Appends value percent encoded as UTF-8, only unreserved characters of RFC 3986 are left as
+   * is, so value can go into path segment as well as into query
+   */
+  static void encode(StringBuilder out, String value) {
+    for (int i = 0, length = value.length(); i < length; i++) {
+      char c = value.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || c == '-' || c == '.' || c == '_' || c == '~') {
+        out.append(c);
+        continue;
+      }
+      int codePoint = c;
+      if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        codePoint = Character.toCodePoint(c, value.charAt(++i));
+      } else if (Character.isSurrogate(c)) {
+        // lone surrogate can not be encoded, same as String.getBytes
+        codePoint = '?';
+      }
+
+      if (codePoint < 0x80) {
+        percent(out, codePoint);
+      } else if (codePoint < 0x800) {
+        percent(out, 0xc0 | codePoint >> 6);
+        percent(out, 0x80 | codePoint & 0x3f);
+      } else if (codePoint < 0x10000) {
+        percent(out, 0xe0 | codePoint >> 12);
+        percent(out, 0x80 | codePoint >> 6 & 0x3f);
+        percent(out, 0x80 | codePoint & 0x3f);
+      } else {
+        percent(out, 0xf0 | codePoint >> 18);
+        percent(out, 0x80 | codePoint >> 12 & 0x3f);
+        percent(out, 0x80 | codePoint >> 6 & 0x3f);
+        percent(out, 0x80 | codePoint & 0x3f);
+      }
+    }
+  }
+
+  private static void percent(StringBuilder out, int b) {
+    out.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xf]);
+  }
+
+  public static final class Builder {
+    private HttpMethod method = HttpMethod.GET;
+    private URL url;
+    private final Headers.Builder headers = new Headers.Builder();
+
+    public Builder method(HttpMethod method) {
+      if (method == null) throw new NullPointerException("HttpMethod is null");
+      this.method = method;
+      return this;
+    }
+
+    /** Absolute url, path parameters are names in braces */
+    public Builder url(String url) {
+      if (url == null) throw new NullPointerException("Url is null");
+      try {
+        this.url = new URL(url);
+      } catch (MalformedURLException e) {
+        throw new IllegalArgumentException(e.getMessage());
+      }
+      return this;
+    }
+
+    /** Replaces values header had so far */
+    public Builder header(String name, String value) {
+      headers.set(name, value);
+      return this;
+    }
+
+    /** Adds one more value, values header had so far stay */
+    public Builder addHeader(String name, String value) {
+      headers.add(name, value);
+      return this;
+    }
+
+    public RequestTemplate build() {
+      if (url == null) throw new IllegalStateException("Url must be set");
+      return new RequestTemplate(this);
+    }
+  }
+
+  /** Parameters of a single request, not thread safe */
+  public static final class Filler {
+    private final RequestTemplate template;
+    private final String[] values;
+    private StringBuilder query;
+    private Headers.Builder headers;
+    private RequestBody body;
+
+    Filler(RequestTemplate template) {
+      this.template = template;
+      this.values = new String[template.parameters.length];
+    }
+
+    /** Fills in every occurrence of path parameter */
+    public Filler path(String name, String value) {
+      if (name == null) throw new NullPointerException("Name is null");
+      if (value == null) throw new NullPointerException("Value is null");
+      boolean found = false;
+      for (int i = 0; i < values.length; i++) {
+        if (name.equals(template.parameters[i])) {
+          values[i] = value;
+          found = true;
+        }
+      }
+      if (!found) throw new IllegalArgumentException("Unknown path parameter: " + name);
+      return this;
+    }
+
+    /** Appends query parameter, parameters of template url stay */
+    public Filler query(String name, String value) {
+      if (name == null) throw new NullPointerException("Name is null");
+      if (query == null) {
+        query = new StringBuilder();
+      } else {
+        query.append('&');
+      }
+      encode(query, name);
+      if (value != null) encode(query.append('='), value);
+      return this;
+    }
+
+    /** Replaces values header had in template */
+    public Filler header(String name, String value) {
+      if (headers == null) headers = template.headers.newBuilder();
+      headers.set(name, value);
+      return this;
+    }
+
+    public Filler body(RequestBody body) {
+      this.body = body;
+      return this;
+    }
+
+    public Filler body(String body) {
+      this.body = body == null ? null : RequestBody.of(body);
+      return this;
+    }
+
+    /** Stream is sent chunked, see {@link RequestBody#of(InputStream)} */
+    public Filler body(InputStream body) {
+      this.body = body == null ? null : RequestBody.of(body);
+      return this;
+    }
+
+    /** May be called again after changing parameters, every call makes a new request */
+    public Request build() {
+      if (template.method == HttpMethod.GET && body != null) {
+        throw new IllegalStateException("GET method can not have body");
+      }
+      String[] literals = template.literals;
+      StringBuilder file = new StringBuilder(template.literalsLength
+          + (query != null ? query.length() + 1 : 0) + values.length * 16);
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] == null) {
+          throw new IllegalStateException("Missing path parameter: " + template.parameters[i]);
+        }
+        encode(file.append(literals[i]), values[i]);
+      }
+      file.append(literals[literals.length - 1]);
+      if (query != null) file.append(template.hasQuery ? '&' : '?').append(query);
+
+      URL url = null;
+      try {
+        // protocol was checked by template, this constructor does not parse it again
+        url = new URL(template.protocol, template.host, template.port, file.toString());
+      } catch (MalformedURLException e) {
+        HttpClient.rethrow(e);
+      }
+      Headers headers = this.headers != null ? this.headers.build() : template.headers;
+      return new Request(url, template.method, headers, body);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package com.kn.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits retries and hedges to a share of requests, so that a struggling server is not hit by
+ * a retry storm on top of regular load. Every request deposits ratio of a token, every retry or
+ * hedge withdraws a whole one. Budget starts full, maxTokens bounds bursts. One budget may be
+ * shared by many clients and dispatchers.
+ *
+ * @author nk
+ */
+public final class RetryBudget {
+  /** Tokens are kept in thousandths, so that fractional deposits need no locking */
+  private static final long SCALE = 1000;
+
+  private final long ratio;
+  private final long maxTokens;
+  private final AtomicLong tokens;
+
+  /**
+   * @param ratio retries allowed per request in the long run, 0.1 means one retry per ten
+   * requests
+   * @param maxTokens retries allowed in a burst
+   */
+  public RetryBudget(double ratio, int maxTokens) {
+    if (ratio < 0 || ratio > 1) throw new IllegalArgumentException("ratio must be in [0, 1]");
+    if (maxTokens <= 0) throw new IllegalArgumentException("maxTokens <= 0");
+    this.ratio = (long) (ratio * SCALE);
+    this.maxTokens = maxTokens * SCALE;
+    this.tokens = new AtomicLong(this.maxTokens);
+  }
+
+  /** Retries which can be made right now */
+  public double tokens() {
+    return (double) tokens.get() / SCALE;
+  }
+
+  void deposit() {
+    while (true) {
+      long current = tokens.get();
+      long next = Math.min(maxTokens, current + ratio);
+      if (current == next || tokens.compareAndSet(current, next)) return;
+    }
+  }
+
+  /** Takes one token, false when budget is spent */
+  boolean tryWithdraw() {
+    while (true) {
+      long current = tokens.get();
+      if (current < SCALE) return false;
+      if (tokens.compareAndSet(current, current - SCALE)) return true;
+    }
+  }
+}
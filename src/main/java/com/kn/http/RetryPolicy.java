@@ -0,0 +1,100 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Retries idempotent requests which failed with {@link java.io.IOException} or with 502, 503
+ * or 504 status. Pauses between attempts grow exponentially and are fully jittered, so that
+ * clients which failed together do not come back together. Every retry spends a token of
+ * {@link RetryBudget}, no retry is made once it is spent. Canceled and timed out calls are
+ * never retried, nor are failures which would repeat, such as unknown host or TLS handshake.
+ *
+ * @author nk
+ */
+public final class RetryPolicy {
+  public static final RetryPolicy NONE = new Builder().maxAttempts(1).build();
+
+  final int maxAttempts;
+  final long initialBackoffMillis;
+  final long maxBackoffMillis;
+  final RetryBudget budget;
+
+  private RetryPolicy(Builder builder) {
+    this.maxAttempts = builder.maxAttempts;
+    this.initialBackoffMillis = builder.initialBackoffMillis;
+    this.maxBackoffMillis = builder.maxBackoffMillis;
+    this.budget = builder.budget;
+  }
+
+  /** GET and PUT are idempotent, PUT body must be repeatable too */
+  boolean isRetryable(Request request) {
+    if (maxAttempts == 1) return false;
+    if (request.method != HttpMethod.GET && request.method != HttpMethod.PUT) return false;
+    return RedirectingExchange.isRepeatable(request.body);
+  }
+
+  static boolean isRetryable(int code) {
+    return code == 502 || code == 503 || code == 504;
+  }
+
+  /** Unknown host, failed TLS handshake or malformed response would fail the same way again */
+  static boolean isRetryable(IOException e) {
+    return !(e instanceof UnknownHostException || e instanceof SSLHandshakeException
+        || e instanceof SSLPeerUnverifiedException || e instanceof ProtocolException);
+  }
+
+  /** Whether another attempt may follow given one, spends budget token if so */
+  boolean canRetry(int attempt) {
+    return attempt < maxAttempts && budget.tryWithdraw();
+  }
+
+  /** Random pause before attempt which follows given one */
+  long backoffMillis(int attempt) {
+    long ceiling = initialBackoffMillis << Math.min(attempt - 1, 30);
+    if (ceiling <= 0 || ceiling > maxBackoffMillis) ceiling = maxBackoffMillis;
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  public static final class Builder {
+    private int maxAttempts = 3;
+    private long initialBackoffMillis = 100;
+    private long maxBackoffMillis = 1000 * 5;
+    private RetryBudget budget = new RetryBudget(0.1, 10);
+
+    /** Attempts including the first one, 3 by default */
+    public Builder maxAttempts(int maxAttempts) {
+      if (maxAttempts <= 0) throw new IllegalArgumentException("maxAttempts <= 0");
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /** Pause before n-th retry is random, up to initial * 2^(n-1) but not more than max */
+    public Builder backoff(long initial, long max, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("TimeUnit is null");
+      if (initial < 0) throw new IllegalArgumentException("initial < 0");
+      if (max < initial) throw new IllegalArgumentException("max < initial");
+      this.initialBackoffMillis = unit.toMillis(initial);
+      this.maxBackoffMillis = unit.toMillis(max);
+      return this;
+    }
+
+    /** Defaults to one retry per ten requests with bursts of 10 */
+    public Builder budget(RetryBudget budget) {
+      if (budget == null) throw new NullPointerException("RetryBudget is null");
+      this.budget = budget;
+      return this;
+    }
+
+    public RetryPolicy build() {
+      return new RetryPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,282 @@
+package com.kn.http;
+
+import com.kn.http.Connection.Address;
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * HTTP/1.1 transport working directly on sockets. Unlike {@link UrlConnectionTransport} it
+ * keeps idle connections in its own {@link ConnectionPool}, so pool size and keep-alive
+ * duration are under our control. Redirects are followed the same way HttpURLConnection does.
+ *
+ * @author nk
+ */
+public final class SocketTransport implements Transport {
+  static final int MAX_PIPELINE_DEPTH = 16;
+
+  private final ConnectionPool pool;
+  private final SSLSocketFactory sslSocketFactory;
+  private final Dns dns;
+  /** Hosts which broke a pipeline once, their batches are executed one by one */
+  private final Set<Address> pipeliningBroken =
+      Collections.newSetFromMap(new ConcurrentHashMap<Address, Boolean>());
+
+  public SocketTransport() {
+    this(new ConnectionPool());
+  }
+
+  public SocketTransport(ConnectionPool pool) {
+    this(pool, (SSLSocketFactory) SSLSocketFactory.getDefault());
+  }
+
+  public SocketTransport(ConnectionPool pool, SSLSocketFactory sslSocketFactory) {
+    this(pool, sslSocketFactory, Dns.SYSTEM);
+  }
+
+  public SocketTransport(ConnectionPool pool, SSLSocketFactory sslSocketFactory, Dns dns) {
+    if (pool == null) throw new NullPointerException("ConnectionPool is null");
+    if (sslSocketFactory == null) throw new NullPointerException("SSLSocketFactory is null");
+    if (dns == null) throw new NullPointerException("Dns is null");
+    this.pool = pool;
+    this.sslSocketFactory = sslSocketFactory;
+    this.dns = dns;
+  }
+
+  public ConnectionPool connectionPool() {
+    return pool;
+  }
+
+  @Override public Exchange newExchange(Request request, int connectTimeout, int readTimeout) {
+    return newExchange(request, connectTimeout, readTimeout, EventListener.NONE);
+  }
+
+  @Override public Exchange newExchange(Request request, int connectTimeout, int readTimeout,
+      EventListener listener) {
+    return new SocketExchange(request, connectTimeout, readTimeout, listener);
+  }
+
+  /**
+   * Pipelines GET requests to the same host over one connection, hosts are served one after
+   * another on the calling thread. Pipelined bodies are read into memory, that is what lets
+   * next response on the same connection be read. Requests which can not be pipelined, and
+   * requests left unanswered by a server which broke the pipeline, are executed one by one.
+   */
+  @Override public List<Response> executeBatch(List<Request> requests, int connectTimeout,
+      int readTimeout) throws IOException {
+    Response[] responses = new Response[requests.size()];
+    Map<Address, List<Integer>> pipelines = new LinkedHashMap<>();
+    for (int i = 0; i < responses.length; i++) {
+      Request request = requests.get(i);
+      if (request.method != HttpMethod.GET) continue;
+      Address address = Address.of(request.url);
+      if (pipeliningBroken.contains(address)) continue;
+
+      List<Integer> indices = pipelines.get(address);
+      if (indices == null) {
+        indices = new ArrayList<>();
+        pipelines.put(address, indices);
+      }
+      indices.add(i);
+    }
+
+    try {
+      for (Map.Entry<Address, List<Integer>> entry : pipelines.entrySet()) {
+        List<Integer> indices = entry.getValue();
+        if (indices.size() == 1) continue;
+        pipeline(entry.getKey(), indices, requests, responses, connectTimeout, readTimeout);
+      }
+
+      for (int i = 0; i < responses.length; i++) {
+        if (responses[i] == null) {
+          responses[i] = newExchange(requests.get(i), connectTimeout, readTimeout).execute();
+        }
+      }
+    } catch (IOException e) {
+      for (Response response : responses) {
+        if (response != null) response.close();
+      }
+      throw e;
+    }
+    return Arrays.asList(responses);
+  }
+
+  /** Leaves responses of requests which did not make it through pipeline unset */
+  private void pipeline(Address address, List<Integer> indices, List<Request> requests,
+      Response[] responses, int connectTimeout, int readTimeout) throws IOException {
+    Connection connection = pool.take(address);
+    if (connection == null) {
+      connection = Connection.connect(address, sslSocketFactory, dns, connectTimeout,
+          readTimeout, EventListener.NONE, new Canceler());
+    } else {
+      connection.readTimeout(readTimeout);
+    }
+
+    int written = 0;
+    int read = 0;
+    boolean reusable = true;
+    try {
+      while (read < indices.size() && reusable) {
+        while (written < indices.size() && written - read < MAX_PIPELINE_DEPTH) {
+          Request request = requests.get(indices.get(written++));
+          Http1Codec.writeRequest(connection.out, request.url, request.method, request.headers,
+              null);
+        }
+        connection.out.flush();
+
+        if (!Http1Codec.readResponseHead(connection)) {
+          throw new EOFException("Connection closed by peer");
+        }
+        Http1Parser head = connection.parser;
+        // informational responses precede the final one, they answer no request on their own
+        while (head.code() >= 100 && head.code() < 200) {
+          if (!Http1Codec.readResponseHead(connection)) {
+            throw new EOFException("Unexpected end of stream");
+          }
+        }
+        int code = head.code();
+        Headers headers = head.headers();
+        reusable = Http1Codec.isReusable(head.version(), headers);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        HttpClient.copy(Http1Codec.newBodyStream(connection, null, code, headers, reusable), bytes);
+        int index = indices.get(read++);
+        // redirects are left to regular exchange, it knows how to follow them
+        if (RedirectingExchange.isRedirect(code)) continue;
+
+        InputStream body = new ByteArrayInputStream(bytes.toByteArray());
+        responses[index] = new Response(code, headers,
+            HttpClient.decode(body, headers.get("Content-Encoding")));
+      }
+    } catch (IOException e) {
+      connection.close();
+      // server answered some requests and dropped the rest, it does not support pipelining
+      // and its later batches go one by one. Unanswered requests are retried by the caller.
+      if (read > 0) pipeliningBroken.add(address);
+      return;
+    }
+
+    if (reusable && read == written) {
+      pool.release(connection);
+    } else {
+      connection.close();
+    }
+  }
+
+  private final class SocketExchange extends RedirectingExchange {
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final EventListener listener;
+    private volatile Connection connection;
+    private volatile Http1Codec.BodyStream body;
+    private volatile boolean canceled;
+    private final Canceler canceler = new Canceler();
+
+    SocketExchange(Request request, int connectTimeout, int readTimeout,
+        EventListener listener) {
+      super(request);
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+      this.listener = listener;
+    }
+
+    @Override Response executeOnce(URL url, HttpMethod method, RequestBody body)
+        throws IOException {
+      Address address = Address.of(url);
+      Connection connection = pool.take(address);
+      boolean reused = connection != null;
+
+      while (true) {
+        checkCanceled();
+        if (connection == null) {
+          connection = Connection.connect(address, sslSocketFactory, dns, connectTimeout,
+              readTimeout, listener, canceler);
+        } else {
+          connection.readTimeout(readTimeout);
+        }
+        this.connection = connection;
+        listener.connectionAcquired(reused);
+        checkCanceled();
+
+        try {
+          listener.requestStart();
+          Http1Codec.writeRequest(connection.out, url, method, request.headers, body);
+          connection.out.flush();
+          listener.requestEnd();
+          if (!Http1Codec.readResponseHead(connection)) {
+            throw new EOFException("Connection closed by peer");
+          }
+        } catch (IOException e) {
+          connection.close();
+          // server may have closed pooled connection right before we used it, try a fresh one
+          if (reused && !canceled && RedirectingExchange.isRepeatable(body)) {
+            connection = null;
+            reused = false;
+            continue;
+          }
+          throw e;
+        }
+
+        try {
+          return readResponse(connection);
+        } catch (IOException e) {
+          connection.close();
+          throw e;
+        }
+      }
+    }
+
+    private Response readResponse(Connection connection) throws IOException {
+      Http1Parser head = connection.parser;
+      // skip informational responses like 100 Continue
+      while (head.code() >= 100 && head.code() < 200) {
+        if (!Http1Codec.readResponseHead(connection)) {
+          throw new EOFException("Unexpected end of stream");
+        }
+      }
+      int code = head.code();
+      Headers headers = head.headers();
+
+      listener.responseStart(code);
+
+      boolean reusable = Http1Codec.isReusable(head.version(), headers);
+      Http1Codec.BodyStream body =
+          Http1Codec.newBodyStream(connection, pool, code, headers, reusable);
+      // from now on connection belongs to body, it may return to pool and serve someone else
+      this.body = body;
+      this.connection = null;
+
+      InputStream stream = body.isFinished()
+          ? body : HttpClient.decode(body, headers.get("Content-Encoding"));
+      return new Response(code, headers, stream);
+    }
+
+    private void checkCanceled() throws IOException {
+      if (canceled) throw new IOException("Canceled");
+    }
+
+    @Override public void cancel() {
+      canceled = true;
+      canceler.cancel();
+      Http1Codec.BodyStream body = this.body;
+      if (body != null) body.cancel();
+      Connection connection = this.connection;
+      if (connection != null) connection.close();
+    }
+  }
+}
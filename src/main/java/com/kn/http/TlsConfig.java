@@ -0,0 +1,201 @@
+package com.kn.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * TLS settings shared by transports. Sessions are cached per {@link SSLContext}, so transports
+ * which should resume each other's sessions must share one config. Pass {@link #socketFactory()}
+ * to {@link SocketTransport}, {@link Http2Transport} or {@link UrlConnectionTransport}.
+ *
+ * <p>Resumed handshakes skip certificate exchange and verification, which is most of the CPU
+ * cost of a new connection. TLS 1.2 resumes by session id, TLS 1.3 by session tickets. Tickets
+ * are sent by JDK 13+ unless {@code jdk.tls.client.enableSessionTicketExtension} is false, the
+ * property is JVM-wide and can not be set here. {@link HttpMetrics} counts full and resumed
+ * handshakes.
+ *
+ * @author nk
+ */
+public final class TlsConfig {
+  private final SSLContext sslContext;
+  private final String[] protocols;
+  private final String[] cipherSuites;
+  private final SSLSocketFactory socketFactory;
+
+  private TlsConfig(Builder builder) {
+    this.sslContext = builder.sslContext;
+    this.protocols = builder.protocols;
+    this.cipherSuites = builder.cipherSuites;
+    SSLSessionContext sessions = sslContext.getClientSessionContext();
+    sessions.setSessionCacheSize(builder.sessionCacheSize);
+    sessions.setSessionTimeout(builder.sessionTimeoutSeconds);
+    this.socketFactory = new ConfiguredSocketFactory(sslContext.getSocketFactory());
+  }
+
+  public SSLContext sslContext() {
+    return sslContext;
+  }
+
+  /** Creates sockets with configured protocols and cipher suites enabled */
+  public SSLSocketFactory socketFactory() {
+    return socketFactory;
+  }
+
+  /** Protocols enabled on new sockets, null when context defaults are used */
+  public List<String> protocols() {
+    return protocols == null ? null : Arrays.asList(protocols.clone());
+  }
+
+  /** Cipher suites enabled on new sockets, null when context defaults are used */
+  public List<String> cipherSuites() {
+    return cipherSuites == null ? null : Arrays.asList(cipherSuites.clone());
+  }
+
+  /** Whether handshake which began at given time resumed a cached session */
+  static boolean isResumed(SSLSocket socket, long handshakeStartMillis) {
+    // resumed session keeps creation time of the handshake which established it
+    return socket.getSession().getCreationTime() < handshakeStartMillis;
+  }
+
+  private Socket configure(Socket socket) {
+    if (socket instanceof SSLSocket) {
+      SSLSocket sslSocket = (SSLSocket) socket;
+      if (protocols != null) sslSocket.setEnabledProtocols(protocols);
+      if (cipherSuites != null) sslSocket.setEnabledCipherSuites(cipherSuites);
+    }
+    return socket;
+  }
+
+  public static final class Builder {
+    private SSLContext sslContext;
+    private int sessionCacheSize = 1024;
+    private int sessionTimeoutSeconds = 60 * 60 * 12;
+    private String[] protocols;
+    private String[] cipherSuites;
+
+    /**
+     * Context owning the session cache, a new default context by default. Cache size and
+     * timeout of given context are changed by {@link #build()}.
+     */
+    public Builder sslContext(SSLContext sslContext) {
+      if (sslContext == null) throw new NullPointerException("SSLContext is null");
+      this.sslContext = sslContext;
+      return this;
+    }
+
+    /** Sessions kept for resumption, one per host is enough, 1024 by default */
+    public Builder sessionCacheSize(int size) {
+      if (size <= 0) throw new IllegalArgumentException("size <= 0");
+      this.sessionCacheSize = size;
+      return this;
+    }
+
+    /** How long cached session may be resumed, 12 hours by default */
+    public Builder sessionTimeout(long timeout, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("TimeUnit is null");
+      if (timeout <= 0) throw new IllegalArgumentException("timeout <= 0");
+      this.sessionTimeoutSeconds = (int) Math.min(Integer.MAX_VALUE,
+          Math.max(1, unit.toSeconds(timeout)));
+      return this;
+    }
+
+    /** Such as TLSv1.3 and TLSv1.2, in order of preference */
+    public Builder protocols(String... protocols) {
+      this.protocols = checkNames(protocols, "Protocols");
+      return this;
+    }
+
+    public Builder cipherSuites(String... cipherSuites) {
+      this.cipherSuites = checkNames(cipherSuites, "Cipher suites");
+      return this;
+    }
+
+    /** @throws IllegalArgumentException when context does not support a protocol or suite */
+    public TlsConfig build() {
+      if (sslContext == null) {
+        try {
+          sslContext = SSLContext.getInstance("TLS");
+          sslContext.init(null, null, null);
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException("Default TLS context is not available", e);
+        }
+      }
+      checkSupported(protocols, sslContext.getSupportedSSLParameters().getProtocols(),
+          "protocol");
+      checkSupported(cipherSuites, sslContext.getSupportedSSLParameters().getCipherSuites(),
+          "cipher suite");
+      return new TlsConfig(this);
+    }
+
+    private static String[] checkNames(String[] names, String what) {
+      if (names == null) throw new NullPointerException(what + " are null");
+      if (names.length == 0) throw new IllegalArgumentException(what + " are empty");
+      for (String name : names) {
+        if (name == null) throw new NullPointerException(what + " contain null");
+      }
+      return names.clone();
+    }
+
+    private static void checkSupported(String[] names, String[] supported, String what) {
+      if (names == null) return;
+      List<String> supportedList = Arrays.asList(supported);
+      for (String name : names) {
+        if (!supportedList.contains(name)) {
+          throw new IllegalArgumentException("Unsupported " + what + " " + name);
+        }
+      }
+    }
+  }
+
+  private final class ConfiguredSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+
+    ConfiguredSocketFactory(SSLSocketFactory delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public String[] getDefaultCipherSuites() {
+      return cipherSuites != null ? cipherSuites.clone() : delegate.getDefaultCipherSuites();
+    }
+
+    @Override public String[] getSupportedCipherSuites() {
+      return delegate.getSupportedCipherSuites();
+    }
+
+    @Override public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+        throws IOException {
+      return configure(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override public Socket createSocket() throws IOException {
+      return configure(delegate.createSocket());
+    }
+
+    @Override public Socket createSocket(String host, int port) throws IOException {
+      return configure(delegate.createSocket(host, port));
+    }
+
+    @Override public Socket createSocket(String host, int port, InetAddress localHost,
+        int localPort) throws IOException {
+      return configure(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override public Socket createSocket(InetAddress host, int port) throws IOException {
+      return configure(delegate.createSocket(host, port));
+    }
+
+    @Override public Socket createSocket(InetAddress address, int port,
+        InetAddress localAddress, int localPort) throws IOException {
+      return configure(delegate.createSocket(address, port, localAddress, localPort));
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves a single {@link Request} over the wire and hands back its {@link Response}.
+ * {@link HttpClient} delegates every {@link HttpClient.Call} to its transport.
+ *
+ * @author nk
+ */
+public interface Transport {
+
+  /** Prepares exchange for request, nothing touches the network until {@link Exchange#execute()} */
+  Exchange newExchange(Request request, int connectTimeout, int readTimeout);
+
+  /**
+   * Same as {@link #newExchange(Request, int, int)}, reporting progress to listener. Transports
+   * which do not report events simply ignore it.
+   */
+  default Exchange newExchange(Request request, int connectTimeout, int readTimeout,
+      EventListener listener) {
+    return newExchange(request, connectTimeout, readTimeout);
+  }
+
+  /**
+   * Executes requests and returns their responses in the same order. Transports which can
+   * pipeline requests override this, by default requests are executed one by one.
+   */
+  default List<Response> executeBatch(List<Request> requests, int connectTimeout,
+      int readTimeout) throws IOException {
+    List<Response> responses = new ArrayList<>(requests.size());
+    try {
+      for (Request request : requests) {
+        responses.add(newExchange(request, connectTimeout, readTimeout).execute());
+      }
+    } catch (IOException e) {
+      for (Response response : responses) {
+        response.close();
+      }
+      throw e;
+    }
+    return responses;
+  }
+
+  /** One request/response round trip */
+  interface Exchange {
+    Response execute() throws IOException;
+
+    /** Aborts exchange, closing whatever socket it currently holds */
+    void cancel();
+  }
+}
@@ -0,0 +1,183 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import static com.kn.http.HttpClient.closeQuietly;
+import static com.kn.http.HttpClient.decode;
+
+/**
+ * Transport backed by {@link HttpURLConnection}. Socket reuse is left to the JDK keep-alive
+ * cache, which only takes the socket back when response stream is closed and connection
+ * is not disconnected. Bodies other than in-memory ones are streamed in fixed length or
+ * chunked mode, so HttpURLConnection does not buffer them, but it does not follow redirects
+ * for them either.
+ *
+ * @author nk
+ */
+public final class UrlConnectionTransport implements Transport {
+  private final SSLSocketFactory sslSocketFactory;
+
+  /** HTTPS connections use {@link HttpsURLConnection#getDefaultSSLSocketFactory()} */
+  public UrlConnectionTransport() {
+    this.sslSocketFactory = null;
+  }
+
+  /** See {@link TlsConfig#socketFactory()} */
+  public UrlConnectionTransport(SSLSocketFactory sslSocketFactory) {
+    if (sslSocketFactory == null) throw new NullPointerException("SSLSocketFactory is null");
+    this.sslSocketFactory = sslSocketFactory;
+  }
+
+  @Override public Exchange newExchange(Request request, int connectTimeout, int readTimeout) {
+    return newExchange(request, connectTimeout, readTimeout, EventListener.NONE);
+  }
+
+  @Override public Exchange newExchange(final Request request, final int connectTimeout,
+      final int readTimeout, final EventListener listener) {
+    return new Exchange() {
+      private volatile HttpURLConnection connection;
+
+      @Override public Response execute() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) request.url.openConnection();
+        this.connection = connection;
+        if (sslSocketFactory != null && connection instanceof HttpsURLConnection) {
+          ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+        }
+        connection.setRequestMethod(request.method.methodName());
+        // output and streaming mode must be set before connect
+        RequestBody body = request.body;
+        connection.setDoOutput(body != null);
+        if (body != null && !(body instanceof RequestBody.BytesBody)) {
+          long length = body.contentLength();
+          if (length != -1) {
+            connection.setFixedLengthStreamingMode(length);
+          } else {
+            connection.setChunkedStreamingMode(BufferPool.ARRAY_SIZE);
+          }
+          // streamed body can not be sent again, so redirect is returned instead of thrown
+          // as HttpRetryException
+          connection.setInstanceFollowRedirects(false);
+        }
+        connection.setReadTimeout(readTimeout);
+        connection.setConnectTimeout(connectTimeout);
+        copyHeaders(connection, request.headers);
+
+        // DNS, TCP and TLS all happen inside connect, they can only be timed together
+        InetSocketAddress address = InetSocketAddress.createUnresolved(request.url.getHost(),
+            request.url.getPort() != -1 ? request.url.getPort() : request.url.getDefaultPort());
+        listener.connectStart(address);
+        try {
+          connection.connect();
+        } catch (IOException e) {
+          listener.connectFailed(address, e);
+          throw e;
+        }
+        listener.connectEnd(address);
+
+        Response response = null;
+
+        switch (request.method) {
+          case PUT:
+          case PATCH:
+          case POST:
+            response = doPost(connection, request, request.method.methodName(), listener);
+            break;
+          case GET:
+            response = doGet(connection, listener);
+            break;
+        }
+
+        return response;
+      }
+
+      @Override public void cancel() {
+        HttpURLConnection connection = this.connection;
+        // HttpURLConnection can not abort connect phase, disconnect is the best we can do
+        if (connection != null) connection.disconnect();
+      }
+    };
+  }
+
+  private Response doGet(HttpURLConnection connection, EventListener listener)
+      throws IOException {
+    InputStream inputStream = null;
+    try {
+      // request is written lazily by getResponseCode, so its end can not be observed
+      listener.requestStart();
+      listener.requestEnd();
+      int code = connection.getResponseCode();
+      listener.responseStart(code);
+      inputStream = inputStream(connection);
+      return new Response(code, Headers.of(connection.getHeaderFields()), inputStream);
+    } catch (IOException exception) {
+      closeQuietly(inputStream);
+      connection.disconnect();
+      throw exception;
+    }
+  }
+
+  private Response doPost(HttpURLConnection connection, Request request, String method,
+      EventListener listener) throws IOException {
+    OutputStream outputStream = null;
+    InputStream inputStream = null;
+
+    try {
+      listener.requestStart();
+      if (request.body != null) {
+        outputStream = connection.getOutputStream();
+        request.body.writeTo(outputStream);
+        outputStream.close();
+      }
+      listener.requestEnd();
+
+      int code = connection.getResponseCode();
+      listener.responseStart(code);
+      inputStream = inputStream(connection);
+      return new Response(code, Headers.of(connection.getHeaderFields()), inputStream);
+    } catch (IOException exception) {
+      closeQuietly(outputStream);
+      closeQuietly(inputStream);
+      connection.disconnect();
+      throw exception;
+    }
+  }
+
+  //TODO find out which stream is better to provide to user
+  private InputStream inputStream(HttpURLConnection connection) throws IOException {
+    InputStream stream;
+    if (connection.getResponseCode() < 400) {
+      stream = connection.getInputStream();
+    } else {
+      stream = connection.getErrorStream();
+      if (stream == null) {
+        stream = connection.getInputStream();
+      }
+    }
+
+    return decode(stream, connection.getHeaderField("Content-Encoding"));
+  }
+
+  private void copyHeaders(HttpURLConnection connection, Headers headers) {
+    for (int i = 0, size = headers.size(); i < size; i++) {
+      String name = headers.name(i);
+      boolean first = true;
+      for (int j = 0; j < i && first; j++) {
+        first = !name.equalsIgnoreCase(headers.name(j));
+      }
+      // first value replaces whatever connection has by default, the rest are added to it
+      if (first) {
+        connection.setRequestProperty(name, headers.value(i));
+      } else {
+        connection.addRequestProperty(name, headers.value(i));
+      }
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author nk
+ */
+public class BodyConsumerTest {
+  private static final int LARGE_BODY = 1024 * 1024 * 32;
+
+  private HttpServer server;
+  private NetworkDispatcher dispatcher;
+  private ExecutorService executor;
+  private String baseUrl;
+  private final AtomicLong written = new AtomicLong();
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/large", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, LARGE_BODY);
+        OutputStream body = exchange.getResponseBody();
+        byte[] block = new byte[1024 * 64];
+        try {
+          for (int i = 0; i < LARGE_BODY / block.length; i++) {
+            body.write(block);
+            written.addAndGet(block.length);
+          }
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+    HttpClient client = new HttpClient();
+    client.transport(new SocketTransport(new ConnectionPool(5, 1, TimeUnit.MINUTES)));
+    dispatcher = new NetworkDispatcher(client);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void slowConsumerThrottlesServer() throws Exception {
+    final AtomicLong received = new AtomicLong();
+    final AtomicInteger chunks = new AtomicInteger();
+    final BodyConsumer.Demand[] demand = new BodyConsumer.Demand[1];
+    final CountDownLatch firstChunk = new CountDownLatch(1);
+    final CountDownLatch complete = new CountDownLatch(1);
+
+    dispatcher.execute(new Request.Builder().url(baseUrl + "/large").build(),
+        NetworkDispatcher.Priority.NORMAL, new BodyConsumer() {
+          @Override public void onResponse(Response response, Demand d) {
+            demand[0] = d;
+            d.request(1);
+          }
+
+          @Override public void onChunk(ByteBuffer chunk) {
+            assertTrue(chunk.remaining() <= BufferPool.ARRAY_SIZE);
+            received.addAndGet(chunk.remaining());
+            chunks.incrementAndGet();
+            firstChunk.countDown();
+          }
+
+          @Override public void onComplete() {
+            complete.countDown();
+          }
+
+          @Override public void onFailure(IOException e) {
+          }
+        });
+
+    assertTrue(firstChunk.await(5, TimeUnit.SECONDS));
+    Thread.sleep(300);
+    assertEquals(1, chunks.get());
+    // server is stuck once socket buffers are full
+    assertTrue("written " + written.get(), written.get() < LARGE_BODY);
+
+    demand[0].request(Long.MAX_VALUE);
+    assertTrue(complete.await(10, TimeUnit.SECONDS));
+    assertEquals(LARGE_BODY, received.get());
+  }
+
+  @Test
+  public void demandFromChunkDeliversBodyInOrder() throws Exception {
+    byte[] body = new byte[BufferPool.ARRAY_SIZE * 3 + 5];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) i;
+    }
+    Response response = new Response(200, Headers.EMPTY, new ByteArrayInputStream(body));
+    final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    final CountDownLatch complete = new CountDownLatch(1);
+    response.subscribe(new BodyConsumer() {
+      private Demand demand;
+
+      @Override public void onResponse(Response response, Demand demand) {
+        this.demand = demand;
+        demand.request(1);
+      }
+
+      @Override public void onChunk(ByteBuffer chunk) {
+        copy.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        demand.request(1);
+      }
+
+      @Override public void onComplete() {
+        complete.countDown();
+      }
+
+      @Override public void onFailure(IOException e) {
+      }
+    }, executor);
+
+    assertTrue(complete.await(5, TimeUnit.SECONDS));
+    assertTrue(Arrays.equals(body, copy.toByteArray()));
+  }
+
+  @Test
+  public void cancelStopsDelivery() throws Exception {
+    Response response = new Response(200, Headers.EMPTY,
+        new ByteArrayInputStream(new byte[BufferPool.ARRAY_SIZE * 4]));
+    final AtomicInteger chunks = new AtomicInteger();
+    final AtomicInteger ends = new AtomicInteger();
+    response.subscribe(new BodyConsumer() {
+      private Demand demand;
+
+      @Override public void onResponse(Response response, Demand demand) {
+        this.demand = demand;
+        demand.request(10);
+      }
+
+      @Override public void onChunk(ByteBuffer chunk) {
+        chunks.incrementAndGet();
+        demand.cancel();
+      }
+
+      @Override public void onComplete() {
+        ends.incrementAndGet();
+      }
+
+      @Override public void onFailure(IOException e) {
+        ends.incrementAndGet();
+      }
+    }, executor);
+
+    executor.submit(new Runnable() {
+      @Override public void run() {
+      }
+    }).get(5, TimeUnit.SECONDS);
+    assertEquals(1, chunks.get());
+    assertEquals(0, ends.get());
+  }
+
+  @Test
+  public void bytesDoesNotTrustContentLength() {
+    Response response = new Response(200, Headers.of("Content-Length", "2000000000"),
+        new ByteArrayInputStream(new byte[] {1, 2, 3}));
+    assertEquals(3, response.bytes().length);
+  }
+}
@@ -0,0 +1,51 @@
+package com.kn.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author nk
+ */
+public class BufferPoolTest {
+
+  @Test
+  public void recyclesArrays() {
+    BufferPool pool = new BufferPool(1);
+    byte[] first = pool.takeArray();
+    pool.releaseArray(first);
+
+    assertSame(first, pool.takeArray());
+    assertEquals(1, pool.hitCount());
+    assertEquals(1, pool.missCount());
+    assertEquals(0, pool.pooledBytes());
+  }
+
+  @Test
+  public void ignoresForeignArrays() {
+    BufferPool pool = new BufferPool(1);
+    pool.releaseArray(new byte[10]);
+    assertEquals(0, pool.pooledBytes());
+  }
+
+  @Test
+  public void gzipStreamReturnsBufferOnClose() throws Exception {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+    gzip.write("pooled gzip".getBytes("UTF-8"));
+    gzip.close();
+
+    BufferPool pool = new BufferPool(1);
+    InputStream input = pool.gzip(new ByteArrayInputStream(compressed.toByteArray()));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    HttpClient.copy(input, output);
+
+    assertEquals("pooled gzip", output.toString("UTF-8"));
+    assertEquals(BufferPool.ARRAY_SIZE, pool.pooledBytes());
+  }
+}
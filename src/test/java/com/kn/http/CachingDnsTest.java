@@ -0,0 +1,111 @@
+package com.kn.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author nk
+ */
+public class CachingDnsTest {
+  private final AtomicInteger lookups = new AtomicInteger();
+
+  @Test
+  public void servesCachedAddressesUntilTtl() throws Exception {
+    CachingDns dns = new CachingDns(counting(null), 1, TimeUnit.MINUTES);
+    List<InetAddress> first = dns.lookup("host.test");
+    assertEquals(first, dns.lookup("HOST.test"));
+    assertEquals(1, lookups.get());
+
+    dns.clear();
+    dns.lookup("host.test");
+    assertEquals(2, lookups.get());
+  }
+
+  @Test
+  public void staleEntryIsRefreshedInBackground() throws Exception {
+    CachingDns dns = new CachingDns(counting(null), 50, TimeUnit.MILLISECONDS);
+    InetAddress first = dns.lookup("host.test").get(0);
+    Thread.sleep(60);
+
+    assertEquals(first, dns.lookup("host.test").get(0));
+    for (int i = 0; i < 100 && lookups.get() < 2; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, lookups.get());
+    assertEquals(2, dns.lookup("host.test").get(0).getAddress()[3]);
+  }
+
+  @Test
+  public void concurrentLookupsShareOneResolution() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CachingDns dns = new CachingDns(counting(release), 1, TimeUnit.MINUTES);
+    final List<InetAddress> results = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override public void run() {
+          try {
+            InetAddress address = dns.lookup("host.test").get(0);
+            synchronized (results) {
+              results.add(address);
+            }
+          } catch (UnknownHostException ignored) {
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    Thread.sleep(50);
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+
+    assertEquals(8, results.size());
+    assertEquals(1, lookups.get());
+  }
+
+  @Test
+  public void failuresAreNotCached() throws Exception {
+    CachingDns dns = new CachingDns(new Dns() {
+      @Override public List<InetAddress> lookup(String host) throws UnknownHostException {
+        if (lookups.incrementAndGet() == 1) throw new UnknownHostException(host);
+        return Arrays.asList(InetAddress.getByAddress(host, new byte[] {127, 0, 0, 1}));
+      }
+    }, 1, TimeUnit.MINUTES);
+    try {
+      dns.lookup("host.test");
+      fail("Expected UnknownHostException");
+    } catch (UnknownHostException expected) {
+    }
+    assertTrue(dns.lookup("host.test").get(0).isLoopbackAddress());
+  }
+
+  /** Every lookup returns 127.0.0.n, n counting lookups */
+  private Dns counting(final CountDownLatch release) {
+    return new Dns() {
+      @Override public List<InetAddress> lookup(String host) throws UnknownHostException {
+        if (release != null) {
+          try {
+            release.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException ignored) {
+          }
+        }
+        byte n = (byte) lookups.incrementAndGet();
+        return Arrays.asList(InetAddress.getByAddress(host, new byte[] {127, 0, 0, n}));
+      }
+    };
+  }
+}
@@ -0,0 +1,67 @@
+package com.kn.http;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author nk
+ */
+public class ConcurrencyLimitTest {
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @Test
+  public void aimdGrowsOnlyWhenBusy() {
+    ConcurrencyLimit limit = ConcurrencyLimit.aimd(4, 10, 1000).create("host");
+    limit.onSample(FAST, 1, false);
+    assertEquals(4, limit.limit());
+
+    limit.onSample(FAST, 2, false);
+    limit.onSample(FAST, 5, false);
+    assertEquals(6, limit.limit());
+
+    for (int i = 0; i < 10; i++) {
+      limit.onSample(FAST, 10, false);
+    }
+    assertEquals(10, limit.limit());
+  }
+
+  @Test
+  public void aimdBacksOffOnDropsAndTimeouts() {
+    ConcurrencyLimit limit = ConcurrencyLimit.aimd(10, 10, 50).create("host");
+    limit.onSample(FAST, 10, true);
+    assertEquals(9, limit.limit());
+    limit.onSample(SLOW, 9, false);
+    assertEquals(8, limit.limit());
+
+    for (int i = 0; i < 100; i++) {
+      limit.onSample(FAST, 1, true);
+    }
+    assertEquals(1, limit.limit());
+  }
+
+  @Test
+  public void gradientFollowsLatency() {
+    ConcurrencyLimit limit = ConcurrencyLimit.gradient(4, 100).create("host");
+    for (int i = 0; i < 200; i++) {
+      limit.onSample(FAST, limit.limit(), false);
+    }
+    int grown = limit.limit();
+    assertTrue("Limit did not grow: " + grown, grown > 20);
+
+    for (int i = 0; i < 20; i++) {
+      limit.onSample(FAST * 10, limit.limit(), false);
+    }
+    assertTrue("Limit did not shrink: " + limit.limit(), limit.limit() < grown / 2);
+  }
+
+  @Test
+  public void fixedNeverChanges() {
+    ConcurrencyLimit limit = ConcurrencyLimit.fixed(3).create("host");
+    limit.onSample(SLOW, 3, true);
+    assertEquals(3, limit.limit());
+  }
+}
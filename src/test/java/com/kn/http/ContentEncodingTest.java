@@ -0,0 +1,121 @@
+package com.kn.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author nk
+ */
+public class ContentEncodingTest {
+  private final BufferPool pool = new BufferPool(1);
+
+  @Test
+  public void decodesConcatenatedGzipMembers() throws Exception {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(gzip("first "));
+    body.write(gzip("second"));
+
+    assertEquals("first second", decode(body.toByteArray(), "gzip"));
+  }
+
+  @Test
+  public void decodesZlibAndRawDeflate() throws Exception {
+    assertEquals("zlib", decode(deflate("zlib", false), "deflate"));
+    assertEquals("raw", decode(deflate("raw", true), "Deflate"));
+  }
+
+  @Test
+  public void decodesStackedCodingsInReverse() throws Exception {
+    byte[] body = gzip(new String(deflate("stacked", false), "ISO-8859-1"));
+    assertEquals("stacked", decode(body, "deflate, gzip"));
+  }
+
+  @Test
+  public void unknownCodingIsLeftAsIs() throws Exception {
+    InputStream body = new ByteArrayInputStream(new byte[] {1, 2, 3});
+    assertSame(body, ContentEncoding.decode(body, "br", pool));
+    assertSame(body, ContentEncoding.decode(body, "gzip, br", pool));
+  }
+
+  @Test
+  public void emptyBodyReadsAsEmpty() throws Exception {
+    assertEquals("", decode(new byte[0], "gzip"));
+  }
+
+  @Test
+  public void corruptTrailerFails() throws Exception {
+    byte[] body = gzip("checked");
+    body[body.length - 5] ^= 1;
+    try {
+      decode(body, "gzip");
+      fail("Expected ZipException, crc does not match");
+    } catch (ZipException expected) {
+    }
+  }
+
+  @Test
+  public void inflaterIsRecycled() throws Exception {
+    decode(gzip("one"), "gzip");
+    long misses = pool.missCount();
+    decode(gzip("two"), "gzip");
+    assertEquals(misses, pool.missCount());
+  }
+
+  @Test
+  public void gzipBodyIsReadableByGunzip() throws Exception {
+    RequestBody body = RequestBody.gzip(RequestBody.of("compressed request"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    body.writeTo(out);
+    body.writeTo(out);
+
+    InputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+    ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+    HttpClient.copy(gunzip, decoded);
+    assertEquals("compressed requestcompressed request", decoded.toString("UTF-8"));
+    assertEquals(-1, body.contentLength());
+  }
+
+  private String decode(byte[] body, String contentEncoding) throws IOException {
+    InputStream in = ContentEncoding.decode(new ByteArrayInputStream(body), contentEncoding, pool);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte[] buffer = new byte[3];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toString("ISO-8859-1");
+  }
+
+  private static byte[] gzip(String text) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(text.getBytes("ISO-8859-1"));
+    gzip.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] deflate(String text, boolean raw) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeflaterOutputStream deflate =
+        new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+    deflate.write(text.getBytes("ISO-8859-1"));
+    deflate.close();
+    return out.toByteArray();
+  }
+}
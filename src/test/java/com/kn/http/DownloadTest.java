@@ -0,0 +1,208 @@
+package com.kn.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author nk
+ */
+public class DownloadTest {
+  private static final int SEGMENT = 1024 * 64;
+
+  private HttpServer server;
+  private ExecutorService serverExecutor;
+  private ConnectionPool pool;
+  private NetworkDispatcher dispatcher;
+  private String url;
+  private Path directory;
+  private Path file;
+
+  private final byte[] body = new byte[SEGMENT * 10 + 123];
+  private final List<Long> rangeStarts = new CopyOnWriteArrayList<>();
+  private volatile boolean rangesSupported = true;
+  private volatile long failFrom = Long.MAX_VALUE;
+  private final AtomicBoolean breakOnce = new AtomicBoolean();
+
+  @Before
+  public void setUp() throws Exception {
+    new Random(42).nextBytes(body);
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/file", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    serverExecutor = Executors.newCachedThreadPool();
+    server.setExecutor(serverExecutor);
+    server.start();
+    url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+
+    pool = new ConnectionPool(8, 1, TimeUnit.MINUTES);
+    HttpClient client = new HttpClient();
+    client.transport(new SocketTransport(pool));
+    // broken response may leave connection open, short of its length
+    client.readTimeout(1000);
+    dispatcher = new NetworkDispatcher(client, 8, 4);
+    directory = Files.createTempDirectory("download");
+    file = directory.resolve("file.bin");
+  }
+
+  @After
+  public void tearDown() {
+    pool.evictAll();
+    server.stop(0);
+    serverExecutor.shutdownNow();
+    File[] files = directory.toFile().listFiles();
+    if (files != null) {
+      for (File each : files) {
+        each.delete();
+      }
+    }
+    directory.toFile().delete();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    exchange.getResponseHeaders().add("ETag", "\"v1\"");
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+    if (!rangesSupported || range == null || (ifRange != null && !ifRange.equals("\"v1\""))) {
+      write(exchange, 200, 0, body.length, false);
+      return;
+    }
+
+    int dash = range.indexOf('-');
+    long first = Long.parseLong(range.substring("bytes=".length(), dash));
+    long last = Math.min(Long.parseLong(range.substring(dash + 1)), body.length - 1);
+    rangeStarts.add(first);
+    if (first >= failFrom) {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+    exchange.getResponseHeaders().add("Content-Range",
+        "bytes " + first + "-" + last + "/" + body.length);
+    boolean broken = first > 0 && breakOnce.compareAndSet(true, false);
+    write(exchange, 206, (int) first, (int) (last + 1), broken);
+  }
+
+  private void write(HttpExchange exchange, int code, int from, int to, boolean broken)
+      throws IOException {
+    exchange.sendResponseHeaders(code, to - from);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body, from, broken ? (to - from) / 2 : to - from);
+      out.close();
+    } catch (IOException ignored) {
+      // broken response closes connection short of its length
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private Download.Builder download() {
+    return new Download.Builder()
+        .dispatcher(dispatcher)
+        .url(url)
+        .file(file)
+        .segmentSize(SEGMENT)
+        .retryPolicy(new RetryPolicy.Builder()
+            .backoff(1, 10, TimeUnit.MILLISECONDS)
+            .budget(new RetryBudget(1, 100))
+            .build());
+  }
+
+  private Path progressFile() {
+    return directory.resolve("file.bin.progress");
+  }
+
+  @Test
+  public void downloadsSegmentsInParallel() throws Exception {
+    Download download = download().connections(4).build();
+    assertEquals(body.length, (long) download.start().get(10, TimeUnit.SECONDS));
+
+    assertArrayEquals(body, Files.readAllBytes(file));
+    assertEquals(body.length, download.length());
+    assertEquals(body.length, download.downloadedBytes());
+    assertFalse(Files.exists(progressFile()));
+    // probe and one request per segment
+    assertEquals(1 + 11, rangeStarts.size());
+  }
+
+  @Test
+  public void brokenRangeResumesWhereItStopped() throws Exception {
+    breakOnce.set(true);
+    Download download = download().connections(1).build();
+    download.start().get(10, TimeUnit.SECONDS);
+
+    assertArrayEquals(body, Files.readAllBytes(file));
+    // retry asks for the second half of broken segment only
+    assertEquals(Long.valueOf(SEGMENT + SEGMENT / 2), rangeStarts.get(3));
+  }
+
+  @Test
+  public void failedDownloadResumesFromProgressFile() throws Exception {
+    failFrom = SEGMENT * 4;
+    try {
+      download().connections(1).build().start().get(10, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof IOException);
+    }
+    assertTrue(Files.exists(progressFile()));
+
+    failFrom = Long.MAX_VALUE;
+    rangeStarts.clear();
+    Download resumed = download().connections(1).build();
+    resumed.start().get(10, TimeUnit.SECONDS);
+
+    assertArrayEquals(body, Files.readAllBytes(file));
+    assertEquals(Long.valueOf(0), rangeStarts.get(0));
+    for (long start : rangeStarts.subList(1, rangeStarts.size())) {
+      assertTrue("refetched " + start, start >= SEGMENT * 4);
+    }
+    assertFalse(Files.exists(progressFile()));
+  }
+
+  @Test
+  public void serverWithoutRangesGetsSingleStream() throws Exception {
+    rangesSupported = false;
+    Files.write(file, new byte[body.length * 2]);
+    assertEquals(body.length, (long) download().build().start().get(10, TimeUnit.SECONDS));
+    assertArrayEquals(body, Files.readAllBytes(file));
+  }
+
+  @Test
+  public void parsesContentRange() {
+    assertTrue(Arrays.equals(new long[] {0, 0, 1234},
+        Download.parseContentRange("bytes 0-0/1234")));
+    assertTrue(Arrays.equals(new long[] {-1, -1, 0}, Download.parseContentRange("bytes */0")));
+    assertTrue(Arrays.equals(new long[] {5, 9, -1}, Download.parseContentRange("bytes 5-9/*")));
+    assertEquals(null, Download.parseContentRange("items 0-1/2"));
+    assertEquals(null, Download.parseContentRange("bytes 0-x/2"));
+  }
+}
@@ -0,0 +1,118 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author nk
+ */
+public class HeadersTest {
+
+  @Test
+  public void lookupIgnoresCase() {
+    Headers headers = Headers.of("Content-Length", "42", "x-trace", "a");
+    assertEquals("42", headers.get("content-length"));
+    assertEquals("a", headers.get("X-Trace"));
+    assertNull(headers.get("Content-Type"));
+  }
+
+  @Test
+  public void keepsEveryValueInOrder() {
+    Headers headers = new Headers.Builder()
+        .add("Set-Cookie", "a=1")
+        .add("Vary", "Accept")
+        .add("set-cookie", "b=2")
+        .build();
+    assertEquals(3, headers.size());
+    assertEquals("a=1", headers.get("Set-Cookie"));
+    assertEquals(Arrays.asList("a=1", "b=2"), headers.values("SET-COOKIE"));
+    assertEquals(Collections.<String>emptyList(), headers.values("Age"));
+    assertEquals(2, headers.names().size());
+  }
+
+  @Test
+  public void setReplacesAllValues() {
+    Headers headers = Headers.of("Accept", "a", "accept", "b").newBuilder()
+        .set("ACCEPT", "c")
+        .build();
+    assertEquals(1, headers.size());
+    assertEquals("c", headers.get("Accept"));
+  }
+
+  @Test
+  public void commonNamesAreInterned() {
+    String name = new String("Content-Type");
+    assertSame("Content-Type", Headers.of(name, "text/plain").name(0));
+  }
+
+  @Test
+  public void builderDoesNotChangeBuiltHeaders() {
+    Headers.Builder builder = new Headers.Builder().add("A", "1");
+    Headers built = builder.build();
+    builder.add("B", "2").removeAll("A");
+    assertEquals(Headers.of("A", "1"), built);
+  }
+
+  @Test
+  public void rejectsLineBreaksAndNul() {
+    String[][] fields = {
+        {"X-Injected", "a\r\nHost: evil"},
+        {"X-Injected", "a\nb"},
+        {"X-Injected", "a\u0000b"},
+        {"X-Injected\r\nHost", "a"}};
+    for (String[] field : fields) {
+      try {
+        new Headers.Builder().add(field[0], field[1]);
+        fail(field[0] + ": " + field[1]);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+    try {
+      new Request.Builder().url("http://example.com").header("X-Injected", "a\r\nb");
+      fail("Request accepted header with line break");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void copiesMultimapWithoutStatusLine() {
+    Map<String, List<String>> multimap = new HashMap<>();
+    multimap.put(null, Collections.singletonList("HTTP/1.1 200 OK"));
+    multimap.put("Content-Length", Collections.singletonList("7"));
+    Headers headers = Headers.of(multimap);
+    assertEquals(1, headers.size());
+    assertEquals(Collections.singletonList("7"), headers.toMultimap().get("content-length"));
+  }
+
+  @Test
+  public void requestAndResponseLookupsIgnoreCase() {
+    Request request = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url("http://example.com")
+        .header("Accept", "a")
+        .addHeader("accept", "b")
+        .header("X-Removed", "c")
+        .header("x-removed", null)
+        .build();
+    assertEquals(Arrays.asList("a", "b"), request.headers().values("ACCEPT"));
+    assertNull(request.header("X-Removed"));
+
+    Response response = new Response(200, Headers.of("Content-Length", "3"), null);
+    assertEquals("3", response.header("content-length"));
+    assertEquals(3, response.contentLength());
+    assertTrue(response.headers("content-type").isEmpty());
+  }
+}
@@ -0,0 +1,49 @@
+package com.kn.http;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author nk
+ */
+public class HpackTest {
+
+  /** RFC 7541 C.4, requests with Huffman coding sharing one dynamic table */
+  @Test
+  public void decodesRfcExamples() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder();
+
+    byte[] first = hex("828684418cf1e3c2e5f23a6ba0ab90f4ff");
+    assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+        ":authority", "www.example.com"), decoder.decode(first, 0, first.length));
+
+    byte[] second = hex("828684be5886a8eb10649cbf");
+    assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+        ":authority", "www.example.com", "cache-control", "no-cache"),
+        decoder.decode(second, 0, second.length));
+  }
+
+  @Test
+  public void decodesWhatEncoderWrites() throws Exception {
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    Hpack.encode(":status", "200", block);
+    Hpack.encode("content-type", "text/plain", block);
+    Hpack.encode("x-custom", "value", block);
+
+    List<String> fields = new Hpack.Decoder().decode(block.toByteArray(), 0, block.size());
+    assertEquals(Arrays.asList(":status", "200", "content-type", "text/plain", "x-custom",
+        "value"), fields);
+  }
+
+  private static byte[] hex(String string) {
+    byte[] bytes = new byte[string.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(string.substring(i * 2, i * 2 + 2), 16);
+    }
+    return bytes;
+  }
+}
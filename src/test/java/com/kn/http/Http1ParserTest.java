@@ -0,0 +1,199 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import com.kn.http.HttpClient.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author nk
+ */
+public class Http1ParserTest {
+  private static final String RESPONSE = "HTTP/1.1 200 OK\r\n"
+      + "Content-Type: text/plain\r\n"
+      + "Location:  http://example.com:8080/a?b=c:d  \r\n"
+      + "x-custom: one\r\n"
+      + "X-Custom: two\r\n"
+      + "\r\n"
+      + "body";
+
+  @Test
+  public void parsesResponseSplitAtEveryByte() throws Exception {
+    byte[] bytes = RESPONSE.getBytes(StandardCharsets.ISO_8859_1);
+    Http1Parser parser = new Http1Parser(Http1Parser.Mode.RESPONSE);
+    for (int split = 1; split < bytes.length - 4; split++) {
+      parser.reset();
+      ByteBuffer first = ByteBuffer.wrap(bytes, 0, split);
+      assertFalse(parser.parse(first));
+      assertFalse(first.hasRemaining());
+      ByteBuffer second = ByteBuffer.wrap(bytes, split, bytes.length - split);
+      assertTrue(parser.parse(second));
+      assertEquals("body", new String(bytes, second.position(), second.remaining(), "US-ASCII"));
+      assertEquals(200, parser.code());
+      assertEquals("OK", parser.reason());
+      assertEquals("HTTP/1.1", parser.version());
+      assertEquals("http://example.com:8080/a?b=c:d", parser.headers().get("location"));
+      assertEquals(Arrays.asList("one", "two"), parser.headers().values("X-CUSTOM"));
+    }
+  }
+
+  @Test
+  public void foldedValueIsJoined() throws Exception {
+    Headers headers = parse(Http1Parser.Mode.RESPONSE,
+        "HTTP/1.0 204\nWarning: first\n  second\n\n").headers();
+    assertEquals(Collections.singletonList("first second"), headers.values("Warning"));
+  }
+
+  @Test
+  public void malformedHeadFails() throws Exception {
+    String[] heads = {
+        "HTTP/1.1 200 OK\r\nName : value\r\n\r\n",
+        "HTTP/1.1 200 OK\r\n: value\r\n\r\n",
+        "HTTP/1.1 2x0 OK\r\n\r\n",
+        "HTTP/2 200\r\n\r\n",
+        "HTTP/1.1 200 OK\r\n folded\r\n\r\n",
+        "HTTP/1.1 200 OK\r\nName: a\rb\r\n\r\n",
+        "HTTP/1.1 200 OK\r\nName: a\u0000b\r\n\r\n"};
+    for (String head : heads) {
+      try {
+        parse(Http1Parser.Mode.RESPONSE, head);
+        fail(head);
+      } catch (ProtocolException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void parsesRequestLineWithEmptyTarget() throws Exception {
+    Http1Parser parser = parse(Http1Parser.Mode.REQUEST, "\r\nGET  HTTP/1.1\r\nHost: a\r\n\r\n");
+    assertEquals("GET", parser.method());
+    assertEquals("", parser.target());
+    assertEquals("HTTP/1.1", parser.version());
+  }
+
+  @Test
+  public void sourceLeavesBodyBuffered() throws Exception {
+    InputStream socket = new ByteArrayInputStream(RESPONSE.getBytes(StandardCharsets.ISO_8859_1));
+    // buffer smaller than head, so it is refilled several times
+    Http1Parser.Source source = new Http1Parser.Source(socket, 8);
+    Http1Parser parser = new Http1Parser(Http1Parser.Mode.RESPONSE);
+    assertTrue(source.readHead(parser));
+    assertEquals("text/plain", parser.headers().get("content-type"));
+
+    byte[] body = new byte[4];
+    assertEquals(4, source.read(body));
+    assertEquals("body", new String(body, "US-ASCII"));
+
+    parser.reset();
+    assertFalse(source.readHead(parser));
+  }
+
+  @Test(expected = EOFException.class)
+  public void sourceFailsOnTruncatedHead() throws Exception {
+    InputStream socket = new ByteArrayInputStream("HTTP/1.1 200 OK\r\nA: b".getBytes("US-ASCII"));
+    new Http1Parser.Source(socket, 8).readHead(new Http1Parser(Http1Parser.Mode.RESPONSE));
+  }
+
+  @Test
+  public void writesRequestHead() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Http1Codec.writeRequest(out, new java.net.URL("http://example.com:8080/a?b=c"),
+        HttpMethod.POST, Headers.of("Accept", "a/b; q=1"), RequestBody.of("hi"));
+    assertEquals("POST /a?b=c HTTP/1.1\r\n"
+        + "Accept: a/b; q=1\r\n"
+        + "Host: example.com:8080\r\n"
+        + "Content-Length: 2\r\n"
+        + "\r\n"
+        + "hi", out.toString("ISO-8859-1"));
+  }
+
+  @Test
+  public void requestSurvivesToStringAndBack() {
+    Map<String, String> params = new LinkedHashMap<>();
+    params.put("page", "2");
+    Request request = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url("https://api.example.com/v1/items")
+        .params(params)
+        .header("Accept", "application/json")
+        .header("Link", "<https://example.com/next>; rel=next")
+        .body("{\"a\": 1}\n{\"b\": 2}")
+        .build();
+
+    Request parsed = Request.fromString(request.toString());
+    assertEquals(HttpMethod.POST, parsed.method);
+    assertEquals("https://api.example.com/v1/items?page=2", parsed.url());
+    assertEquals("<https://example.com/next>; rel=next", parsed.header("link"));
+    assertEquals("application/json", parsed.header("Accept"));
+    assertEquals(request.toString(), parsed.toString());
+  }
+
+  @Test
+  public void parsesCapturedRequest() {
+    Request request = Request.fromString("PUT /x HTTP/1.1\r\n"
+        + "host: example.com\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "\r\n"
+        + "line one\r\nline two");
+    assertEquals("http://example.com/x", request.url());
+    assertEquals(HttpMethod.PUT, request.method);
+    assertNull(request.header("Host"));
+    assertEquals("line one\r\nline two",
+        new String(((RequestBody.BytesBody) request.body).bytes, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void roundTripsNonLatinText() {
+    Request request = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url("http://example.com/\u043f\u0443\u0442\u044c")
+        .header("X-Title", "caf\u00e9 \u65e5\u672c \ud83d\ude00")
+        .body("\u0442\u0435\u043b\u043e")
+        .build();
+
+    Request parsed = Request.fromString(request.toString());
+    assertEquals("http://example.com/\u043f\u0443\u0442\u044c", parsed.url());
+    assertEquals("caf\u00e9 \u65e5\u672c \ud83d\ude00", parsed.header("X-Title"));
+    assertEquals("\u0442\u0435\u043b\u043e",
+        new String(((RequestBody.BytesBody) parsed.body).bytes, StandardCharsets.UTF_8));
+    assertEquals(request.toString(), parsed.toString());
+  }
+
+  @Test
+  public void findsCharsetParameter() {
+    assertEquals("utf-8", charset("text/plain;charset=utf-8"));
+    assertEquals("UTF-8", charset("text/plain; Charset = \"UTF-8\" ; format=flowed"));
+    assertEquals("koi8-r", charset("text/plain; format=a=b; charset=koi8-r"));
+    assertNull(charset("text/plain;"));
+    assertNull(charset("text/plain; charset="));
+    assertNull(charset("text/plain; charsets=utf-8"));
+    assertNull(charset("text/plain"));
+  }
+
+  private static Http1Parser parse(Http1Parser.Mode mode, String head) throws Exception {
+    Http1Parser parser = new Http1Parser(mode);
+    assertTrue(parser.parse(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1))));
+    return parser;
+  }
+
+  private static String charset(String contentType) {
+    return new Response(200, Headers.of("Content-Type", contentType), null).charset();
+  }
+}
@@ -0,0 +1,251 @@
+package com.kn.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.kn.http.HttpClient.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs against minimal in-process h2c server.
+ *
+ * @author nk
+ */
+public class Http2TransportTest {
+  private static final int PARALLEL = 4;
+
+  private ServerSocket serverSocket;
+  private final AtomicInteger accepted = new AtomicInteger();
+  private HttpClient client;
+  private Http2Transport transport;
+  private String baseUrl;
+
+  @Before
+  public void setUp() throws Exception {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread acceptor = new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          while (true) {
+            final Socket socket = serverSocket.accept();
+            accepted.incrementAndGet();
+            Thread thread = new Thread(new Runnable() {
+              @Override public void run() {
+                new StubConnection(socket).serve();
+              }
+            });
+            thread.setDaemon(true);
+            thread.start();
+          }
+        } catch (IOException closed) {
+        }
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+    baseUrl = "http://127.0.0.1:" + serverSocket.getLocalPort();
+
+    transport = new Http2Transport();
+    client = new HttpClient();
+    client.transport(transport);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    transport.shutdown();
+    serverSocket.close();
+  }
+
+  @Test
+  public void multiplexesConcurrentRequestsOverOneConnection() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(PARALLEL);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < PARALLEL; i++) {
+        final String path = "/together?i=" + i;
+        results.add(executor.submit(new Callable<String>() {
+          @Override public String call() throws Exception {
+            return get(path).string();
+          }
+        }));
+      }
+      // server answers only when all requests are in flight at the same time
+      for (int i = 0; i < PARALLEL; i++) {
+        assertEquals("GET /together?i=" + i, results.get(i).get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, accepted.get());
+    assertEquals(1, transport.connectionCount());
+  }
+
+  @Test
+  public void sendsBody() throws Exception {
+    Request request = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url(baseUrl + "/echo")
+        .body("{\"id\":1}")
+        .build();
+
+    Response response = client.call(request).execute();
+    assertEquals(200, response.code());
+    assertEquals("text/plain", response.header("Content-Type"));
+    assertEquals("POST /echo {\"id\":1}", response.string());
+  }
+
+  @Test
+  public void paddedHeadersWithoutPadLengthFailStream() throws Exception {
+    try {
+      get("/padded");
+      fail("Expected ProtocolException, server sent malformed HEADERS");
+    } catch (ProtocolException expected) {
+    }
+    assertEquals("GET /echo", get("/echo").string());
+  }
+
+  @Test
+  public void truncatedFrameFailsConnectionAtOnce() throws Exception {
+    client.readTimeout(10000);
+    long start = System.nanoTime();
+    try {
+      get("/truncated");
+      fail("Expected ProtocolException, server sent WINDOW_UPDATE without increment");
+    } catch (ProtocolException expected) {
+    }
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+    // failed connection is not handed out again
+    assertEquals("GET /echo", get("/echo").string());
+    assertEquals(2, accepted.get());
+  }
+
+  private Response get(String path) throws IOException {
+    Request request = new Request.Builder()
+        .method(HttpMethod.GET)
+        .url(baseUrl + path)
+        .build();
+    return client.call(request).execute();
+  }
+
+  /** Serves single connection, answers every request with its method, path and body */
+  private static final class StubConnection {
+    private final Socket socket;
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    private final Map<Integer, String> requests = new HashMap<>();
+    private final Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+    private final List<Integer> waiting = new ArrayList<>();
+
+    StubConnection(Socket socket) {
+      this.socket = socket;
+    }
+
+    void serve() {
+      try {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        in.readFully(new byte[Http2Connection.PREFACE.length]);
+        writeFrame(out, Http2Connection.TYPE_SETTINGS, 0, 0, new byte[0]);
+
+        while (true) {
+          int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+          int type = in.readUnsignedByte();
+          int flags = in.readUnsignedByte();
+          int streamId = in.readInt() & 0x7fffffff;
+          byte[] payload = new byte[length];
+          in.readFully(payload);
+          boolean endStream = (flags & Http2Connection.FLAG_END_STREAM) != 0;
+
+          if (type == Http2Connection.TYPE_SETTINGS
+              && (flags & Http2Connection.FLAG_ACK) == 0) {
+            writeFrame(out, Http2Connection.TYPE_SETTINGS, Http2Connection.FLAG_ACK, 0,
+                new byte[0]);
+          } else if (type == Http2Connection.TYPE_HEADERS) {
+            List<String> fields = decoder.decode(payload, 0, payload.length);
+            requests.put(streamId, Http2Stream.field(fields, ":method") + " "
+                + Http2Stream.field(fields, ":path"));
+            bodies.put(streamId, new ByteArrayOutputStream());
+            if (endStream) onRequest(out, streamId);
+          } else if (type == Http2Connection.TYPE_DATA) {
+            bodies.get(streamId).write(payload, 0, payload.length);
+            if (endStream) onRequest(out, streamId);
+          }
+        }
+      } catch (IOException closed) {
+      } finally {
+        HttpClient.closeQuietly(socket);
+      }
+    }
+
+    private void onRequest(OutputStream out, int streamId) throws IOException {
+      if (requests.get(streamId).startsWith("GET /padded")) {
+        // padded frame without room for pad length
+        writeFrame(out, Http2Connection.TYPE_HEADERS,
+            Http2Connection.FLAG_PADDED | Http2Connection.FLAG_END_HEADERS, streamId,
+            new byte[0]);
+        return;
+      }
+      if (requests.get(streamId).startsWith("GET /truncated")) {
+        writeFrame(out, Http2Connection.TYPE_WINDOW_UPDATE, 0, streamId, new byte[0]);
+        return;
+      }
+      if (!requests.get(streamId).startsWith("GET /together")) {
+        respond(out, streamId);
+        return;
+      }
+      waiting.add(streamId);
+      if (waiting.size() < PARALLEL) return;
+      for (int id : waiting) {
+        respond(out, id);
+      }
+      waiting.clear();
+    }
+
+    private void respond(OutputStream out, int streamId) throws IOException {
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      Hpack.encode(":status", "200", block);
+      Hpack.encode("content-type", "text/plain", block);
+      writeFrame(out, Http2Connection.TYPE_HEADERS, Http2Connection.FLAG_END_HEADERS, streamId,
+          block.toByteArray());
+
+      String body = requests.get(streamId);
+      if (bodies.get(streamId).size() > 0) body += " " + bodies.get(streamId).toString("UTF-8");
+      writeFrame(out, Http2Connection.TYPE_DATA, Http2Connection.FLAG_END_STREAM, streamId,
+          body.getBytes("UTF-8"));
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int streamId,
+        byte[] payload) throws IOException {
+      ByteArrayOutputStream frame = new ByteArrayOutputStream(9 + payload.length);
+      frame.write(payload.length >>> 16);
+      frame.write(payload.length >>> 8);
+      frame.write(payload.length);
+      frame.write(type);
+      frame.write(flags);
+      frame.write(Http2Connection.intBytes(streamId), 0, 4);
+      frame.write(payload, 0, payload.length);
+      out.write(frame.toByteArray());
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package com.kn.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.kn.http.HttpClient.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author nk
+ */
+public class HttpCacheTest {
+  private HttpServer server;
+  private final AtomicInteger served = new AtomicInteger();
+  private ConnectionPool pool;
+  private HttpClient client;
+  private String baseUrl;
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/max-age", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+        SocketTransportTest.respond(exchange, 200, "fresh " + served.incrementAndGet());
+      }
+    });
+    server.createContext("/etag", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        served.incrementAndGet();
+        exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().add("ETag", "\"v1\"");
+        if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          exchange.sendResponseHeaders(304, -1);
+          exchange.close();
+        } else {
+          SocketTransportTest.respond(exchange, 200, "tagged");
+        }
+      }
+    });
+    server.createContext("/no-store", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Cache-Control", "no-store");
+        SocketTransportTest.respond(exchange, 200, "private " + served.incrementAndGet());
+      }
+    });
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+    pool = new ConnectionPool(5, 1, TimeUnit.MINUTES);
+    client = new HttpClient();
+    client.transport(new SocketTransport(pool));
+    directory = Files.createTempDirectory("http-cache").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    pool.evictAll();
+    server.stop(0);
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void freshResponseIsServedFromMemory() throws Exception {
+    HttpCache cache = new HttpCache(1024 * 1024);
+    client.cache(cache);
+
+    assertEquals("fresh 1", get("/max-age").string());
+    assertEquals("fresh 1", get("/max-age").string());
+    assertEquals(1, served.get());
+    assertEquals(1, cache.hitCount());
+    assertEquals(1, cache.missCount());
+  }
+
+  @Test
+  public void staleResponseIsRevalidated() throws Exception {
+    HttpCache cache = new HttpCache(1024 * 1024);
+    client.cache(cache);
+
+    assertEquals("tagged", get("/etag").string());
+    Response response = get("/etag");
+    assertEquals(200, response.code());
+    assertEquals("tagged", response.string());
+    assertEquals(2, served.get());
+    assertEquals(1, cache.revalidationCount());
+    assertEquals(0, cache.hitCount());
+  }
+
+  @Test
+  public void noStoreIsNotCached() throws Exception {
+    HttpCache cache = new HttpCache(1024 * 1024);
+    client.cache(cache);
+
+    assertEquals("private 1", get("/no-store").string());
+    assertEquals("private 2", get("/no-store").string());
+    assertEquals(0, cache.memorySize());
+  }
+
+  @Test
+  public void diskTierSurvivesRestart() throws Exception {
+    client.cache(new HttpCache(0, directory, 1024 * 1024));
+    assertEquals("fresh 1", get("/max-age").string());
+
+    HttpCache reopened = new HttpCache(0, directory, 1024 * 1024);
+    client.cache(reopened);
+    assertEquals("fresh 1", get("/max-age").string());
+    assertEquals(1, reopened.hitCount());
+    assertEquals(1, served.get());
+  }
+
+  @Test
+  public void postInvalidatesEntry() throws Exception {
+    HttpCache cache = new HttpCache(1024 * 1024);
+    client.cache(cache);
+    get("/max-age").string();
+
+    Request post = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url(baseUrl + "/max-age")
+        .body("update")
+        .build();
+    client.call(post).execute().string();
+
+    assertEquals("fresh 3", get("/max-age").string());
+  }
+
+  @Test
+  public void rangeRequestBypassesCache() throws Exception {
+    HttpCache cache = new HttpCache(1024 * 1024);
+    client.cache(cache);
+    assertEquals("fresh 1", get("/max-age").string());
+
+    Request range = new Request.Builder()
+        .url(baseUrl + "/max-age")
+        .header("Range", "bytes=0-2")
+        .build();
+    client.call(range).execute().string();
+    assertEquals(2, served.get());
+    assertEquals(0, cache.hitCount());
+  }
+
+  @Test
+  public void bodyShorterThanContentLengthIsNotCached() throws Exception {
+    HttpCache cache = new HttpCache(1024 * 1024);
+    Request request = new Request.Builder().url(baseUrl + "/max-age").build();
+    Response response = cache.execute(request, new HttpCache.Network() {
+      @Override public Response execute(Request request) {
+        return new Response(200, Headers.of("Cache-Control", "max-age=60",
+            "Content-Length", "10"), new ByteArrayInputStream("cut".getBytes()));
+      }
+    });
+    assertEquals("cut", response.string());
+    assertEquals(0, cache.memorySize());
+  }
+
+  private Response get(String path) throws IOException {
+    Request request = new Request.Builder()
+        .method(HttpMethod.GET)
+        .url(baseUrl + path)
+        .build();
+    return client.call(request).execute();
+  }
+}
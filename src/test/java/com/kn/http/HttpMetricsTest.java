@@ -0,0 +1,175 @@
+package com.kn.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.kn.http.HttpClient.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author nk
+ */
+public class HttpMetricsTest {
+  private HttpServer server;
+  private ConnectionPool pool;
+  private HttpClient client;
+  private String baseUrl;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        SocketTransportTest.respond(exchange, 200, "hello");
+      }
+    });
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+    pool = new ConnectionPool(5, 1, TimeUnit.MINUTES);
+    client = new HttpClient();
+    client.transport(new SocketTransport(pool));
+  }
+
+  @After
+  public void tearDown() {
+    pool.evictAll();
+    server.stop(0);
+  }
+
+  @Test
+  public void reportsPhasesInOrder() throws Exception {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    client.eventListener(new EventListener() {
+      @Override public void callStart(Request request) {
+        events.add("callStart");
+      }
+
+      @Override public void dnsStart(String host) {
+        events.add("dnsStart");
+      }
+
+      @Override public void connectStart(InetSocketAddress address) {
+        events.add("connectStart");
+      }
+
+      @Override public void connectEnd(InetSocketAddress address) {
+        events.add("connectEnd");
+      }
+
+      @Override public void connectionAcquired(boolean reused) {
+        events.add("connectionAcquired " + reused);
+      }
+
+      @Override public void requestStart() {
+        events.add("requestStart");
+      }
+
+      @Override public void requestEnd() {
+        events.add("requestEnd");
+      }
+
+      @Override public void responseStart(int code) {
+        events.add("responseStart " + code);
+      }
+
+      @Override public void responseEnd(long bodyBytes) {
+        events.add("responseEnd " + bodyBytes);
+      }
+
+      @Override public void callEnd() {
+        events.add("callEnd");
+      }
+    });
+
+    assertEquals("hello", get().string());
+    assertEquals(Arrays.asList("callStart", "dnsStart", "connectStart", "connectEnd",
+        "connectionAcquired false", "requestStart", "requestEnd", "responseStart 200",
+        "responseEnd 5", "callEnd"), events);
+  }
+
+  @Test
+  public void recordsHistogramsPerHost() throws Exception {
+    HttpMetrics metrics = new HttpMetrics();
+    client.eventListenerFactory(metrics);
+    for (int i = 0; i < 10; i++) {
+      get().string();
+    }
+
+    Map<String, Long> snapshot = metrics.snapshot();
+    assertEquals(Long.valueOf(10), snapshot.get("host.127.0.0.1.call.count"));
+    assertEquals(Long.valueOf(10), snapshot.get("host.127.0.0.1.ttfb.count"));
+    // keep-alive connection is opened once
+    assertEquals(Long.valueOf(1), snapshot.get("host.127.0.0.1.connect.count"));
+    assertEquals(Long.valueOf(0), snapshot.get("calls.inFlight"));
+    assertTrue(snapshot.get("host.127.0.0.1.call.p99") <= snapshot.get("host.127.0.0.1.call.max"));
+  }
+
+  @Test
+  public void histogramPercentilesAreWithinPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10000; i++) {
+      histogram.record(i);
+    }
+
+    assertEquals(10000, histogram.count());
+    assertEquals(10000, histogram.max());
+    assertWithin(5000, histogram.valueAtPercentile(50));
+    assertWithin(9900, histogram.valueAtPercentile(99));
+    assertEquals(10000, histogram.valueAtPercentile(100));
+  }
+
+  @Test
+  public void histogramIndexCoversWholeRange() {
+    long previous = -1;
+    for (long value = 0; value < 1L << 42; value = value * 2 + 1) {
+      int index = LatencyHistogram.index(value);
+      long highest = LatencyHistogram.highestEquivalentValue(index);
+      // values from 2^41 on are clamped into the last bucket
+      if (value >= 1L << 41) break;
+      assertTrue(value + " above bucket " + highest, value <= highest);
+      assertTrue(index > previous);
+      previous = index;
+    }
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("expected ~" + expected + " but was " + actual,
+        Math.abs(actual - expected) <= expected * 0.03);
+  }
+
+  private Response get() throws IOException {
+    Request request = new Request.Builder()
+        .method(HttpMethod.GET)
+        .url(baseUrl + "/")
+        .build();
+    return client.call(request).execute();
+  }
+
+  @Test
+  public void countsFullAndResumedHandshakes() {
+    HttpMetrics metrics = new HttpMetrics();
+    Request request = new Request.Builder().url("https://secure.test/").build();
+    metrics.create(request).secureConnectEnd("h2", false);
+    metrics.create(request).secureConnectEnd("h2", true);
+    metrics.create(request).secureConnectEnd(null, true);
+
+    Map<String, Long> snapshot = metrics.snapshot();
+    assertEquals(1, (long) snapshot.get("host.secure.test.tls.full"));
+    assertEquals(2, (long) snapshot.get("host.secure.test.tls.resumed"));
+    assertEquals(3, (long) snapshot.get("host.secure.test.tls.count"));
+  }
+}
@@ -0,0 +1,496 @@
+package com.kn.http;
+
+import com.kn.http.NetworkDispatcher.Callback;
+import com.kn.http.NetworkDispatcher.Cancelable;
+import com.kn.http.NetworkDispatcher.Priority;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.kn.http.HttpClient.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author nk
+ */
+public class NetworkDispatcherTest {
+  static final int SUBMITTERS = 64;
+  static final int REQUESTS_PER_SUBMITTER = 500;
+  static final int HOSTS = 8;
+  static final int MAX_REQUESTS = 16;
+  static final int MAX_REQUESTS_PER_HOST = 4;
+
+  private final AtomicInteger running = new AtomicInteger();
+  private final AtomicInteger maxRunning = new AtomicInteger();
+  private final ConcurrentMap<String, AtomicInteger> runningPerHost = new ConcurrentHashMap<>();
+  private final AtomicInteger maxRunningPerHost = new AtomicInteger();
+  private final AtomicInteger executed = new AtomicInteger();
+  private HttpClient client;
+
+  @Before
+  public void setUp() {
+    client = new HttpClient();
+    client.transport(new Transport() {
+      @Override public Exchange newExchange(final Request request, int connectTimeout,
+          int readTimeout) {
+        return new Exchange() {
+          @Override public Response execute() throws IOException {
+            executed.incrementAndGet();
+            AtomicInteger perHost = perHost(request.url.getHost());
+            max(maxRunning, running.incrementAndGet());
+            max(maxRunningPerHost, perHost.incrementAndGet());
+            try {
+              Thread.yield();
+              return new Response(200, Headers.EMPTY,
+                  new ByteArrayInputStream(request.url.getPath().getBytes("UTF-8")));
+            } finally {
+              perHost.decrementAndGet();
+              running.decrementAndGet();
+            }
+          }
+
+          @Override public void cancel() {
+          }
+        };
+      }
+    });
+  }
+
+  @Test
+  public void respectsLimitsUnderContention() throws Exception {
+    stress(new NetworkDispatcher(client, MAX_REQUESTS, MAX_REQUESTS_PER_HOST));
+  }
+
+  @Test
+  public void adaptiveLimitGrowsUnderContention() throws Exception {
+    NetworkDispatcher dispatcher = new NetworkDispatcher(client, MAX_REQUESTS,
+        ConcurrencyLimit.aimd(1, MAX_REQUESTS_PER_HOST, 10000));
+    stress(dispatcher);
+
+    assertEquals(HOSTS, dispatcher.hostLimits().size());
+    for (int limit : dispatcher.hostLimits().values()) {
+      assertTrue("Limit did not grow: " + limit, limit > 1);
+    }
+  }
+
+  @Test
+  public void respectsLimitsOnVirtualThreads() throws Exception {
+    assumeTrue(NetworkDispatcher.isVirtualThreadSupported());
+    stress(new NetworkDispatcher(client, MAX_REQUESTS, MAX_REQUESTS_PER_HOST,
+        NetworkDispatcher.virtualThreadExecutor()));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void virtualThreadsUnsupported() {
+    assumeTrue(!NetworkDispatcher.isVirtualThreadSupported());
+    NetworkDispatcher.virtualThreadExecutor();
+  }
+
+  private void stress(final NetworkDispatcher dispatcher) throws Exception {
+    final int total = SUBMITTERS * REQUESTS_PER_SUBMITTER;
+    final CountDownLatch done = new CountDownLatch(total);
+    final AtomicInteger failures = new AtomicInteger();
+    final Callback<Response> callback = new Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        done.countDown();
+      }
+
+      @Override public void onFailure(IOException e) {
+        failures.incrementAndGet();
+        done.countDown();
+      }
+    };
+
+    final CountDownLatch start = new CountDownLatch(1);
+    for (int i = 0; i < SUBMITTERS; i++) {
+      final int submitter = i;
+      new Thread(new Runnable() {
+        @Override public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < REQUESTS_PER_SUBMITTER; j++) {
+            Request request = new Request.Builder()
+                .url("http://host" + ((submitter + j) % HOSTS) + ".test/" + j)
+                .build();
+            dispatcher.execute(request, callback);
+          }
+        }
+      }).start();
+    }
+
+    start.countDown();
+    boolean finished = done.await(60, TimeUnit.SECONDS);
+    assertTrue("Lost tasks: " + done.getCount(), finished);
+
+    assertEquals(0, failures.get());
+    assertTrue("Exceeded max requests: " + maxRunning, maxRunning.get() <= MAX_REQUESTS);
+    assertTrue("Exceeded max requests per host: " + maxRunningPerHost,
+        maxRunningPerHost.get() <= MAX_REQUESTS_PER_HOST);
+    assertEquals(0, dispatcher.waitingCount());
+  }
+
+  @Test
+  public void canceledWaitingTaskIsNotExecuted() throws Exception {
+    NetworkDispatcher dispatcher = new NetworkDispatcher(client, 1, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger successes = new AtomicInteger();
+    Callback<Response> blocking = new Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        try {
+          release.await();
+        } catch (InterruptedException ignored) {
+        }
+      }
+
+      @Override public void onFailure(IOException e) {
+      }
+    };
+    Callback<Response> counting = new Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        successes.incrementAndGet();
+      }
+
+      @Override public void onFailure(IOException e) {
+      }
+    };
+
+    Request request = new Request.Builder().url("http://host.test/").build();
+    dispatcher.execute(request, blocking);
+    dispatcher.execute(request, counting).cancel();
+    assertEquals(0, dispatcher.waitingCount());
+
+    release.countDown();
+    final CountDownLatch last = new CountDownLatch(1);
+    dispatcher.execute(request, new Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        last.countDown();
+      }
+
+      @Override public void onFailure(IOException e) {
+      }
+    });
+    assertTrue(last.await(5, TimeUnit.SECONDS));
+    assertEquals(0, successes.get());
+  }
+
+  @Test
+  public void urgentRequestsGoFirst() throws Exception {
+    NetworkDispatcher dispatcher = new NetworkDispatcher(client, 1, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    dispatcher.execute(new Request.Builder().url("http://host.test/block").build(),
+        new Callback<Response>() {
+          @Override public void onSuccess(Response response) {
+            try {
+              release.await();
+            } catch (InterruptedException ignored) {
+            }
+          }
+
+          @Override public void onFailure(IOException e) {
+          }
+        });
+
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    List<CompletableFuture<Response>> futures = new ArrayList<>();
+    String[] paths = {"/low", "/normal", "/high", "/normal-deadline"};
+    Priority[] priorities = {Priority.LOW, Priority.NORMAL, Priority.HIGH, Priority.NORMAL};
+    for (int i = 0; i < paths.length; i++) {
+      final Request request = new Request.Builder().url("http://host.test" + paths[i]).build();
+      futures.add(dispatcher.enqueue(request, priorities[i], i == 3 ? 1 : 0, TimeUnit.MINUTES)
+          .whenComplete(new BiConsumer<Response, Throwable>() {
+            @Override public void accept(Response response, Throwable throwable) {
+              order.add(request.url.getPath());
+            }
+          }));
+    }
+    release.countDown();
+    for (CompletableFuture<Response> future : futures) {
+      future.get(5, TimeUnit.SECONDS);
+    }
+
+    assertEquals(Arrays.asList("/high", "/normal-deadline", "/normal", "/low"), order);
+  }
+
+  @Test
+  public void expiredRequestIsNotSent() throws Exception {
+    NetworkDispatcher dispatcher = new NetworkDispatcher(client, 1, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Request request = new Request.Builder().url("http://host.test/").build();
+    dispatcher.execute(request, new Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        try {
+          release.await();
+        } catch (InterruptedException ignored) {
+        }
+      }
+
+      @Override public void onFailure(IOException e) {
+      }
+    });
+
+    CompletableFuture<Response> expired =
+        dispatcher.enqueue(request, Priority.HIGH, 1, TimeUnit.MILLISECONDS);
+    Thread.sleep(20);
+    release.countDown();
+    try {
+      expired.get(5, TimeUnit.SECONDS);
+      fail("Expected InterruptedIOException, deadline passed");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof InterruptedIOException);
+    }
+    assertEquals(1, executed.get());
+    assertEquals(0, dispatcher.waitingCount());
+  }
+
+  @Test
+  public void identicalGetsShareOneCall() throws Exception {
+    NetworkDispatcher dispatcher = new NetworkDispatcher(client, 1, 1);
+    dispatcher.coalesceRequests(true);
+    final CountDownLatch release = new CountDownLatch(1);
+    dispatcher.execute(new Request.Builder().url("http://host.test/block").build(),
+        new Callback<Response>() {
+          @Override public void onSuccess(Response response) {
+            try {
+              release.await();
+            } catch (InterruptedException ignored) {
+            }
+          }
+
+          @Override public void onFailure(IOException e) {
+          }
+        });
+
+    Request request = new Request.Builder().url("http://host.test/shared").build();
+    List<CompletableFuture<Response>> futures = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      futures.add(dispatcher.enqueue(request));
+    }
+    CompletableFuture<Response> other = dispatcher.enqueue(
+        new Request.Builder().url("http://host.test/shared").header("Accept", "text/*").build());
+    assertTrue(futures.remove(0).cancel(true));
+    release.countDown();
+
+    for (CompletableFuture<Response> future : futures) {
+      assertEquals("/shared", future.get(5, TimeUnit.SECONDS).string());
+    }
+    assertEquals("/shared", other.get(5, TimeUnit.SECONDS).string());
+    assertEquals(3, executed.get());
+    assertEquals(4, dispatcher.coalescedCount());
+  }
+
+  @Test
+  public void subscriberCanceledAfterResponseIsNotCalled() throws Exception {
+    NetworkDispatcher dispatcher = new NetworkDispatcher(client, 1, 1);
+    dispatcher.coalesceRequests(true);
+    final CountDownLatch release = new CountDownLatch(1);
+    dispatcher.execute(new Request.Builder().url("http://host.test/block").build(),
+        new Callback<Response>() {
+          @Override public void onSuccess(Response response) {
+            try {
+              release.await();
+            } catch (InterruptedException ignored) {
+            }
+          }
+
+          @Override public void onFailure(IOException e) {
+          }
+        });
+
+    Request request = new Request.Builder().url("http://host.test/shared").build();
+    final AtomicReference<Cancelable> second = new AtomicReference<>();
+    dispatcher.execute(request, new Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        // shared response is already being delivered when second subscriber cancels
+        second.get().cancel();
+        response.close();
+      }
+
+      @Override public void onFailure(IOException e) {
+      }
+    });
+    final AtomicInteger secondCalls = new AtomicInteger();
+    second.set(dispatcher.execute(request, new Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        secondCalls.incrementAndGet();
+      }
+
+      @Override public void onFailure(IOException e) {
+        secondCalls.incrementAndGet();
+      }
+    }));
+    // subscribers are called in order they joined, third one is called after second
+    CompletableFuture<Response> third = dispatcher.enqueue(request);
+    release.countDown();
+
+    assertEquals("/shared", third.get(5, TimeUnit.SECONDS).string());
+    assertEquals(0, secondCalls.get());
+    assertEquals(2, dispatcher.coalescedCount());
+  }
+
+  @Test
+  public void slowRequestIsHedged() throws Exception {
+    final AtomicInteger slowAttempts = new AtomicInteger();
+    final CountDownLatch loserCanceled = new CountDownLatch(1);
+    HttpClient hedgingClient = new HttpClient();
+    hedgingClient.transport(new Transport() {
+      @Override public Exchange newExchange(final Request request, int connectTimeout,
+          int readTimeout) {
+        final CountDownLatch cancel = new CountDownLatch(1);
+        return new Exchange() {
+          @Override public Response execute() throws IOException {
+            String path = request.url.getPath();
+            if (path.equals("/slow") && slowAttempts.getAndIncrement() == 0) {
+              try {
+                cancel.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException ignored) {
+              }
+              loserCanceled.countDown();
+              throw new IOException("Canceled");
+            }
+            return new Response(200, Headers.EMPTY,
+                new ByteArrayInputStream(path.getBytes("UTF-8")));
+          }
+
+          @Override public void cancel() {
+            cancel.countDown();
+          }
+        };
+      }
+    });
+    NetworkDispatcher dispatcher = new NetworkDispatcher(hedgingClient, 4, 4);
+    dispatcher.hedging(95, new RetryBudget(0.1, 10));
+
+    Request fast = new Request.Builder().url("http://host.test/fast").build();
+    for (int i = 0; i < NetworkDispatcher.MIN_HEDGE_SAMPLES; i++) {
+      dispatcher.enqueue(fast).get(5, TimeUnit.SECONDS).close();
+    }
+    assertEquals(0, dispatcher.hedgedCount());
+
+    Request slow = new Request.Builder().url("http://host.test/slow").build();
+    assertEquals("/slow", dispatcher.enqueue(slow).get(5, TimeUnit.SECONDS).string());
+    assertTrue(loserCanceled.await(5, TimeUnit.SECONDS));
+    assertEquals(1, dispatcher.hedgedCount());
+    assertEquals(2, slowAttempts.get());
+  }
+
+  @Test
+  public void queuedRequestIsNotHedged() throws Exception {
+    HttpClient hedgingClient = new HttpClient();
+    hedgingClient.transport(new Transport() {
+      @Override public Exchange newExchange(final Request request, int connectTimeout,
+          int readTimeout) {
+        return new Exchange() {
+          @Override public Response execute() throws IOException {
+            String path = request.url.getPath();
+            long sleepMillis = path.equals("/warm") ? 30 : path.equals("/block") ? 300 : 0;
+            try {
+              Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+              throw new InterruptedIOException();
+            }
+            return new Response(200, Headers.EMPTY,
+                new ByteArrayInputStream(path.getBytes("UTF-8")));
+          }
+
+          @Override public void cancel() {
+          }
+        };
+      }
+    });
+    NetworkDispatcher dispatcher = new NetworkDispatcher(hedgingClient, 4, 1);
+    dispatcher.hedging(95, new RetryBudget(1, 10));
+
+    Request warm = new Request.Builder().url("http://host.test/warm").build();
+    for (int i = 0; i < NetworkDispatcher.MIN_HEDGE_SAMPLES; i++) {
+      dispatcher.enqueue(warm).get(5, TimeUnit.SECONDS).close();
+    }
+
+    Request block = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url("http://host.test/block")
+        .body("block")
+        .build();
+    CompletableFuture<Response> blocking = dispatcher.enqueue(block);
+    // waits behind blocking request far longer than hedge delay, but runs quickly
+    Request fast = new Request.Builder().url("http://host.test/fast").build();
+    assertEquals("/fast", dispatcher.enqueue(fast).get(5, TimeUnit.SECONDS).string());
+    blocking.get(5, TimeUnit.SECONDS).close();
+    assertEquals(0, dispatcher.hedgedCount());
+  }
+
+  @Test
+  public void enqueueCompletesFuture() throws Exception {
+    NetworkDispatcher dispatcher = new NetworkDispatcher(client);
+    Request request = new Request.Builder().url("http://host.test/").build();
+
+    CompletableFuture<Integer> code = dispatcher.enqueue(request)
+        .thenCombine(client.call(request).executeAsync(dispatcher.executorService),
+            new BiFunction<Response, Response, Integer>() {
+              @Override public Integer apply(Response first, Response second) {
+                return first.code() + second.code();
+              }
+            });
+    assertEquals(400, (int) code.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void cancelledFutureCancelsWaitingRequest() throws Exception {
+    NetworkDispatcher dispatcher = new NetworkDispatcher(client, 1, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Request request = new Request.Builder().url("http://host.test/").build();
+    dispatcher.execute(request, new Callback<Response>() {
+      @Override public void onSuccess(Response response) {
+        try {
+          release.await();
+        } catch (InterruptedException ignored) {
+        }
+      }
+
+      @Override public void onFailure(IOException e) {
+      }
+    });
+
+    CompletableFuture<Response> future = dispatcher.enqueue(request);
+    assertEquals(1, dispatcher.waitingCount());
+    assertTrue(future.cancel(true));
+    assertEquals(0, dispatcher.waitingCount());
+    release.countDown();
+  }
+
+  private AtomicInteger perHost(String host) {
+    AtomicInteger counter = runningPerHost.get(host);
+    if (counter == null) {
+      runningPerHost.putIfAbsent(host, new AtomicInteger());
+      counter = runningPerHost.get(host);
+    }
+    return counter;
+  }
+
+  private static void max(AtomicInteger max, int value) {
+    int current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+    }
+  }
+}
@@ -79,7 +79,7 @@ public class RealServerTest {
         }
 
         @Override
-        public void onFailure(Exception e) {
+        public void onFailure(IOException e) {
           e.printStackTrace();
           latch.countDown();
         }
@@ -92,7 +92,7 @@ public class RealServerTest {
       @Override
       public void run() {
         while (latch.getCount() != 0) {
-          int currActiveThreads = dispatcher.executorService.getActiveCount();
+          int currActiveThreads = dispatcher.runningCount();
           if (maxCount[0] < currActiveThreads) {
             maxCount[0] = currActiveThreads;
           }
@@ -174,7 +174,7 @@ public class RealServerTest {
             .url("http://httpbin.org/delay/5")
             .build();
     final Object[] networkResult = new Response[1];
-    final Exception[] networkError = new Exception[1];
+    final IOException[] networkError = new IOException[1];
 
     Callback<Response> callback = new Callback<Response>() {
       @Override
@@ -183,7 +183,7 @@ public class RealServerTest {
       }
 
       @Override
-      public void onFailure(Exception e) {
+      public void onFailure(IOException e) {
         networkError[0] = e;
       }
     };
@@ -0,0 +1,90 @@
+package com.kn.http;
+
+import com.kn.http.HttpClient.HttpMethod;
+import com.kn.http.HttpClient.Request;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author nk
+ */
+public class RequestTemplateTest {
+  private final RequestTemplate template = new RequestTemplate.Builder()
+      .url("https://api.example.com:8443/users/{id}/items?fields=all")
+      .header("Accept", "application/json")
+      .build();
+
+  @Test
+  public void fillsPathAndQuery() {
+    Request request = template.newRequest()
+        .path("id", "42")
+        .query("page", "2")
+        .build();
+    assertEquals("https://api.example.com:8443/users/42/items?fields=all&page=2", request.url());
+    assertEquals(HttpMethod.GET, request.method());
+    assertSame(template.headers(), request.headers());
+  }
+
+  @Test
+  public void encodesValues() {
+    Request request = template.newRequest()
+        .path("id", "a/b c")
+        .query("q", "x&y=z")
+        .query("name", "\u0436\ud83d\ude00")
+        .query("flag", null)
+        .build();
+    assertEquals("https://api.example.com:8443/users/a%2Fb%20c/items?fields=all"
+        + "&q=x%26y%3Dz&name=%D0%B6%F0%9F%98%80&flag", request.url());
+  }
+
+  @Test
+  public void fillerCanBuildAgain() {
+    RequestTemplate.Filler filler = template.newRequest().path("id", "1");
+    Request first = filler.build();
+    Request second = filler.path("id", "2").header("Accept", "text/plain").build();
+    assertEquals("https://api.example.com:8443/users/1/items?fields=all", first.url());
+    assertEquals("application/json", first.header("accept"));
+    assertEquals("https://api.example.com:8443/users/2/items?fields=all", second.url());
+    assertEquals("text/plain", second.header("accept"));
+  }
+
+  @Test
+  public void missingOrUnknownParameterFails() {
+    try {
+      template.newRequest().build();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      template.newRequest().path("user", "1");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new RequestTemplate.Builder().url("http://example.com/{").build();
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void builderEncodesParamsAndCanBeReused() {
+    Map<String, String> params = new LinkedHashMap<>();
+    params.put("q", "a b&c");
+    HttpClient.Request.Builder builder = new Request.Builder()
+        .url("http://example.com/search?lang=en")
+        .params(params)
+        .header("Accept", "a");
+    Request first = builder.build();
+    Request second = builder.header("Accept", "b").build();
+
+    assertEquals("http://example.com/search?lang=en&q=a%20b%26c", first.url());
+    assertEquals("a", first.header("Accept"));
+    assertEquals("b", second.header("Accept"));
+  }
+}
@@ -0,0 +1,593 @@
+package com.kn.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.net.ssl.SSLSocketFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.kn.http.HttpClient.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author nk
+ */
+public class SocketTransportTest {
+  private HttpServer server;
+  private HttpClient client;
+  private ConnectionPool pool;
+  private String baseUrl;
+  private final CountDownLatch stall = new CountDownLatch(1);
+  private final AtomicInteger flakyHits = new AtomicInteger();
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/port", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, String.valueOf(exchange.getRemoteAddress().getPort()));
+      }
+    });
+    server.createContext("/echo", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+        copy(exchange.getRequestBody(), body);
+        respond(exchange, 200, exchange.getRequestMethod() + " " + body.toString("UTF-8"));
+      }
+    });
+    server.createContext("/framing", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+        copy(exchange.getRequestBody(), body);
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        respond(exchange, 200, (length != null ? "length " + length : "chunked") + " "
+            + body.size());
+      }
+    });
+    server.createContext("/stall", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        awaitStall();
+        respond(exchange, 200, "late");
+      }
+    });
+    server.createContext("/stall-body", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream body = exchange.getResponseBody();
+        body.write("early".getBytes("UTF-8"));
+        body.flush();
+        awaitStall();
+        body.close();
+      }
+    });
+    server.createContext("/compressed", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept == null || !accept.contains("gzip")) {
+          respond(exchange, 200, "plain");
+          return;
+        }
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write("compressed".getBytes("UTF-8"));
+        gzip.close();
+        exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, bytes.size());
+        exchange.getResponseBody().write(bytes.toByteArray());
+        exchange.close();
+      }
+    });
+    server.createContext("/gunzip", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        java.io.ByteArrayOutputStream body = new java.io.ByteArrayOutputStream();
+        copy(new GZIPInputStream(exchange.getRequestBody()), body);
+        respond(exchange, 200, exchange.getRequestHeaders().getFirst("Content-Encoding") + " "
+            + body.toString("UTF-8"));
+      }
+    });
+    server.createContext("/flaky", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        copy(exchange.getRequestBody(), new java.io.ByteArrayOutputStream());
+        int hit = flakyHits.incrementAndGet();
+        respond(exchange, hit % 2 == 1 ? 503 : 200, "hit " + hit);
+      }
+    });
+    server.createContext("/path", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, exchange.getRequestURI().toString());
+      }
+    });
+    server.createContext("/redirect", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Location", "/port");
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+    pool = new ConnectionPool(5, 1, TimeUnit.MINUTES);
+    client = new HttpClient();
+    client.transport(new SocketTransport(pool));
+  }
+
+  @After
+  public void tearDown() {
+    stall.countDown();
+    pool.evictAll();
+    server.stop(0);
+  }
+
+  @Test
+  public void reusesKeepAliveConnection() throws Exception {
+    String firstPort = get("/port").string();
+    assertEquals(1, pool.idleConnectionCount());
+
+    String secondPort = get("/port").string();
+    assertEquals(firstPort, secondPort);
+    assertEquals(1, pool.idleConnectionCount());
+  }
+
+  @Test
+  public void abandonedBodyIsNotPooled() throws Exception {
+    get("/port").close();
+    assertEquals(0, pool.idleConnectionCount());
+  }
+
+  @Test
+  public void evictAllClosesIdleConnections() throws Exception {
+    get("/port").string();
+    pool.evictAll();
+    assertEquals(0, pool.idleConnectionCount());
+  }
+
+  @Test
+  public void sendsFixedLengthBody() throws Exception {
+    Request request = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url(baseUrl + "/echo")
+        .body("{\"id\":1}")
+        .build();
+
+    assertEquals("POST {\"id\":1}", client.call(request).execute().string());
+  }
+
+  @Test
+  public void sendsChunkedBody() throws Exception {
+    Request request = new Request.Builder()
+        .method(HttpMethod.PUT)
+        .url(baseUrl + "/echo")
+        .body(new FilterInputStream(new ByteArrayInputStream("streamed".getBytes("UTF-8"))) {
+        })
+        .build();
+
+    assertEquals("PUT streamed", client.call(request).execute().string());
+  }
+
+  @Test
+  public void streamsFileBodyWithContentLength() throws Exception {
+    Path file = Files.createTempFile("upload", ".bin");
+    try {
+      Files.write(file, new byte[100 * 1024]);
+      Request request = new Request.Builder()
+          .method(HttpMethod.POST)
+          .url(baseUrl + "/framing")
+          .body(RequestBody.of(file))
+          .build();
+
+      assertEquals("length 102400 102400", client.call(request).execute().string());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void streamsLargeBodyInChunks() throws Exception {
+    Request request = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url(baseUrl + "/framing")
+        .body(RequestBody.of(Channels.newChannel(new ByteArrayInputStream(new byte[70000])), -1))
+        .build();
+
+    assertEquals("chunked 70000", client.call(request).execute().string());
+  }
+
+  @Test
+  public void bodyShorterThanDeclaredFails() throws Exception {
+    Request request = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url(baseUrl + "/echo")
+        .body(RequestBody.of(new ByteArrayInputStream(new byte[5]), 10))
+        .build();
+
+    try {
+      client.call(request).execute();
+      fail("Expected ProtocolException, body is shorter than Content-Length");
+    } catch (java.net.ProtocolException expected) {
+    }
+  }
+
+  @Test
+  public void negotiatesCompression() throws Exception {
+    assertEquals("compressed", get("/compressed").string());
+
+    client.compression(false);
+    assertEquals("plain", get("/compressed").string());
+  }
+
+  @Test
+  public void sendsGzipBody() throws Exception {
+    Request request = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url(baseUrl + "/gunzip")
+        .body("squeeze me")
+        .gzipBody()
+        .build();
+
+    assertEquals("gzip squeeze me", client.call(request).execute().string());
+  }
+
+  @Test
+  public void callCanceledBeforeExecuteFailsAtOnce() throws Exception {
+    Call call = client.call(new Request.Builder().url(baseUrl + "/port").build());
+    call.cancel();
+    assertTrue(call.isCanceled());
+    try {
+      call.execute();
+      fail("Expected IOException, call is canceled");
+    } catch (IOException expected) {
+      assertEquals("Canceled", expected.getMessage());
+    }
+    assertEquals(0, pool.idleConnectionCount());
+  }
+
+  @Test
+  public void cancelInterruptsWaitForResponse() throws Exception {
+    final Call call = client.call(new Request.Builder().url(baseUrl + "/stall").build());
+    cancelLater(call, 100);
+    long start = System.nanoTime();
+    try {
+      call.execute();
+      fail("Expected IOException, call is canceled");
+    } catch (IOException expected) {
+      assertEquals("Canceled", expected.getMessage());
+    }
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+  }
+
+  @Test
+  public void cancelInterruptsTlsHandshake() throws Exception {
+    final ServerSocket silent = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    try {
+      final Call call = client.call(new Request.Builder()
+          .url("https://127.0.0.1:" + silent.getLocalPort() + "/")
+          .build());
+      cancelLater(call, 100);
+      long start = System.nanoTime();
+      try {
+        call.execute();
+        fail("Expected IOException, call is canceled");
+      } catch (IOException expected) {
+        assertEquals("Canceled", expected.getMessage());
+      }
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+    } finally {
+      silent.close();
+    }
+  }
+
+  @Test
+  public void callTimeoutCoversBody() throws Exception {
+    Response response = client.call(new Request.Builder().url(baseUrl + "/stall-body").build())
+        .timeout(200, TimeUnit.MILLISECONDS)
+        .execute();
+    try {
+      response.string();
+      fail("Expected InterruptedIOException, body is not complete in time");
+    } catch (Exception expected) {
+      assertTrue(expected.toString(), expected instanceof InterruptedIOException);
+    }
+  }
+
+  @Test
+  public void cancelBetweenBodyReadsFails() throws Exception {
+    Call call = client.call(new Request.Builder().url(baseUrl + "/stall-body").build());
+    InputStream body = call.execute().stream();
+    byte[] early = new byte[5];
+    int read = 0;
+    while (read < early.length) read += body.read(early, read, early.length - read);
+    assertEquals("early", new String(early, "UTF-8"));
+
+    call.cancel();
+    try {
+      body.read(early);
+      fail("Expected IOException, call is canceled");
+    } catch (IOException expected) {
+      assertEquals("Canceled", expected.getMessage());
+    }
+    assertEquals(0, pool.idleConnectionCount());
+  }
+
+  @Test
+  public void readAfterCallTimeoutFails() throws Exception {
+    Response response = client.call(new Request.Builder().url(baseUrl + "/stall-body").build())
+        .timeout(200, TimeUnit.MILLISECONDS)
+        .execute();
+    Thread.sleep(400);
+    try {
+      response.bytes();
+      fail("Expected InterruptedIOException, call timed out");
+    } catch (Exception expected) {
+      assertTrue(expected.toString(), expected instanceof InterruptedIOException);
+    }
+  }
+
+  @Test
+  public void callTimeoutFailsExecute() throws Exception {
+    client.callTimeout(200);
+    try {
+      client.call(new Request.Builder().url(baseUrl + "/stall").build()).execute();
+      fail("Expected InterruptedIOException, server does not answer in time");
+    } catch (InterruptedIOException expected) {
+    }
+  }
+
+  @Test
+  public void retriesGetAfter503() throws Exception {
+    client.retryPolicy(new RetryPolicy.Builder().backoff(1, 10, TimeUnit.MILLISECONDS).build());
+    Response response = get("/flaky");
+    assertEquals(200, response.code());
+    assertEquals("hit 2", response.string());
+  }
+
+  @Test
+  public void postIsNotRetried() throws Exception {
+    client.retryPolicy(new RetryPolicy.Builder().backoff(1, 10, TimeUnit.MILLISECONDS).build());
+    Request request = new Request.Builder()
+        .method(HttpMethod.POST)
+        .url(baseUrl + "/flaky")
+        .body("{}")
+        .build();
+
+    Response response = client.call(request).execute();
+    assertEquals(503, response.code());
+    response.close();
+    assertEquals(1, flakyHits.get());
+  }
+
+  @Test
+  public void spentBudgetStopsRetries() throws Exception {
+    RetryBudget budget = new RetryBudget(0, 1);
+    client.retryPolicy(new RetryPolicy.Builder()
+        .backoff(1, 10, TimeUnit.MILLISECONDS)
+        .budget(budget)
+        .build());
+    assertEquals("hit 2", get("/flaky").string());
+    assertEquals(0, budget.tokens(), 0);
+
+    Response response = get("/flaky");
+    assertEquals(503, response.code());
+    response.close();
+    assertEquals(3, flakyHits.get());
+  }
+
+  @Test
+  public void unknownHostIsNotRetried() throws Exception {
+    final AtomicInteger lookups = new AtomicInteger();
+    client.transport(new SocketTransport(pool,
+        (SSLSocketFactory) SSLSocketFactory.getDefault(), new Dns() {
+      @Override public List<InetAddress> lookup(String host) throws UnknownHostException {
+        lookups.incrementAndGet();
+        throw new UnknownHostException(host);
+      }
+    }));
+    client.retryPolicy(new RetryPolicy.Builder().backoff(1, 10, TimeUnit.MILLISECONDS).build());
+    try {
+      client.call(new Request.Builder().url("http://nowhere.test/").build()).execute();
+      fail("Expected UnknownHostException, host does not resolve");
+    } catch (UnknownHostException expected) {
+    }
+    assertEquals(1, lookups.get());
+  }
+
+  @Test
+  public void cancelInterruptsRetryBackoff() throws Exception {
+    client.retryPolicy(new RetryPolicy.Builder().backoff(1, 1, TimeUnit.HOURS).build());
+    Call call = client.call(new Request.Builder().url(baseUrl + "/flaky").build());
+    cancelLater(call, 100);
+    try {
+      call.execute();
+      fail("Expected IOException, call was canceled");
+    } catch (IOException e) {
+      assertEquals("Canceled", e.getMessage());
+    }
+  }
+
+  @Test
+  public void dnsPointsHostAtLocalServer() throws Exception {
+    final InetAddress local = InetAddress.getByName("127.0.0.1");
+    client.transport(new SocketTransport(pool, (SSLSocketFactory) SSLSocketFactory.getDefault(),
+        new Dns() {
+          @Override public List<InetAddress> lookup(String host) {
+            return Arrays.asList(local);
+          }
+        }));
+    String url = "http://api.example.test:" + server.getAddress().getPort() + "/path";
+
+    assertEquals("/path", client.call(new Request.Builder().url(url).build()).execute().string());
+  }
+
+  @Test
+  public void fallsBackToNextAddress() throws Exception {
+    // server listens on 127.0.0.1 only, connect to 127.0.0.2 is refused
+    final List<InetAddress> addresses = Arrays.asList(
+        InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1"));
+    client.transport(new SocketTransport(pool, (SSLSocketFactory) SSLSocketFactory.getDefault(),
+        new Dns() {
+          @Override public List<InetAddress> lookup(String host) {
+            return addresses;
+          }
+        }));
+
+    long start = System.nanoTime();
+    assertEquals("/path", get("/path").string());
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+  }
+
+  @Test
+  public void followsRedirect() throws Exception {
+    Response response = get("/redirect");
+    assertEquals(200, response.code());
+    response.string();
+    assertEquals(1, pool.idleConnectionCount());
+  }
+
+  @Test
+  public void batchReturnsResponsesInOrder() throws Exception {
+    List<Request> requests = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      requests.add(new Request.Builder()
+          .method(i == 7 ? HttpMethod.POST : HttpMethod.GET)
+          .url(baseUrl + (i == 7 ? "/echo" : "/path?i=" + i))
+          .build());
+    }
+    requests.add(new Request.Builder().url(baseUrl + "/redirect").build());
+
+    List<Response> responses = client.executeBatch(requests);
+    assertEquals(requests.size(), responses.size());
+    for (int i = 0; i < 40; i++) {
+      assertEquals(i == 7 ? "POST " : "/path?i=" + i, responses.get(i).string());
+    }
+    assertEquals(200, responses.get(40).code());
+    responses.get(40).close();
+    // pipeline connection went back to the pool and served the rest
+    assertEquals(1, pool.idleConnectionCount());
+  }
+
+  @Test
+  public void batchSkipsEarlyHints() throws Exception {
+    final ServerSocket raw = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    Thread serving = new Thread(new Runnable() {
+      @Override public void run() {
+        try (java.net.Socket socket = raw.accept()) {
+          InputStream in = socket.getInputStream();
+          // both requests are pipelined before any response is read
+          int heads = 0;
+          int matched = 0;
+          byte[] end = "\r\n\r\n".getBytes("UTF-8");
+          while (heads < 2) {
+            int b = in.read();
+            if (b == -1) return;
+            matched = b == end[matched] ? matched + 1 : (b == end[0] ? 1 : 0);
+            if (matched == end.length) {
+              heads++;
+              matched = 0;
+            }
+          }
+          OutputStream out = socket.getOutputStream();
+          out.write(("HTTP/1.1 103 Early Hints\r\nLink: </style.css>\r\n\r\n"
+              + "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n/a"
+              + "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n/b").getBytes("UTF-8"));
+          out.flush();
+          in.read();
+        } catch (IOException ignored) {
+        }
+      }
+    });
+    serving.start();
+    try {
+      String rawUrl = "http://127.0.0.1:" + raw.getLocalPort();
+      List<Response> responses = client.executeBatch(Arrays.asList(
+          new Request.Builder().url(rawUrl + "/a").build(),
+          new Request.Builder().url(rawUrl + "/b").build()));
+      assertEquals(200, responses.get(0).code());
+      assertEquals("/a", responses.get(0).string());
+      assertEquals(200, responses.get(1).code());
+      assertEquals("/b", responses.get(1).string());
+    } finally {
+      pool.evictAll();
+      raw.close();
+      serving.join(5000);
+    }
+  }
+
+  @Test
+  public void savesBodyToFile() throws Exception {
+    Path file = Files.createTempFile("body", ".txt");
+    try {
+      assertEquals(11, get("/path?saved").saveTo(file));
+      assertEquals("/path?saved", new String(Files.readAllBytes(file), "UTF-8"));
+      assertEquals(1, pool.idleConnectionCount());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void writesBodyToChannel() throws Exception {
+    java.io.ByteArrayOutputStream output = new java.io.ByteArrayOutputStream();
+    assertEquals(13, get("/path?written").writeTo(Channels.newChannel(output)));
+    assertEquals("/path?written", output.toString("UTF-8"));
+  }
+
+  private Response get(String path) throws IOException {
+    Request request = new Request.Builder()
+        .method(HttpMethod.GET)
+        .url(baseUrl + path)
+        .build();
+    return client.call(request).execute();
+  }
+
+  private void awaitStall() {
+    try {
+      stall.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException ignored) {
+    }
+  }
+
+  private static void cancelLater(final Call call, final long millis) {
+    new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+        call.cancel();
+      }
+    }).start();
+  }
+
+  static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.sendResponseHeaders(code, bytes.length);
+    OutputStream output = exchange.getResponseBody();
+    output.write(bytes);
+    output.close();
+  }
+}
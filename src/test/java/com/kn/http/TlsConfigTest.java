@@ -0,0 +1,58 @@
+package com.kn.http;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author nk
+ */
+public class TlsConfigTest {
+
+  @Test
+  public void socketsUseConfiguredProtocolsAndSuites() throws Exception {
+    TlsConfig config = new TlsConfig.Builder()
+        .protocols("TLSv1.2")
+        .cipherSuites("TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256")
+        .build();
+
+    SSLSocket socket = (SSLSocket) config.socketFactory().createSocket();
+    try {
+      assertEquals(Arrays.asList("TLSv1.2"), Arrays.asList(socket.getEnabledProtocols()));
+      assertEquals(Arrays.asList("TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256"),
+          Arrays.asList(socket.getEnabledCipherSuites()));
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void sizesSessionCacheOfItsContext() throws Exception {
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, null, null);
+    TlsConfig config = new TlsConfig.Builder()
+        .sslContext(context)
+        .sessionCacheSize(16)
+        .sessionTimeout(10, TimeUnit.MINUTES)
+        .build();
+
+    assertEquals(16, config.sslContext().getClientSessionContext().getSessionCacheSize());
+    assertEquals(600, config.sslContext().getClientSessionContext().getSessionTimeout());
+  }
+
+  @Test
+  public void rejectsUnsupportedProtocol() {
+    try {
+      new TlsConfig.Builder().protocols("SSLv2").build();
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("SSLv2"));
+    }
+  }
+}